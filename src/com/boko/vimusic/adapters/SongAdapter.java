@@ -12,16 +12,19 @@
 package com.boko.vimusic.adapters;
 
 import android.content.Context;
+import android.os.AsyncTask;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.ArrayAdapter;
 
 import com.boko.vimusic.model.Song;
+import com.boko.vimusic.model.SongHydrator;
 import com.boko.vimusic.ui.MusicHolder;
 import com.boko.vimusic.ui.MusicHolder.DataHolder;
 import com.boko.vimusic.ui.fragments.QueueFragment;
 import com.boko.vimusic.ui.fragments.SongFragment;
+import com.boko.vimusic.utils.CommonUtils;
 
 /**
  * This {@link ArrayAdapter} is used to display all of the songs on a user's
@@ -37,6 +40,11 @@ public class SongAdapter extends ArrayAdapter<Song> {
 	 */
 	private static final int VIEW_TYPE_COUNT = 1;
 
+	/**
+	 * Number of rows before the requested one that are filled in with it
+	 */
+	private static final int HYDRATE_BEHIND = 20;
+
 	/**
 	 * The resource Id of the layout to inflate
 	 */
@@ -47,6 +55,21 @@ public class SongAdapter extends ArrayAdapter<Song> {
 	 */
 	private DataHolder[] mData;
 
+	/**
+	 * True to fill in songs that haven't been queried yet as they are shown
+	 */
+	private boolean mHydrateOnDemand = false;
+
+	/**
+	 * The batch query currently running, only one runs at a time
+	 */
+	private HydrateTask mHydrateTask;
+
+	/**
+	 * A row shown while the current batch was running, or -1
+	 */
+	private int mPendingPosition = -1;
+
 	/**
 	 * Constructor of <code>SongAdapter</code>
 	 * 
@@ -80,6 +103,12 @@ public class SongAdapter extends ArrayAdapter<Song> {
 			holder = (MusicHolder) convertView.getTag();
 		}
 
+		// Fill in this row and the ones around it if needed
+		if (mHydrateOnDemand
+				&& SongHydrator.needsHydration(getItem(position))) {
+			requestHydration(position);
+		}
+
 		// Retrieve the data holder
 		final DataHolder dataHolder = mData[position];
 
@@ -114,17 +143,7 @@ public class SongAdapter extends ArrayAdapter<Song> {
 	public void buildCache() {
 		mData = new DataHolder[getCount()];
 		for (int i = 0; i < getCount(); i++) {
-			// Build the song
-			final Song song = getItem(i);
-
-			// Build the data holder
-			mData[i] = new DataHolder();
-			// Song Id
-			mData[i].mItemId = song.getId();
-			// Song names (line one)
-			mData[i].mLineOne = song.getName();
-			// Album names (line two)
-			mData[i].mLineTwo = song.mAlbumName;
+			cacheItem(i);
 		}
 	}
 
@@ -132,8 +151,106 @@ public class SongAdapter extends ArrayAdapter<Song> {
 	 * Method that unloads and clears the items in the adapter
 	 */
 	public void unload() {
+		if (mHydrateTask != null) {
+			mHydrateTask.cancel(false);
+			mHydrateTask = null;
+		}
+		mPendingPosition = -1;
 		clear();
 		mData = null;
 	}
 
+	/**
+	 * @param hydrate
+	 *            True to fill in songs that haven't been queried yet in
+	 *            batches as they are shown, used for the queue whose songs only
+	 *            carry their id, name and artist
+	 */
+	public void setHydrateOnDemand(final boolean hydrate) {
+		mHydrateOnDemand = hydrate;
+	}
+
+	private void cacheItem(final int position) {
+		// Build the song
+		final Song song = getItem(position);
+
+		// Build the data holder
+		mData[position] = new DataHolder();
+		// Song Id
+		mData[position].mItemId = song.getId();
+		// Song names (line one)
+		mData[position].mLineOne = song.getName();
+		// Album names (line two)
+		mData[position].mLineTwo = song.mAlbumName;
+	}
+
+	/**
+	 * Starts a batch query for the rows around a position, or remembers the
+	 * position if a batch is already running.
+	 */
+	private void requestHydration(final int position) {
+		if (mHydrateTask != null) {
+			if (position < mHydrateTask.mFrom || position >= mHydrateTask.mTo) {
+				mPendingPosition = position;
+			}
+			return;
+		}
+		final int from = Math.max(0, position - HYDRATE_BEHIND);
+		final int to = Math.min(getCount(), from + SongHydrator.CHUNK_SIZE);
+		final Song[] window = new Song[to - from];
+		for (int i = 0; i < window.length; i++) {
+			window[i] = getItem(from + i);
+		}
+		mHydrateTask = new HydrateTask(from, to);
+		CommonUtils.execute(false, mHydrateTask, window);
+	}
+
+	/**
+	 * Fills in a window of songs with one batch query and refreshes their rows
+	 */
+	private final class HydrateTask extends AsyncTask<Song, Void, Void> {
+
+		private final int mFrom;
+
+		private final int mTo;
+
+		public HydrateTask(final int from, final int to) {
+			mFrom = from;
+			mTo = to;
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		protected Void doInBackground(final Song... params) {
+			SongHydrator.hydrate(getContext().getApplicationContext(), params);
+			return null;
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		protected void onPostExecute(final Void result) {
+			if (mHydrateTask != this) {
+				return;
+			}
+			mHydrateTask = null;
+			if (mData != null) {
+				final int to = Math.min(mTo, Math.min(getCount(), mData.length));
+				for (int i = mFrom; i < to; i++) {
+					cacheItem(i);
+				}
+				notifyDataSetChanged();
+			}
+			final int pending = mPendingPosition;
+			mPendingPosition = -1;
+			if (pending >= 0 && pending < getCount()
+					&& SongHydrator.needsHydration(getItem(pending))) {
+				requestHydration(pending);
+			}
+		}
+	}
+
 }
@@ -24,23 +24,31 @@ package com.boko.vimusic.api;
 import static com.boko.vimusic.api.StringUtilities.encode;
 import static com.boko.vimusic.api.StringUtilities.map;
 
-import java.io.BufferedReader;
 import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.io.StringReader;
 import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
 import java.net.Proxy;
 import java.net.URL;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
 import java.util.zip.GZIPInputStream;
 
-import org.xml.sax.SAXException;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import android.content.Context;
+import android.util.Log;
+import android.util.Xml;
 
 /**
  * The <code>Caller</code> class handles the low-level communication between the
@@ -56,9 +64,58 @@ import org.xml.sax.SAXException;
  */
 public class Caller {
 
+	private static final String TAG = "Caller";
+
+	private static final int IO_BUFFER_SIZE = 8 * 1024;
+
+	/**
+	 * Milliseconds to wait for a connection
+	 */
+	private static final int CONNECT_TIMEOUT = 10 * 1000;
+
+	/**
+	 * Milliseconds to wait for the next bytes of an answer
+	 */
+	private static final int READ_TIMEOUT = 15 * 1000;
+
+	/**
+	 * Calls retried after a network error or a server error
+	 */
+	private static final int MAX_RETRIES = 2;
+
+	/**
+	 * Milliseconds before the first retry, doubled for each further one
+	 */
+	private static final long RETRY_BACKOFF = 500;
+
+	/**
+	 * Calls running at once on the same host
+	 */
+	private static final int MAX_CONNECTIONS_PER_HOST = 2;
+
+	private static final int HTTP_TOO_MANY_REQUESTS = 429;
+
+	/**
+	 * Calls per second allowed by the hosts that throttle their clients
+	 */
+	private static final HashMap<String, Integer> RATE_LIMITS = new HashMap<String, Integer>();
+
+	static {
+		// Last.fm allows 5 calls per second
+		RATE_LIMITS.put("ws.audioscrobbler.com", 5);
+	}
+
+	/**
+	 * The {@link HostLimiter} of each host called
+	 */
+	private static final ConcurrentHashMap<String, HostLimiter> sLimiters = new ConcurrentHashMap<String, HostLimiter>();
+
 	private static Caller mInstance = null;
 
-	private Result lastResult;
+	/**
+	 * Set once a {@link Context} is known, calls aren't cached until then
+	 */
+	private volatile ResponseCache mResponseCache;
 
 	private Caller() {
 	}
@@ -73,6 +130,26 @@ public class Caller {
 		return mInstance;
 	}
 
+	/**
+	 * @param context
+	 *            The {@link Context} to use for the response cache
+	 * @return A new instance of this class
+	 */
+	public final static synchronized Caller getInstance(final Context context) {
+		final Caller caller = getInstance();
+		if (caller.mResponseCache == null && context != null) {
+			caller.mResponseCache = ResponseCache.getInstance(context);
+		}
+		return caller;
+	}
+
+	/**
+	 * @return The cache of the answers, or null if it isn't set up yet
+	 */
+	public ResponseCache getResponseCache() {
+		return mResponseCache;
+	}
+
 	/**
 	 * @param method
 	 * @param apiKey
@@ -81,33 +158,20 @@ public class Caller {
 	 * @throws CallException
 	 */
 	public Result call(final String apiUrl) {
-		InputStream inputStream = null;
-
-		// no entry in cache, load from web
-		if (inputStream == null) {
-			try {
-				final HttpURLConnection urlConnection = openGetConnection(apiUrl);
-				inputStream = getInputStreamFromConnection(urlConnection);
-
-				if ("gzip".equals(urlConnection.getContentEncoding())) {
-					inputStream = new GZIPInputStream(inputStream);
-				}
-				if (inputStream == null) {
-					lastResult = new Result(null);
-					return lastResult;
-				}
-			} catch (final IOException ignored) {
-			}
-		}
+		return load(apiUrl, null, RESULT_READER);
+	}
 
-		try {
-			final Result result = createResultFromInputStream(inputStream);
-			lastResult = result;
-			return result;
-		} catch (final IOException ignored) {
-		} catch (final SAXException ignored) {
-		}
-		return null;
+	/**
+	 * Performs a GET call and reads the response with a pull parser.
+	 * 
+	 * @param apiUrl
+	 *            The URL to call
+	 * @param parser
+	 *            Reads what is needed from the response
+	 * @return what the parser read, or null
+	 */
+	public <T> T call(final String apiUrl, final ResponseParser<T> parser) {
+		return load(apiUrl, null, new ParserReader<T>(parser));
 	}
 
 	/**
@@ -138,36 +202,218 @@ public class Caller {
 	 *            A Session instance or <code>null</code>
 	 * @return the result of the operation
 	 */
-	public Result call(final String apiUrl, Map<String, String> params) {
-		params = new WeakHashMap<String, String>(params);
-		InputStream inputStream = null;
+	public Result call(final String apiUrl, final Map<String, String> params) {
+		return load(apiUrl, new HashMap<String, String>(params),
+				RESULT_READER);
+	}
 
-		// no entry in cache, load from web
-		if (inputStream == null) {
-			try {
-				final HttpURLConnection urlConnection = openPostConnection(
-						apiUrl, params);
-				inputStream = getInputStreamFromConnection(urlConnection);
+	/**
+	 * Performs the web-service call and reads the response with a pull
+	 * parser, without building a document.
+	 * 
+	 * @param apiUrl
+	 *            The URL to call
+	 * @param params
+	 *            Parameters
+	 * @param parser
+	 *            Reads what is needed from the response
+	 * @return what the parser read, or null
+	 */
+	public <T> T call(final String apiUrl, final Map<String, String> params,
+			final ResponseParser<T> parser) {
+		return load(apiUrl, new HashMap<String, String>(params),
+				new ParserReader<T>(parser));
+	}
 
-				if ("gzip".equals(urlConnection.getContentEncoding())) {
-					inputStream = new GZIPInputStream(inputStream);
+	/**
+	 * Answers a call from the response cache when it holds a fresh answer,
+	 * otherwise loads it from the web and caches it. Responses that aren't
+	 * cached are read straight from the connection.
+	 * 
+	 * @param apiUrl
+	 *            The URL to call
+	 * @param params
+	 *            The parameters to post, or null for a GET
+	 * @param reader
+	 *            Reads the response
+	 * @return the result of the operation, or null if the call failed
+	 */
+	private <T> T load(final String apiUrl, final Map<String, String> params,
+			final BodyReader<T> reader) {
+		final ResponseCache responseCache = mResponseCache;
+		final long timeToLive = responseCache != null ? ResponseCache
+				.getTimeToLive(apiUrl, params) : 0;
+		final String key = timeToLive > 0 ? ResponseCache.getKey(apiUrl,
+				params) : null;
+		final ResponseCache.Response cached = key != null ? responseCache
+				.get(key) : null;
+		try {
+			if (cached != null && !cached.isExpired()) {
+				responseCache.recordHit(cached);
+				return reader.read(cached.getBody());
+			}
+		} catch (final IOException e) {
+			Log.e(TAG, "load - " + e);
+			return null;
+		} catch (final XmlPullParserException e) {
+			Log.e(TAG, "load - " + e);
+			return null;
+		}
+
+		// no fresh entry in cache, load from web
+		if (key != null) {
+			responseCache.recordMiss();
+		}
+		final HostLimiter limiter;
+		try {
+			limiter = getLimiter(new URL(apiUrl).getHost());
+		} catch (final MalformedURLException e) {
+			Log.e(TAG, "load - " + e);
+			return null;
+		}
+		long backoff = RETRY_BACKOFF;
+		for (int attempt = 0;; attempt++) {
+			try {
+				limiter.acquire();
+				try {
+					return fetch(apiUrl, params, reader, key, cached,
+							timeToLive);
+				} finally {
+					limiter.release();
 				}
-				if (inputStream == null) {
-					lastResult = new Result(null);
-					return lastResult;
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return null;
+			} catch (final XmlPullParserException e) {
+				// A malformed answer won't get better
+				Log.e(TAG, "load - " + e);
+				return null;
+			} catch (final IOException e) {
+				if (attempt >= MAX_RETRIES) {
+					Log.e(TAG, "load - " + apiUrl + ": " + e);
+					return null;
 				}
-			} catch (final IOException ignored) {
 			}
+			try {
+				Thread.sleep(backoff);
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return null;
+			}
+			backoff *= 2;
 		}
+	}
 
+	/**
+	 * Makes one attempt at a call.
+	 * 
+	 * @throws IOException
+	 *             if the call failed in a way worth retrying
+	 */
+	private <T> T fetch(final String apiUrl, final Map<String, String> params,
+			final BodyReader<T> reader, final String key,
+			final ResponseCache.Response cached, final long timeToLive)
+			throws IOException, XmlPullParserException {
+		final ResponseCache responseCache = mResponseCache;
+		final HttpURLConnection urlConnection = params != null ? openPostConnection(
+				apiUrl, params, cached) : openGetConnection(apiUrl, cached);
+		InputStream inputStream = null;
+		boolean reusable = false;
 		try {
-			final Result result = createResultFromInputStream(inputStream);
-			lastResult = result;
+			final int responseCode = urlConnection.getResponseCode();
+			if (responseCode >= HttpURLConnection.HTTP_INTERNAL_ERROR
+					|| responseCode == HTTP_TOO_MANY_REQUESTS) {
+				throw new IOException("HTTP " + responseCode);
+			}
+			if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED
+					&& cached != null) {
+				responseCache.putRevalidated(key, cached, timeToLive);
+				reusable = true;
+				return reader.read(cached.getBody());
+			}
+
+			inputStream = getInputStreamFromConnection(urlConnection);
+			if (inputStream == null) {
+				if (key != null
+						&& responseCode == HttpURLConnection.HTTP_NOT_FOUND) {
+					responseCache.put(key, null, timeToLive, true, null, null);
+				}
+				reusable = true;
+				return reader.read((String) null);
+			}
+			if ("gzip".equals(urlConnection.getContentEncoding())) {
+				inputStream = new GZIPInputStream(inputStream);
+			}
+			final T result;
+			if (key == null) {
+				result = reader.read(inputStream);
+			} else {
+				// The cache keeps the whole body
+				final String body = readBody(inputStream);
+				if (responseCode == HttpURLConnection.HTTP_OK) {
+					responseCache.put(key, body, timeToLive, false,
+							urlConnection.getHeaderField("ETag"),
+							urlConnection.getHeaderField("Last-Modified"));
+				} else if (ResponseCache.isNotFound(body)) {
+					responseCache.put(key, body, timeToLive, true, null, null);
+				}
+				result = reader.read(body);
+			}
+			reusable = true;
 			return result;
+		} finally {
+			if (reusable) {
+				// A connection is only kept alive once its body was read to
+				// the end and closed
+				if (inputStream != null) {
+					drain(inputStream);
+				} else {
+					drain(urlConnection.getErrorStream());
+				}
+			} else {
+				if (inputStream != null) {
+					try {
+						inputStream.close();
+					} catch (final IOException ignored) {
+					}
+				}
+				urlConnection.disconnect();
+			}
+		}
+	}
+
+	/**
+	 * Reads what is left of a response and closes it.
+	 */
+	private static void drain(final InputStream inputStream) {
+		if (inputStream == null) {
+			return;
+		}
+		try {
+			final byte[] buffer = new byte[IO_BUFFER_SIZE];
+			while (inputStream.read(buffer) != -1) {
+				// discard
+			}
 		} catch (final IOException ignored) {
-		} catch (final SAXException ignored) {
+		} finally {
+			try {
+				inputStream.close();
+			} catch (final IOException ignored) {
+			}
 		}
-		return null;
+	}
+
+	private static HostLimiter getLimiter(final String host) {
+		HostLimiter limiter = sLimiters.get(host);
+		if (limiter == null) {
+			final Integer rate = RATE_LIMITS.get(host);
+			limiter = new HostLimiter(rate != null ? rate : 0);
+			final HostLimiter existing = sLimiters.putIfAbsent(host, limiter);
+			if (existing != null) {
+				limiter = existing;
+			}
+		}
+		return limiter;
 	}
 
 	/**
@@ -186,6 +432,8 @@ public class Caller {
 		HttpURLConnection urlConnection;
 		urlConnection = (HttpURLConnection) u.openConnection();
 		urlConnection.setUseCaches(true);
+		urlConnection.setConnectTimeout(CONNECT_TIMEOUT);
+		urlConnection.setReadTimeout(READ_TIMEOUT);
 		return urlConnection;
 	}
 
@@ -196,11 +444,13 @@ public class Caller {
 	 * @throws IOException
 	 */
 	private HttpURLConnection openPostConnection(final String apiUrl,
-			final Map<String, String> params) throws IOException {
+			final Map<String, String> params,
+			final ResponseCache.Response cached) throws IOException {
 		final HttpURLConnection urlConnection = openConnection(apiUrl);
 		urlConnection.setRequestMethod("POST");
 		urlConnection.setDoOutput(true);
 		urlConnection.setUseCaches(true);
+		setValidators(urlConnection, cached);
 		final OutputStream outputStream = urlConnection.getOutputStream();
 		final BufferedWriter writer = new BufferedWriter(
 				new OutputStreamWriter(outputStream));
@@ -216,14 +466,37 @@ public class Caller {
 	 * @return
 	 * @throws IOException
 	 */
-	private HttpURLConnection openGetConnection(final String apiUrl)
-			throws IOException {
+	private HttpURLConnection openGetConnection(final String apiUrl,
+			final ResponseCache.Response cached) throws IOException {
 		final HttpURLConnection urlConnection = openConnection(apiUrl);
 		urlConnection.setRequestMethod("GET");
 		urlConnection.setUseCaches(true);
+		setValidators(urlConnection, cached);
 		return urlConnection;
 	}
 
+	/**
+	 * Asks the server to answer "not modified" if the expired answer in the
+	 * cache is still current.
+	 * 
+	 * @param connection
+	 * @param cached
+	 *            The expired answer, or null
+	 */
+	private void setValidators(final HttpURLConnection connection,
+			final ResponseCache.Response cached) {
+		if (cached == null) {
+			return;
+		}
+		if (cached.getETag() != null) {
+			connection.setRequestProperty("If-None-Match", cached.getETag());
+		}
+		if (cached.getLastModified() != null) {
+			connection.setRequestProperty("If-Modified-Since",
+					cached.getLastModified());
+		}
+	}
+
 	/**
 	 * @param connection
 	 * @return
@@ -245,24 +518,78 @@ public class Caller {
 
 	/**
 	 * @param inputStream
-	 * @return
-	 * @throws SAXException
+	 * @return the whole body, decoded as UTF-8
 	 * @throws IOException
 	 */
-	private Result createResultFromInputStream(final InputStream inputStream)
-			throws SAXException, IOException {
-		StringBuilder inputStringBuilder = new StringBuilder();
-
-		BufferedReader bufferedReader = new BufferedReader(
-				new InputStreamReader(inputStream, "UTF-8"));
-		String line = bufferedReader.readLine();
-		while (line != null) {
-			inputStringBuilder.append(line);
-			inputStringBuilder.append('\n');
-			line = bufferedReader.readLine();
+	private static String readBody(final InputStream inputStream)
+			throws IOException {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream(
+				IO_BUFFER_SIZE);
+		final byte[] buffer = new byte[IO_BUFFER_SIZE];
+		int count;
+		while ((count = inputStream.read(buffer)) != -1) {
+			out.write(buffer, 0, count);
 		}
+		return out.toString("UTF-8");
+	}
 
-		return new Result(inputStringBuilder.toString());
+	/**
+	 * Reads a response, either cached as a string or from the connection.
+	 */
+	private static abstract class BodyReader<T> {
+
+		abstract T read(String body) throws IOException,
+				XmlPullParserException;
+
+		abstract T read(InputStream inputStream) throws IOException,
+				XmlPullParserException;
+	}
+
+	/**
+	 * Keeps the whole response in a {@link Result}.
+	 */
+	private static final BodyReader<Result> RESULT_READER = new BodyReader<Result>() {
+
+		@Override
+		Result read(final String body) {
+			return new Result(body);
+		}
+
+		@Override
+		Result read(final InputStream inputStream) throws IOException {
+			return new Result(readBody(inputStream));
+		}
+	};
+
+	/**
+	 * Hands the response to a {@link ResponseParser}.
+	 */
+	private static final class ParserReader<T> extends BodyReader<T> {
+
+		private final ResponseParser<T> mParser;
+
+		ParserReader(final ResponseParser<T> parser) {
+			mParser = parser;
+		}
+
+		@Override
+		T read(final String body) throws IOException, XmlPullParserException {
+			if (body == null) {
+				return null;
+			}
+			final XmlPullParser parser = Xml.newPullParser();
+			parser.setInput(new StringReader(body));
+			return mParser.parse(parser);
+		}
+
+		@Override
+		T read(final InputStream inputStream) throws IOException,
+				XmlPullParserException {
+			final XmlPullParser parser = Xml.newPullParser();
+			// The encoding is taken from the XML declaration
+			parser.setInput(inputStream, null);
+			return mParser.parse(parser);
+		}
 	}
 
 	/**
@@ -298,4 +625,71 @@ public class Caller {
 		}
 		return builder.toString();
 	}
+
+	/**
+	 * Caps the calls running at once on a host, and how often they start when
+	 * the host throttles its clients.
+	 */
+	private static final class HostLimiter {
+
+		private final Semaphore mConnections = new Semaphore(
+				MAX_CONNECTIONS_PER_HOST, true);
+
+		/**
+		 * Calls per second, 0 if the host doesn't throttle
+		 */
+		private final int mRate;
+
+		/**
+		 * The tokens left in the bucket, one is taken per call
+		 */
+		private double mTokens;
+
+		private long mLastRefill;
+
+		HostLimiter(final int rate) {
+			mRate = rate;
+			mTokens = rate;
+			mLastRefill = System.currentTimeMillis();
+		}
+
+		/**
+		 * Waits for a free connection and, if the host throttles, a token.
+		 */
+		void acquire() throws InterruptedException {
+			mConnections.acquire();
+			try {
+				takeToken();
+			} catch (final InterruptedException e) {
+				mConnections.release();
+				throw e;
+			}
+		}
+
+		void release() {
+			mConnections.release();
+		}
+
+		private void takeToken() throws InterruptedException {
+			if (mRate <= 0) {
+				return;
+			}
+			while (true) {
+				final long wait;
+				synchronized (this) {
+					final long now = System.currentTimeMillis();
+					// The bucket holds one second's worth of calls at most
+					mTokens = Math.min(mRate, mTokens + (now - mLastRefill)
+							* mRate / 1000d);
+					mLastRefill = now;
+					if (mTokens >= 1) {
+						mTokens -= 1;
+						return;
+					}
+					wait = (long) Math.ceil((1 - mTokens) * 1000d / mRate);
+				}
+				Thread.sleep(wait);
+			}
+		}
+	}
 }
@@ -0,0 +1,449 @@
+/*
+ * Copyright (C) 2012 Andrew Neal Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law
+ * or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+
+package com.boko.vimusic.api;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.boko.vimusic.cache.ConcurrentLruCache;
+import com.boko.vimusic.cache.DiskLruCache;
+import com.boko.vimusic.cache.ImageCache;
+
+/**
+ * Keeps the responses of the web services {@link Caller} talks to, in memory
+ * and on the disk, so an artist shown in ten list cells is only looked up
+ * once. How long a response stays fresh depends on the call, expired responses
+ * are revalidated with their ETag or Last-Modified date when the server sent
+ * one. "Not found" answers are kept too, for a shorter time.
+ */
+public final class ResponseCache {
+
+	private static final String TAG = "ResponseCache";
+
+	/**
+	 * The directory of the disk cache, next to the image caches
+	 */
+	private static final String DISK_CACHE_DIR = "Responses";
+
+	/**
+	 * Characters of responses kept in memory
+	 */
+	private static final int MEM_CACHE_SIZE = 256 * 1024;
+
+	/**
+	 * Bytes of responses kept on the disk
+	 */
+	private static final long DISK_CACHE_SIZE = 4 * 1024 * 1024;
+
+	private static final int APP_VERSION = 1;
+
+	private static final int META_INDEX = 0;
+
+	private static final int BODY_INDEX = 1;
+
+	private static final long MINUTE = 60 * 1000L;
+
+	private static final long DAY = 24 * 60 * MINUTE;
+
+	/**
+	 * How long a "not found" answer is kept at most
+	 */
+	private static final long NEGATIVE_TIME_TO_LIVE = DAY;
+
+	/**
+	 * How long the Zing pages are kept, well below the lifetime of the stream
+	 * links in them
+	 */
+	private static final long ZING_TIME_TO_LIVE = 15 * MINUTE;
+
+	private static final String ZING_URL = "http://mp3.zing.vn/";
+
+	/**
+	 * How long the answers of the Last.fm methods are kept
+	 */
+	private static final HashMap<String, Long> TIME_TO_LIVE = new HashMap<String, Long>();
+
+	static {
+		TIME_TO_LIVE.put("artist.getInfo", 7 * DAY);
+		TIME_TO_LIVE.put("album.getInfo", 7 * DAY);
+		TIME_TO_LIVE.put("artist.getCorrection", 30 * DAY);
+	}
+
+	private static ResponseCache sInstance;
+
+	private final Context mContext;
+
+	private final ConcurrentLruCache<String, Response> mMemCache = new ConcurrentLruCache<String, Response>(
+			MEM_CACHE_SIZE) {
+
+		@Override
+		protected int sizeOf(final String key, final Response response) {
+			return key.length()
+					+ (response.mBody != null ? response.mBody.length() : 0);
+		}
+	};
+
+	/**
+	 * Opened on first use, as that happens off the main thread
+	 */
+	private DiskLruCache mDiskCache;
+
+	private boolean mDiskCacheOpened = false;
+
+	private final AtomicInteger mHitCount = new AtomicInteger();
+
+	private final AtomicInteger mNegativeHitCount = new AtomicInteger();
+
+	private final AtomicInteger mRevalidatedCount = new AtomicInteger();
+
+	private final AtomicInteger mMissCount = new AtomicInteger();
+
+	/**
+	 * Constructor of <code>ResponseCache</code>
+	 *
+	 * @param context
+	 *            The {@link Context} to use
+	 */
+	private ResponseCache(final Context context) {
+		mContext = context.getApplicationContext();
+	}
+
+	/**
+	 * Used to create a singleton of {@link ResponseCache}
+	 *
+	 * @param context
+	 *            The {@link Context} to use
+	 * @return A new instance of this class.
+	 */
+	public static final synchronized ResponseCache getInstance(
+			final Context context) {
+		if (sInstance == null) {
+			sInstance = new ResponseCache(context);
+		}
+		return sInstance;
+	}
+
+	/**
+	 * @param apiUrl
+	 *            The URL called
+	 * @param params
+	 *            The parameters posted, or null for a GET
+	 * @return How long the answer stays fresh in milliseconds, 0 if it isn't
+	 *         cached
+	 */
+	public static final long getTimeToLive(final String apiUrl,
+			final Map<String, String> params) {
+		if (params != null) {
+			final Long timeToLive = TIME_TO_LIVE.get(params.get("method"));
+			return timeToLive != null ? timeToLive : 0;
+		}
+		if (apiUrl.startsWith(ZING_URL)) {
+			return ZING_TIME_TO_LIVE;
+		}
+		return 0;
+	}
+
+	/**
+	 * @param apiUrl
+	 *            The URL called
+	 * @param params
+	 *            The parameters posted, or null for a GET
+	 * @return The key of the call, the same for the same parameters in any
+	 *         order
+	 */
+	public static final String getKey(final String apiUrl,
+			final Map<String, String> params) {
+		if (params == null) {
+			return apiUrl;
+		}
+		final StringBuilder builder = new StringBuilder(apiUrl);
+		char separator = '?';
+		for (final Map.Entry<String, String> param : new TreeMap<String, String>(
+				params).entrySet()) {
+			builder.append(separator).append(param.getKey()).append('=')
+					.append(param.getValue());
+			separator = '&';
+		}
+		return builder.toString();
+	}
+
+	/**
+	 * @param body
+	 *            The body of an answer that wasn't OK
+	 * @return True if the answer says the artist or album doesn't exist
+	 */
+	public static final boolean isNotFound(final String body) {
+		// Last.fm error 6: "The artist you supplied could not be found"
+		return body != null && body.contains("status=\"failed\"")
+				&& body.contains("code=\"6\"");
+	}
+
+	/**
+	 * @param key
+	 *            The key of the call
+	 * @return The cached answer, maybe expired, or null
+	 */
+	public Response get(final String key) {
+		Response response = mMemCache.get(key);
+		if (response == null) {
+			response = getFromDisk(key);
+			if (response != null) {
+				mMemCache.put(key, response);
+			}
+		}
+		return response;
+	}
+
+	/**
+	 * Caches an answer.
+	 *
+	 * @param key
+	 *            The key of the call
+	 * @param body
+	 *            The body of the answer, may be null
+	 * @param timeToLive
+	 *            How long the answer stays fresh
+	 * @param negative
+	 *            True if the answer is "not found"
+	 * @param eTag
+	 *            The ETag header, may be null
+	 * @param lastModified
+	 *            The Last-Modified header, may be null
+	 */
+	public void put(final String key, final String body, long timeToLive,
+			final boolean negative, final String eTag, final String lastModified) {
+		if (negative) {
+			timeToLive = Math.min(timeToLive, NEGATIVE_TIME_TO_LIVE);
+		}
+		final Response response = new Response(body, System.currentTimeMillis()
+				+ timeToLive, negative, eTag, lastModified);
+		mMemCache.put(key, response);
+		putOnDisk(key, response);
+	}
+
+	/**
+	 * Keeps an expired answer the server said is still current.
+	 *
+	 * @param key
+	 *            The key of the call
+	 * @param response
+	 *            The expired answer
+	 * @param timeToLive
+	 *            How long the answer stays fresh from now
+	 */
+	public void putRevalidated(final String key, final Response response,
+			final long timeToLive) {
+		mRevalidatedCount.incrementAndGet();
+		put(key, response.mBody, timeToLive, response.mNegative,
+				response.mETag, response.mLastModified);
+	}
+
+	/**
+	 * Counts a fresh answer served from the cache.
+	 */
+	public void recordHit(final Response response) {
+		mHitCount.incrementAndGet();
+		if (response.mNegative) {
+			mNegativeHitCount.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Counts a call that had to go to the server.
+	 */
+	public void recordMiss() {
+		mMissCount.incrementAndGet();
+	}
+
+	/**
+	 * @return The number of calls answered from the cache
+	 */
+	public int getHitCount() {
+		return mHitCount.get();
+	}
+
+	/**
+	 * @return The number of calls answered with a cached "not found"
+	 */
+	public int getNegativeHitCount() {
+		return mNegativeHitCount.get();
+	}
+
+	/**
+	 * @return The number of expired answers the server said are current
+	 */
+	public int getRevalidatedCount() {
+		return mRevalidatedCount.get();
+	}
+
+	/**
+	 * @return The number of calls that went to the server
+	 */
+	public int getMissCount() {
+		return mMissCount.get();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public String toString() {
+		final int hits = mHitCount.get();
+		final int calls = hits + mMissCount.get();
+		final int hitPercent = calls != 0 ? 100 * hits / calls : 0;
+		return String.format(
+				"ResponseCache[hits=%d,negativeHits=%d,revalidated=%d,misses=%d,hitRate=%d%%]",
+				hits, mNegativeHitCount.get(), mRevalidatedCount.get(),
+				mMissCount.get(), hitPercent);
+	}
+
+	private synchronized DiskLruCache getDiskCache() {
+		if (!mDiskCacheOpened) {
+			mDiskCacheOpened = true;
+			final File directory = ImageCache.getDiskCacheDir(mContext,
+					DISK_CACHE_DIR);
+			try {
+				mDiskCache = DiskLruCache.open(directory, APP_VERSION, 2,
+						DISK_CACHE_SIZE);
+			} catch (final IOException e) {
+				Log.e(TAG, "getDiskCache - " + e);
+			}
+		}
+		return mDiskCache;
+	}
+
+	private Response getFromDisk(final String key) {
+		final DiskLruCache diskCache = getDiskCache();
+		if (diskCache == null) {
+			return null;
+		}
+		DiskLruCache.Snapshot snapshot = null;
+		try {
+			snapshot = diskCache.get(ImageCache.hashKeyForDisk(key));
+			if (snapshot == null) {
+				return null;
+			}
+			final String[] meta = snapshot.getString(META_INDEX).split("\n",
+					-1);
+			final String body = snapshot.getString(BODY_INDEX);
+			return new Response("1".equals(meta[2]) ? body : null,
+					Long.parseLong(meta[0]), "1".equals(meta[1]),
+					meta[3].length() > 0 ? meta[3] : null,
+					meta[4].length() > 0 ? meta[4] : null);
+		} catch (final IOException e) {
+			Log.e(TAG, "getFromDisk - " + e);
+		} catch (final RuntimeException e) {
+			// An entry written by another version, drop it
+			Log.e(TAG, "getFromDisk - " + e);
+		} finally {
+			if (snapshot != null) {
+				snapshot.close();
+			}
+		}
+		return null;
+	}
+
+	private void putOnDisk(final String key, final Response response) {
+		final DiskLruCache diskCache = getDiskCache();
+		if (diskCache == null) {
+			return;
+		}
+		try {
+			final DiskLruCache.Editor editor = diskCache.edit(ImageCache
+					.hashKeyForDisk(key));
+			if (editor == null) {
+				// Another thread is writing the entry
+				return;
+			}
+			boolean committed = false;
+			try {
+				editor.set(META_INDEX, response.mExpires + "\n"
+						+ (response.mNegative ? "1" : "0") + "\n"
+						+ (response.mBody != null ? "1" : "0") + "\n"
+						+ (response.mETag != null ? response.mETag : "") + "\n"
+						+ (response.mLastModified != null ? response.mLastModified
+								: ""));
+				editor.set(BODY_INDEX, response.mBody != null ? response.mBody
+						: "");
+				editor.commit();
+				committed = true;
+			} finally {
+				if (!committed) {
+					editor.abort();
+				}
+			}
+		} catch (final IOException e) {
+			Log.e(TAG, "putOnDisk - " + e);
+		}
+	}
+
+	/**
+	 * A cached answer.
+	 */
+	public static final class Response {
+
+		private final String mBody;
+
+		private final long mExpires;
+
+		private final boolean mNegative;
+
+		private final String mETag;
+
+		private final String mLastModified;
+
+		private Response(final String body, final long expires,
+				final boolean negative, final String eTag,
+				final String lastModified) {
+			mBody = body;
+			mExpires = expires;
+			mNegative = negative;
+			mETag = eTag;
+			mLastModified = lastModified;
+		}
+
+		/**
+		 * @return The body of the answer, may be null
+		 */
+		public String getBody() {
+			return mBody;
+		}
+
+		/**
+		 * @return True if the answer must be revalidated or fetched again
+		 */
+		public boolean isExpired() {
+			return System.currentTimeMillis() >= mExpires;
+		}
+
+		/**
+		 * @return The ETag header, may be null
+		 */
+		public String getETag() {
+			return mETag;
+		}
+
+		/**
+		 * @return The Last-Modified header, may be null
+		 */
+		public String getLastModified() {
+			return mLastModified;
+		}
+	}
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2012 Andrew Neal Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law
+ * or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+
+package com.boko.vimusic.api;
+
+import java.io.IOException;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+/**
+ * Reads the few fields a call needs straight off an XML response with a pull
+ * parser, instead of building a {@link Result} document and searching it.
+ *
+ * @param <T>
+ *            The type read from the response
+ */
+public abstract class ResponseParser<T> {
+
+	/**
+	 * Reads a response. The parser is positioned before the document start,
+	 * the reader may stop as soon as it has what it needs.
+	 *
+	 * @param parser
+	 *            The {@link XmlPullParser} over the response
+	 * @return What was read, or null if the response holds nothing useful
+	 */
+	public abstract T parse(XmlPullParser parser)
+			throws XmlPullParserException, IOException;
+
+	/**
+	 * Moves to the next start tag at the given depth, without leaving the
+	 * element the parser is in.
+	 *
+	 * @param parser
+	 *            The {@link XmlPullParser} to move
+	 * @param depth
+	 *            The depth of the start tag, 1 for the document element
+	 * @return True if the parser is on a start tag, false if the enclosing
+	 *         element or the document ended
+	 */
+	public static boolean nextStartTag(final XmlPullParser parser,
+			final int depth) throws XmlPullParserException, IOException {
+		int event = parser.next();
+		while (event != XmlPullParser.END_DOCUMENT) {
+			if (event == XmlPullParser.START_TAG && parser.getDepth() == depth) {
+				return true;
+			}
+			if (event == XmlPullParser.END_TAG && parser.getDepth() < depth) {
+				return false;
+			}
+			event = parser.next();
+		}
+		return false;
+	}
+
+	/**
+	 * Reads the text of the element the parser is on and moves to its end
+	 * tag.
+	 *
+	 * @param parser
+	 *            The {@link XmlPullParser} on a start tag
+	 * @return The trimmed text of the element, null if it is empty
+	 */
+	public static String readText(final XmlPullParser parser)
+			throws XmlPullParserException, IOException {
+		final String text = parser.nextText();
+		if (text == null) {
+			return null;
+		}
+		final String trimmed = text.trim();
+		return trimmed.length() > 0 ? trimmed : null;
+	}
+}
@@ -21,17 +21,21 @@
 
 package com.boko.vimusic.api.lastfm;
 
+import java.io.IOException;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.Locale;
 import java.util.Map;
 
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
 import android.content.Context;
 
 import com.boko.vimusic.Config;
 import com.boko.vimusic.api.Caller;
 import com.boko.vimusic.api.DomElement;
-import com.boko.vimusic.api.Result;
+import com.boko.vimusic.api.ResponseParser;
 
 /**
  * Wrapper class for Album related API calls and Album Bean.
@@ -40,6 +44,34 @@ import com.boko.vimusic.api.Result;
  */
 public class Album extends com.boko.vimusic.model.Album {
 
+	/**
+	 * Reads the artist and the extra large image of an album.getInfo response
+	 */
+	private static final ResponseParser<Album> INFO_PARSER = new ResponseParser<Album>() {
+
+		@Override
+		public Album parse(final XmlPullParser parser)
+				throws XmlPullParserException, IOException {
+			// <lfm><album>
+			if (!nextStartTag(parser, 1) || !nextStartTag(parser, 2)
+					|| !"album".equals(parser.getName())) {
+				return null;
+			}
+			final Album album = new Album(null, null, null, 0, null);
+			final int depth = parser.getDepth() + 1;
+			while (nextStartTag(parser, depth)) {
+				if ("image".equals(parser.getName())
+						&& Artist.isExtraLarge(parser.getAttributeValue(null,
+								"size"))) {
+					album.mAvatarUrl = readText(parser);
+				} else if ("artist".equals(parser.getName())) {
+					album.mArtistName = readArtistName(parser);
+				}
+			}
+			return album;
+		}
+	};
+
 	public Album(String albumId, String albumName, String artistName,
 			int songNumber, String albumYear) {
 		super(albumId, albumName, artistName, songNumber, albumYear);
@@ -85,9 +117,36 @@ public class Album extends com.boko.vimusic.model.Album {
 		params.put("album", albumOrMbid);
 		params.put("username", username);
 		params.put("api_key", apiKey);
-		final Result result = Caller.getInstance().call(
-				"http://ws.audioscrobbler.com/2.0/", params);
-		return createItemFromElement(result.getContentElement());
+		return Caller.getInstance(context).call(
+				"http://ws.audioscrobbler.com/2.0/", params, INFO_PARSER);
+	}
+
+	/**
+	 * Reads the artist element the parser is on, which either holds the name
+	 * or a name element.
+	 */
+	private static String readArtistName(final XmlPullParser parser)
+			throws XmlPullParserException, IOException {
+		final int depth = parser.getDepth();
+		String text = null;
+		String name = null;
+		int event = parser.next();
+		while (event != XmlPullParser.END_DOCUMENT
+				&& !(event == XmlPullParser.END_TAG && parser.getDepth() == depth)) {
+			if (event == XmlPullParser.TEXT && parser.getDepth() == depth) {
+				text = text != null ? text + parser.getText() : parser
+						.getText();
+			} else if (event == XmlPullParser.START_TAG
+					&& parser.getDepth() == depth + 1
+					&& "name".equals(parser.getName())) {
+				name = ResponseParser.readText(parser);
+			}
+			event = parser.next();
+		}
+		if (name != null) {
+			return name;
+		}
+		return text != null && text.trim().length() > 0 ? text.trim() : null;
 	}
 
 	public static Album createItemFromElement(final DomElement element) {
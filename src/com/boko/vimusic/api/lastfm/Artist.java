@@ -21,17 +21,24 @@
 
 package com.boko.vimusic.api.lastfm;
 
+import static com.boko.vimusic.api.StringUtilities.map;
+
+import java.io.IOException;
 import java.util.Collection;
 import java.util.Locale;
 import java.util.Map;
 import java.util.WeakHashMap;
 
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
 import android.content.Context;
 
 import com.boko.vimusic.Config;
 import com.boko.vimusic.api.Caller;
 import com.boko.vimusic.api.DomElement;
-import com.boko.vimusic.api.Result;
+import com.boko.vimusic.api.ResponseParser;
+import com.boko.vimusic.provider.ArtistCorrectionStore;
 
 /**
  * Bean that contains artist information.<br/>
@@ -43,6 +50,28 @@ import com.boko.vimusic.api.Result;
  */
 public class Artist extends com.boko.vimusic.model.Artist {
 
+	/**
+	 * Reads the artist of an artist.getInfo response
+	 */
+	private static final ResponseParser<Artist> INFO_PARSER = new ResponseParser<Artist>() {
+
+		@Override
+		public Artist parse(final XmlPullParser parser)
+				throws XmlPullParserException, IOException {
+			// <lfm><artist>
+			if (!nextStartTag(parser, 1) || !nextStartTag(parser, 2)
+					|| !"artist".equals(parser.getName())) {
+				return null;
+			}
+			return readArtist(parser);
+		}
+	};
+
+	/**
+	 * The MusicBrainz ID of the artist
+	 */
+	private String mMbid;
+
 	/**
 	 * @param artistId
 	 * @param artistName
@@ -54,6 +83,21 @@ public class Artist extends com.boko.vimusic.model.Artist {
 		super(artistId, artistName, songNumber, albumNumber);
 	}
 
+	/**
+	 * @return The MusicBrainz ID of the artist, or <code>null</code>
+	 */
+	public String getMbid() {
+		return mMbid;
+	}
+
+	/**
+	 * @param mbid
+	 *            The MusicBrainz ID of the artist
+	 */
+	public void setMbid(final String mbid) {
+		mMbid = mbid;
+	}
+
 	/**
 	 * Retrieves detailed artist info for the given artist or mbid entry.
 	 * 
@@ -68,7 +112,9 @@ public class Artist extends com.boko.vimusic.model.Artist {
 	}
 
 	/**
-	 * Retrieves detailed artist info for the given artist or mbid entry.
+	 * Retrieves detailed artist info for the given artist or mbid entry. A
+	 * name already in the {@link ArtistCorrectionStore} is looked up by its
+	 * correction, otherwise Last.fm corrects it and the correction is stored.
 	 * 
 	 * @param artistOrMbid
 	 *            Name of the artist or an mbid
@@ -80,23 +126,33 @@ public class Artist extends com.boko.vimusic.model.Artist {
 	 */
 	public final static Artist getInfo(final Context context,
 			final String artistOrMbid, final Locale locale, final String apiKey) {
+		final ArtistCorrectionStore store = ArtistCorrectionStore
+				.getInstance(context);
+		final Artist correction = store.read(artistOrMbid);
 		final Map<String, String> mParams = new WeakHashMap<String, String>();
 		mParams.put("method", "artist.getInfo");
-		mParams.put("artist", artistOrMbid);
+		mParams.put("artist", correction != null ? correction.getName()
+				: artistOrMbid);
+		mParams.put("autocorrect", "1");
 		if (locale != null && locale.getLanguage().length() != 0) {
 			mParams.put("lang", locale.getLanguage());
 		}
 		mParams.put("api_key", apiKey);
-		final Result mResult = Caller.getInstance().call(
-				"http://ws.audioscrobbler.com/2.0/", mParams);
-		return createItemFromElement(mResult.getContentElement());
+		final Artist artist = Caller.getInstance(context).call(
+				"http://ws.audioscrobbler.com/2.0/", mParams, INFO_PARSER);
+		if (correction == null && artist != null) {
+			// The name in an autocorrected response is the canonical one
+			store.write(artistOrMbid, artist);
+		}
+		return artist;
 	}
 
 	/**
 	 * Use the last.fm corrections data to check whether the supplied artist has
 	 * a correction to a canonical artist. This method returns a new
 	 * {@link Artist} object containing the corrected data, or <code>null</code>
-	 * if the supplied Artist was not found.
+	 * if the supplied Artist was not found. Corrections are kept in the
+	 * {@link ArtistCorrectionStore}, so each name is only sent once.
 	 * 
 	 * @param artist
 	 *            The artist name to correct
@@ -104,19 +160,94 @@ public class Artist extends com.boko.vimusic.model.Artist {
 	 */
 	public final static Artist getCorrection(final Context context,
 			final String artist) {
-		Result result = null;
-		try {
-			result = Caller.getInstance().call("artist.getCorrection",
-					Config.LASTFM_API_KEY, "artist", artist);
-			final DomElement correctionElement = result.getContentElement()
-					.getChild("correction");
-			if (correctionElement == null) {
-				return new Artist(null, artist, 0, 0);
+		final ArtistCorrectionStore store = ArtistCorrectionStore
+				.getInstance(context);
+		final Artist stored = store.read(artist);
+		if (stored != null) {
+			return stored;
+		}
+		final Artist correction = fetchCorrection(context, artist);
+		store.write(artist, correction);
+		return correction;
+	}
+
+	private static Artist fetchCorrection(final Context context,
+			final String artist) {
+		return Caller.getInstance(context).call(
+				"http://ws.audioscrobbler.com/2.0/",
+				map("method", "artist.getCorrection", "artist", artist,
+						"api_key", Config.LASTFM_API_KEY),
+				new ResponseParser<Artist>() {
+
+					@Override
+					public Artist parse(final XmlPullParser parser)
+							throws XmlPullParserException, IOException {
+						// <lfm><corrections><correction><artist>
+						if (!nextStartTag(parser, 1)) {
+							return null;
+						}
+						// Error bodies are read too, only a successful
+						// answer can tell there is nothing to correct
+						if (!"ok".equals(parser.getAttributeValue(null,
+								"status"))) {
+							return null;
+						}
+						if (nextStartTag(parser, 2)
+								&& "corrections".equals(parser.getName())
+								&& nextStartTag(parser, 3)
+								&& nextStartTag(parser, 4)
+								&& "artist".equals(parser.getName())) {
+							final Artist correction = readArtist(parser);
+							if (correction.getName() != null) {
+								return correction;
+							}
+						}
+						return new Artist(null, artist, 0, 0);
+					}
+				});
+	}
+
+	/**
+	 * Reads the name, the MusicBrainz ID and the extra large image of the
+	 * artist element the parser is on.
+	 */
+	private static Artist readArtist(final XmlPullParser parser)
+			throws XmlPullParserException, IOException {
+		final int depth = parser.getDepth() + 1;
+		String name = null;
+		String mbid = null;
+		String avatarUrl = null;
+		while (ResponseParser.nextStartTag(parser, depth)) {
+			if ("name".equals(parser.getName())) {
+				name = ResponseParser.readText(parser);
+			} else if ("mbid".equals(parser.getName())) {
+				mbid = ResponseParser.readText(parser);
+			} else if ("image".equals(parser.getName())
+					&& isExtraLarge(parser.getAttributeValue(null, "size"))) {
+				avatarUrl = ResponseParser.readText(parser);
 			}
-			final DomElement artistElem = correctionElement.getChild("artist");
-			return createItemFromElement(artistElem);
-		} catch (final Exception ignored) {
-			return null;
+		}
+		final Artist artist = new Artist(null, name, 0, 0);
+		artist.mMbid = mbid;
+		artist.mAvatarUrl = avatarUrl;
+		return artist;
+	}
+
+	/**
+	 * @param attribute
+	 *            The size attribute of an image element
+	 * @return True if the image is the extra large one
+	 */
+	static boolean isExtraLarge(final String attribute) {
+		if (attribute == null) {
+			return false;
+		}
+		try {
+			return ImageSize.valueOf(attribute.toUpperCase(Locale.ENGLISH))
+					== ImageSize.EXTRALARGE;
+		} catch (final IllegalArgumentException e) {
+			// if they suddenly again introduce a new image size
+			return false;
 		}
 	}
 
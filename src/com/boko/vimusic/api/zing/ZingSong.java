@@ -1,13 +1,17 @@
 package com.boko.vimusic.api.zing;
 
+import java.io.IOException;
 import java.util.Vector;
 
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
 import android.content.Context;
 
 import com.boko.vimusic.api.Caller;
-import com.boko.vimusic.api.DomElement;
 import com.boko.vimusic.api.HTMLLinkExtractor;
 import com.boko.vimusic.api.Result;
+import com.boko.vimusic.api.ResponseParser;
 import com.boko.vimusic.model.HostType;
 
 public class ZingSong extends com.boko.vimusic.model.Song {
@@ -15,6 +19,33 @@ public class ZingSong extends com.boko.vimusic.model.Song {
 	private static final String DETAIL_URL = "http://mp3.zing.vn/bai-hat/bai-hat/";
 	private static final String XML_URL = "http://mp3.zing.vn/xml/song-xml/";
 	private static final String DOWNLOAD_URL = "http://mp3.zing.vn/download/song/";
+	// The stream links are signed and stop working after a while
+	private static final long LINK_LIFETIME = 6 * 60 * 60 * 1000;
+
+	/**
+	 * Reads the title, performer and stream link of the song XML
+	 */
+	private final class SongParser extends ResponseParser<ZingSong> {
+
+		@Override
+		public ZingSong parse(final XmlPullParser parser)
+				throws XmlPullParserException, IOException {
+			// The fields are children of the first element in the document
+			if (!nextStartTag(parser, 1) || !nextStartTag(parser, 2)) {
+				return null;
+			}
+			while (nextStartTag(parser, 3)) {
+				if ("title".equals(parser.getName())) {
+					mName = readText(parser);
+				} else if ("performer".equals(parser.getName())) {
+					mArtistName = readText(parser);
+				} else if ("source".equals(parser.getName())) {
+					mLinkPlay = readText(parser);
+				}
+			}
+			return ZingSong.this;
+		}
+	}
 
 	public ZingSong(String id) {
 		super(id);
@@ -25,12 +56,19 @@ public class ZingSong extends com.boko.vimusic.model.Song {
 		synchronized (this) {
 			if (getId() != null) {
 				String url = DETAIL_URL + getId() + ".html";
-				final Result result = Caller.getInstance().call(url);
-				readFromElement(result.getResultRaw());
+				final Result result = Caller.getInstance(context).call(url);
+				if (result != null) {
+					readFromElement(result.getResultRaw());
+				}
 			}
 		}
 	}
 	
+	@Override
+	protected long getLinkLifetime() {
+		return LINK_LIFETIME;
+	}
+
 	private void readFromElement(final String htmlResponse) {
 		if (htmlResponse == null) {
 			return;
@@ -39,12 +77,8 @@ public class ZingSong extends com.boko.vimusic.model.Song {
 
 		for (String url : urls) {
 			if (url.startsWith(XML_URL) && mLinkPlay == null) {
-				final Result rs = Caller.getInstance().call(
-						url.replace("&amp;", "&"));
-				DomElement element = rs.getContentElement();
-				mName = element.getChildText("title");
-				mArtistName = element.getChildText("performer");
-				mLinkPlay = element.getChildText("source");
+				Caller.getInstance().call(url.replace("&amp;", "&"),
+						new SongParser());
 			}
 			if (url.startsWith(DOWNLOAD_URL)) {
 				mLinkDownload = url;
@@ -0,0 +1,244 @@
+/*
+ * Copyright (C) 2012 Andrew Neal Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law
+ * or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+
+package com.boko.vimusic.cache;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.content.Context;
+import android.os.Process;
+import android.provider.MediaStore;
+import android.text.TextUtils;
+
+import com.boko.vimusic.cache.ImageWorker.ImageType;
+import com.boko.vimusic.model.Album;
+import com.boko.vimusic.model.Artist;
+import com.boko.vimusic.utils.CommonUtils;
+
+/**
+ * Fetches the missing artwork of a whole album or artist list in the
+ * background once a loader has read it, so scrolling the list only ever
+ * decodes images that are already on the device.
+ * <p>
+ * The artwork URLs are resolved through the web services, whose answers are
+ * kept by {@link com.boko.vimusic.api.ResponseCache}, and the images are
+ * stored encoded in the disk cache.
+ */
+public final class ArtworkPrefetcher {
+
+	/**
+	 * Threads resolving and downloading artwork
+	 */
+	private static final int POOL_SIZE = 2;
+
+	/**
+	 * Most images waiting to be fetched, the rest of a list is left for the
+	 * next time it loads
+	 */
+	private static final int QUEUE_CAPACITY = 64;
+
+	/**
+	 * Idle threads are stopped after this many seconds
+	 */
+	private static final int KEEP_ALIVE = 10;
+
+	private static ArtworkPrefetcher sInstance;
+
+	private final Context mContext;
+
+	private final ImageFetcher mImageFetcher;
+
+	private final ImageCache mImageCache;
+
+	private final ThreadPoolExecutor mExecutor;
+
+	/**
+	 * The cache keys waiting or being fetched, so a list loaded twice isn't
+	 * fetched twice
+	 */
+	private final Set<String> mPendingKeys = Collections
+			.synchronizedSet(new HashSet<String>());
+
+	/**
+	 * Images stored in the disk cache
+	 */
+	private final AtomicInteger mFetchedCount = new AtomicInteger();
+
+	/**
+	 * Used to create a singleton of {@link ArtworkPrefetcher}
+	 *
+	 * @param context
+	 *            The {@link Context} to use
+	 * @return A new instance of this class.
+	 */
+	public static final synchronized ArtworkPrefetcher getInstance(
+			final Context context) {
+		if (sInstance == null) {
+			sInstance = new ArtworkPrefetcher(context.getApplicationContext());
+		}
+		return sInstance;
+	}
+
+	/**
+	 * Constructor of <code>ArtworkPrefetcher</code>
+	 *
+	 * @param context
+	 *            The {@link Context} to use
+	 */
+	private ArtworkPrefetcher(final Context context) {
+		mContext = context;
+		mImageCache = ImageCache.getInstance(context);
+		mImageFetcher = new ImageFetcher(context);
+		mImageFetcher.setImageCache(mImageCache);
+		mExecutor = new ThreadPoolExecutor(POOL_SIZE, POOL_SIZE, KEEP_ALIVE,
+				TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(QUEUE_CAPACITY),
+				new ThreadFactory() {
+
+					private final AtomicInteger mCount = new AtomicInteger(1);
+
+					@Override
+					public Thread newThread(final Runnable r) {
+						return new Thread(r, "ArtworkPrefetch #"
+								+ mCount.getAndIncrement()) {
+
+							@Override
+							public void run() {
+								Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+								super.run();
+							}
+						};
+					}
+				});
+		mExecutor.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * Fetches the missing artwork of a list of albums.
+	 *
+	 * @param albums
+	 *            The albums, in the order they are shown
+	 */
+	public void prefetchAlbums(final List<Album> albums) {
+		if (!CommonUtils.isOnline(mContext)) {
+			return;
+		}
+		for (final Album album : albums) {
+			if (isUnknown(album.mArtistName) || isUnknown(album.getName())) {
+				continue;
+			}
+			if (!submit(ImageFetcher.generateAlbumCacheKey(album.getName(),
+					album.mArtistName), album.mArtistName, album.getName(),
+					album.getId(), ImageType.ALBUM)) {
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Fetches the missing images of a list of artists.
+	 *
+	 * @param artists
+	 *            The artists, in the order they are shown
+	 */
+	public void prefetchArtists(final List<Artist> artists) {
+		if (!CommonUtils.isOnline(mContext)) {
+			return;
+		}
+		for (final Artist artist : artists) {
+			if (isUnknown(artist.getName())) {
+				continue;
+			}
+			if (!submit(artist.getName(), artist.getName(), null, null,
+					ImageType.ARTIST)) {
+				break;
+			}
+		}
+	}
+
+	/**
+	 * @return The number of images stored in the disk cache
+	 */
+	public int getFetchedCount() {
+		return mFetchedCount.get();
+	}
+
+	/**
+	 * @return The number of images waiting to be fetched
+	 */
+	public int getQueueDepth() {
+		return mExecutor.getQueue().size();
+	}
+
+	/**
+	 * Queues one image unless it is cached or queued already.
+	 * 
+	 * @return False if the queue is full
+	 */
+	private boolean submit(final String key, final String artistName,
+			final String albumName, final String albumId,
+			final ImageType imageType) {
+		// Only missing images take a place in the queue
+		if (mImageCache.isInDiskCache(key) || !mPendingKeys.add(key)) {
+			return true;
+		}
+		try {
+			mExecutor.execute(new Runnable() {
+
+				@Override
+				public void run() {
+					try {
+						fetch(key, artistName, albumName, albumId, imageType);
+					} finally {
+						mPendingKeys.remove(key);
+					}
+				}
+			});
+		} catch (final RejectedExecutionException e) {
+			mPendingKeys.remove(key);
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Resolves and downloads one image, unless the device already has it.
+	 */
+	private void fetch(final String key, final String artistName,
+			final String albumName, final String albumId,
+			final ImageType imageType) {
+		// The connection may have dropped since the list was submitted
+		if (!CommonUtils.isOnline(mContext) || mImageCache.isInDiskCache(key)) {
+			return;
+		}
+		if (imageType == ImageType.ALBUM
+				&& mImageCache.hasArtworkFile(mContext, albumId)) {
+			return;
+		}
+		final String url = mImageFetcher.processImageUrl(artistName,
+				albumName, imageType);
+		if (url != null && mImageFetcher.downloadToDiskCache(key, url)) {
+			mFetchedCount.incrementAndGet();
+		}
+	}
+
+	private static boolean isUnknown(final String name) {
+		return TextUtils.isEmpty(name) || MediaStore.UNKNOWN_STRING.equals(name);
+	}
+}
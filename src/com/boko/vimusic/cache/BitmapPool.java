@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2012 Andrew Neal Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law
+ * or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+
+package com.boko.vimusic.cache;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+
+import android.graphics.Bitmap;
+
+/**
+ * Holds bitmaps nobody uses anymore so the next decode of an image with the
+ * same dimensions can reuse them through
+ * {@link android.graphics.BitmapFactory.Options#inBitmap} instead of
+ * allocating a new one. Before KitKat a bitmap can only be reused for an image
+ * of exactly its size decoded without sampling, so bitmaps are kept by their
+ * dimensions.
+ * <p>
+ * Bitmaps only get here through {@link ReusableBitmap}, which knows when the
+ * memory cache and every view have let go of them.
+ */
+public final class BitmapPool {
+
+	/**
+	 * The pooled bitmaps by dimensions
+	 */
+	private final HashMap<Long, ArrayList<Bitmap>> mBitmaps = new HashMap<Long, ArrayList<Bitmap>>();
+
+	/**
+	 * The pooled bitmaps, oldest first
+	 */
+	private final LinkedList<Bitmap> mOrder = new LinkedList<Bitmap>();
+
+	/**
+	 * Most bytes held by the pool
+	 */
+	private final int mMaxSize;
+
+	/**
+	 * Bytes held by the pool
+	 */
+	private int mSize = 0;
+
+	private int mHitCount = 0;
+
+	private int mMissCount = 0;
+
+	/**
+	 * Constructor of <code>BitmapPool</code>
+	 *
+	 * @param maxSize
+	 *            The most bytes the pool holds
+	 */
+	public BitmapPool(final int maxSize) {
+		mMaxSize = maxSize;
+	}
+
+	/**
+	 * Offers a bitmap nobody uses anymore to the pool.
+	 *
+	 * @param bitmap
+	 *            The {@link Bitmap} to reuse
+	 */
+	public synchronized void put(final Bitmap bitmap) {
+		if (bitmap == null || bitmap.isRecycled() || !bitmap.isMutable()
+				|| bitmap.getConfig() != Bitmap.Config.ARGB_8888) {
+			return;
+		}
+		final int bitmapSize = bitmap.getByteCount();
+		if (bitmapSize > mMaxSize) {
+			return;
+		}
+		final Long key = getKey(bitmap.getWidth(), bitmap.getHeight());
+		ArrayList<Bitmap> bitmaps = mBitmaps.get(key);
+		if (bitmaps == null) {
+			bitmaps = new ArrayList<Bitmap>(2);
+			mBitmaps.put(key, bitmaps);
+		}
+		bitmaps.add(bitmap);
+		mOrder.addLast(bitmap);
+		mSize += bitmapSize;
+		trimToSize(mMaxSize);
+	}
+
+	/**
+	 * Takes a bitmap out of the pool.
+	 *
+	 * @param width
+	 *            The width of the image to decode
+	 * @param height
+	 *            The height of the image to decode
+	 * @return A {@link Bitmap} of these dimensions, or null if there is none
+	 */
+	public synchronized Bitmap get(final int width, final int height) {
+		final ArrayList<Bitmap> bitmaps = mBitmaps.get(getKey(width, height));
+		if (bitmaps == null || bitmaps.isEmpty()) {
+			mMissCount++;
+			return null;
+		}
+		final Bitmap bitmap = bitmaps.remove(bitmaps.size() - 1);
+		if (bitmaps.isEmpty()) {
+			mBitmaps.remove(getKey(width, height));
+		}
+		mOrder.remove(bitmap);
+		mSize -= bitmap.getByteCount();
+		mHitCount++;
+		return bitmap;
+	}
+
+	/**
+	 * Drops the oldest bitmaps until the pool holds no more than the given
+	 * bytes.
+	 *
+	 * @param maxSize
+	 *            The most bytes to keep
+	 */
+	public synchronized void trimToSize(final int maxSize) {
+		while (mSize > maxSize && !mOrder.isEmpty()) {
+			final Bitmap bitmap = mOrder.removeFirst();
+			final Long key = getKey(bitmap.getWidth(), bitmap.getHeight());
+			final ArrayList<Bitmap> bitmaps = mBitmaps.get(key);
+			bitmaps.remove(bitmap);
+			if (bitmaps.isEmpty()) {
+				mBitmaps.remove(key);
+			}
+			mSize -= bitmap.getByteCount();
+		}
+	}
+
+	/**
+	 * Drops every bitmap in the pool.
+	 */
+	public void clear() {
+		trimToSize(0);
+	}
+
+	/**
+	 * @return The bytes held by the pool
+	 */
+	public synchronized int size() {
+		return mSize;
+	}
+
+	/**
+	 * @return The most bytes the pool holds
+	 */
+	public int maxSize() {
+		return mMaxSize;
+	}
+
+	/**
+	 * @return The number of decodes that reused a bitmap
+	 */
+	public synchronized int hitCount() {
+		return mHitCount;
+	}
+
+	/**
+	 * @return The number of decodes that found no bitmap to reuse
+	 */
+	public synchronized int missCount() {
+		return mMissCount;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public synchronized String toString() {
+		final int accesses = mHitCount + mMissCount;
+		final int hitPercent = accesses != 0 ? 100 * mHitCount / accesses : 0;
+		return String.format(
+				"BitmapPool[size=%d,maxSize=%d,hits=%d,misses=%d,hitRate=%d%%]",
+				mSize, mMaxSize, mHitCount, mMissCount, hitPercent);
+	}
+
+	private static Long getKey(final int width, final int height) {
+		return Long.valueOf(((long) width << 32) | (height & 0xffffffffL));
+	}
+}
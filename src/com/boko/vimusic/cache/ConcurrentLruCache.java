@@ -0,0 +1,442 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project Licensed under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law
+ * or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+
+package com.boko.vimusic.cache;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+import android.annotation.SuppressLint;
+
+/**
+ * A version of {@link LruCache} whose reads don't take a lock. Values are
+ * looked up in a {@link ConcurrentHashMap}, reads are recorded in a buffer and
+ * replayed on the recency order the next time a writer holds the lock, or once
+ * enough reads piled up. Writes are serialized by a single lock, so the size
+ * bound is exact while the recency order is only approximate: reads dropped
+ * because the buffer was full don't refresh their entries.
+ * <p>
+ * Since a read doesn't take the lock, {@link #get} can return a value that
+ * is being evicted at the same moment. A removed value may still be in use,
+ * so this is no base for a cache that recycles its values.
+ */
+public class ConcurrentLruCache<K, V> {
+
+	/**
+	 * Reads buffered before a reader tries to replay them
+	 */
+	private static final int READ_BUFFER_DRAIN_THRESHOLD = 32;
+
+	/**
+	 * Reads buffered at most, later reads are not recorded until the buffer
+	 * was replayed
+	 */
+	private static final int READ_BUFFER_SIZE = 128;
+
+	/** The values, read without locking */
+	private final ConcurrentHashMap<K, V> map;
+
+	/** The same entries in recency order, guarded by evictionLock */
+	private final LinkedHashMap<K, V> order;
+
+	/** Keys read since the last replay */
+	private final ConcurrentLinkedQueue<K> readBuffer = new ConcurrentLinkedQueue<K>();
+
+	private final AtomicInteger readBufferCount = new AtomicInteger();
+
+	/** Guards every write */
+	private final ReentrantLock evictionLock = new ReentrantLock();
+
+	private final int maxSize;
+
+	/** Size of this cache in units. Not necessarily the number of elements. */
+	private int size;
+
+	private int putCount;
+
+	private int createCount;
+
+	private int evictionCount;
+
+	private final AtomicInteger hitCount = new AtomicInteger();
+
+	private final AtomicInteger missCount = new AtomicInteger();
+
+	/**
+	 * @param maxSize
+	 *            for caches that do not override {@link #sizeOf}, this is the
+	 *            maximum number of entries in the cache. For all other caches,
+	 *            this is the maximum sum of the sizes of the entries in this
+	 *            cache.
+	 */
+	public ConcurrentLruCache(final int maxSize) {
+		if (maxSize <= 0) {
+			throw new IllegalArgumentException("maxSize <= 0");
+		}
+		this.maxSize = maxSize;
+		this.map = new ConcurrentHashMap<K, V>();
+		this.order = new LinkedHashMap<K, V>(0, 0.75f, true);
+	}
+
+	/**
+	 * Returns the value for {@code key} if it exists in the cache or can be
+	 * created by {@code #create}. If a value was returned, it is moved to the
+	 * head of the queue. This returns null if a value is not cached and cannot
+	 * be created.
+	 */
+	public final V get(final K key) {
+		if (key == null) {
+			throw new NullPointerException("key == null");
+		}
+
+		V mapValue = this.map.get(key);
+		if (mapValue != null) {
+			this.hitCount.incrementAndGet();
+			recordRead(key);
+			return mapValue;
+		}
+		this.missCount.incrementAndGet();
+
+		/*
+		 * Attempt to create a value. This may take a long time, and the map may
+		 * be different when create() returns. If a conflicting value was added
+		 * to the map while create() was working, we leave that value in the map
+		 * and release the created value.
+		 */
+
+		final V createdValue = create(key);
+		if (createdValue == null) {
+			return null;
+		}
+
+		this.evictionLock.lock();
+		try {
+			drainReadBuffer();
+			this.createCount++;
+			mapValue = this.map.get(key);
+			if (mapValue == null) {
+				this.map.put(key, createdValue);
+				this.order.put(key, createdValue);
+				this.size += safeSizeOf(key, createdValue);
+			}
+		} finally {
+			this.evictionLock.unlock();
+		}
+
+		if (mapValue != null) {
+			entryRemoved(false, key, createdValue, mapValue);
+			return mapValue;
+		} else {
+			trimToSize(this.maxSize);
+			return createdValue;
+		}
+	}
+
+	/**
+	 * Caches {@code value} for {@code key}. The value is moved to the head of
+	 * the queue.
+	 *
+	 * @return the previous value mapped by {@code key}.
+	 */
+	public final V put(final K key, final V value) {
+		if (key == null || value == null) {
+			throw new NullPointerException("key == null || value == null");
+		}
+
+		V previous;
+		this.evictionLock.lock();
+		try {
+			drainReadBuffer();
+			this.putCount++;
+			this.size += safeSizeOf(key, value);
+			previous = this.map.put(key, value);
+			this.order.put(key, value);
+			if (previous != null) {
+				this.size -= safeSizeOf(key, previous);
+			}
+		} finally {
+			this.evictionLock.unlock();
+		}
+
+		if (previous != null) {
+			entryRemoved(false, key, previous, value);
+		}
+
+		trimToSize(this.maxSize);
+		return previous;
+	}
+
+	/**
+	 * @param maxSize
+	 *            the maximum size of the cache before returning. May be -1 to
+	 *            evict even 0-sized elements.
+	 */
+	public void trimToSize(final int maxSize) {
+		while (true) {
+			K key;
+			V value;
+			this.evictionLock.lock();
+			try {
+				if (this.size < 0 || this.order.isEmpty() && this.size != 0) {
+					throw new IllegalStateException(getClass().getName()
+							+ ".sizeOf() is reporting inconsistent results!");
+				}
+
+				if (this.size <= maxSize || this.order.isEmpty()) {
+					break;
+				}
+
+				drainReadBuffer();
+				final Map.Entry<K, V> toEvict = this.order.entrySet()
+						.iterator().next();
+				key = toEvict.getKey();
+				value = toEvict.getValue();
+				this.order.remove(key);
+				this.map.remove(key);
+				this.size -= safeSizeOf(key, value);
+				this.evictionCount++;
+			} finally {
+				this.evictionLock.unlock();
+			}
+
+			entryRemoved(true, key, value, null);
+		}
+	}
+
+	/**
+	 * Removes the entry for {@code key} if it exists.
+	 *
+	 * @return the previous value mapped by {@code key}.
+	 */
+	public final V remove(final K key) {
+		if (key == null) {
+			throw new NullPointerException("key == null");
+		}
+
+		V previous;
+		this.evictionLock.lock();
+		try {
+			previous = this.map.remove(key);
+			if (previous != null) {
+				this.order.remove(key);
+				this.size -= safeSizeOf(key, previous);
+			}
+		} finally {
+			this.evictionLock.unlock();
+		}
+
+		if (previous != null) {
+			entryRemoved(false, key, previous, null);
+		}
+
+		return previous;
+	}
+
+	/**
+	 * Called for entries that have been evicted or removed. This method is
+	 * invoked when a value is evicted to make space, removed by a call to
+	 * {@link #remove}, or replaced by a call to {@link #put}. The default
+	 * implementation does nothing.
+	 * <p>
+	 * The method is called without synchronization: other threads may access
+	 * the cache while this method is executing. A concurrent {@link #get} may
+	 * still return {@code oldValue} right before or even after this is
+	 * called, so the value must not be recycled or reused here.
+	 *
+	 * @param evicted
+	 *            true if the entry is being removed to make space, false if the
+	 *            removal was caused by a {@link #put} or {@link #remove}.
+	 * @param newValue
+	 *            the new value for {@code key}, if it exists. If non-null, this
+	 *            removal was caused by a {@link #put}. Otherwise it was caused
+	 *            by an eviction or a {@link #remove}.
+	 */
+	protected void entryRemoved(final boolean evicted, final K key,
+			final V oldValue, final V newValue) {
+	}
+
+	/**
+	 * Called after a cache miss to compute a value for the corresponding key.
+	 * Returns the computed value or null if no value can be computed. The
+	 * default implementation returns null.
+	 * <p>
+	 * The method is called without synchronization: other threads may access
+	 * the cache while this method is executing.
+	 */
+	protected V create(final K key) {
+		return null;
+	}
+
+	private int safeSizeOf(final K key, final V value) {
+		final int result = sizeOf(key, value);
+		if (result < 0) {
+			throw new IllegalStateException("Negative size: " + key + "="
+					+ value);
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the size of the entry for {@code key} and {@code value} in
+	 * user-defined units. The default implementation returns 1 so that size is
+	 * the number of entries and max size is the maximum number of entries.
+	 * <p>
+	 * An entry's size must not change while it is in the cache.
+	 */
+	protected int sizeOf(final K key, final V value) {
+		return 1;
+	}
+
+	/**
+	 * Records a read so the entry is moved to the head of the queue later on.
+	 * The reader replays the buffer itself once it filled up, unless a writer
+	 * holds the lock.
+	 */
+	private void recordRead(final K key) {
+		final int pending = this.readBufferCount.incrementAndGet();
+		if (pending <= READ_BUFFER_SIZE) {
+			this.readBuffer.offer(key);
+		} else {
+			this.readBufferCount.decrementAndGet();
+		}
+		if (pending >= READ_BUFFER_DRAIN_THRESHOLD
+				&& this.evictionLock.tryLock()) {
+			try {
+				drainReadBuffer();
+			} finally {
+				this.evictionLock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Moves the entries read since the last replay to the head of the queue.
+	 * Must hold evictionLock.
+	 */
+	private void drainReadBuffer() {
+		K key;
+		while ((key = this.readBuffer.poll()) != null) {
+			this.readBufferCount.decrementAndGet();
+			// Reordering is all a get() on an access ordered map does here
+			this.order.get(key);
+		}
+	}
+
+	/**
+	 * Clear the cache, calling {@link #entryRemoved} on each removed entry.
+	 */
+	public final void evictAll() {
+		trimToSize(-1); // -1 will evict 0-sized elements
+	}
+
+	/**
+	 * For caches that do not override {@link #sizeOf}, this returns the number
+	 * of entries in the cache. For all other caches, this returns the sum of
+	 * the sizes of the entries in this cache.
+	 */
+	public final int size() {
+		this.evictionLock.lock();
+		try {
+			return this.size;
+		} finally {
+			this.evictionLock.unlock();
+		}
+	}
+
+	/**
+	 * For caches that do not override {@link #sizeOf}, this returns the maximum
+	 * number of entries in the cache. For all other caches, this returns the
+	 * maximum sum of the sizes of the entries in this cache.
+	 */
+	public final int maxSize() {
+		return this.maxSize;
+	}
+
+	/**
+	 * Returns the number of times {@link #get} returned a value.
+	 */
+	public final int hitCount() {
+		return this.hitCount.get();
+	}
+
+	/**
+	 * Returns the number of times {@link #get} returned null or required a new
+	 * value to be created.
+	 */
+	public final int missCount() {
+		return this.missCount.get();
+	}
+
+	/**
+	 * Returns the number of times {@link #create(Object)} returned a value.
+	 */
+	public final int createCount() {
+		this.evictionLock.lock();
+		try {
+			return this.createCount;
+		} finally {
+			this.evictionLock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the number of times {@link #put} was called.
+	 */
+	public final int putCount() {
+		this.evictionLock.lock();
+		try {
+			return this.putCount;
+		} finally {
+			this.evictionLock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the number of values that have been evicted.
+	 */
+	public final int evictionCount() {
+		this.evictionLock.lock();
+		try {
+			return this.evictionCount;
+		} finally {
+			this.evictionLock.unlock();
+		}
+	}
+
+	/**
+	 * Returns a copy of the current contents of the cache, ordered from least
+	 * recently accessed to most recently accessed.
+	 */
+	public final Map<K, V> snapshot() {
+		this.evictionLock.lock();
+		try {
+			drainReadBuffer();
+			return new LinkedHashMap<K, V>(this.order);
+		} finally {
+			this.evictionLock.unlock();
+		}
+	}
+
+	@SuppressLint("DefaultLocale")
+	@Override
+	public final String toString() {
+		final int hits = this.hitCount.get();
+		final int accesses = hits + this.missCount.get();
+		final int hitPercent = accesses != 0 ? 100 * hits / accesses : 0;
+		return String.format(
+				"ConcurrentLruCache[maxSize=%d,hits=%d,misses=%d,hitRate=%d%%]",
+				this.maxSize, hits, this.missCount.get(), hitPercent);
+	}
+}
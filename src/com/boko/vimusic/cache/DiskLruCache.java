@@ -12,14 +12,15 @@
 package com.boko.vimusic.cache;
 
 import java.io.BufferedInputStream;
-import java.io.BufferedWriter;
+import java.io.BufferedOutputStream;
 import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
-import java.io.FileWriter;
 import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -98,6 +99,14 @@ public final class DiskLruCache implements Closeable {
 
 	static final String VERSION_1 = "1";
 
+	/**
+	 * Starts a binary journal. The first byte can't start a text journal, so
+	 * the two are told apart by it.
+	 */
+	static final int BINARY_MAGIC = 0xD15C1A00;
+
+	static final int VERSION_2 = 2;
+
 	static final long ANY_SEQUENCE_NUMBER = -1;
 
 	private static final String CLEAN = "CLEAN";
@@ -108,6 +117,17 @@ public final class DiskLruCache implements Closeable {
 
 	private static final String READ = "READ";
 
+	private static final byte OP_CLEAN = 1;
+
+	private static final byte OP_DIRTY = 2;
+
+	private static final byte OP_REMOVE = 3;
+
+	/**
+	 * Journal records written before the journal is synced to the disk
+	 */
+	private static final int JOURNAL_SYNC_BATCH = 64;
+
 	private static final Charset UTF_8 = Charset.forName("UTF-8");
 
 	private static final int IO_BUFFER_SIZE = 8 * 1024;
@@ -137,6 +157,17 @@ public final class DiskLruCache implements Closeable {
 	 * compacted by dropping redundant lines. A temporary file named
 	 * "journal.tmp" will be used during compaction; that file should be deleted
 	 * if it exists when the cache is opened.
+	 * 
+	 * The journal above is the format this cache was taken with, it is still
+	 * read so existing caches survive, and is rewritten in the binary format
+	 * below right away. A binary journal starts with four big-endian ints: the
+	 * magic BINARY_MAGIC, the version 2, the application's version and the
+	 * value count. Each record then is an op byte (1 CLEAN, 2 DIRTY, 3
+	 * REMOVE), the key as written by DataOutput.writeUTF() and, for CLEAN, one
+	 * long length per value. Reads aren't journaled: they reorder the entries
+	 * in memory and count as redundant ops, so the order is saved whenever the
+	 * journal is rebuilt. Records are synced to the disk in batches, a record
+	 * cut short by a crash ends the replay and the journal is rebuilt.
 	 */
 
 	private final File directory;
@@ -147,13 +178,33 @@ public final class DiskLruCache implements Closeable {
 
 	private final int appVersion;
 
-	private final long maxSize;
+	private long maxSize;
 
 	private final int valueCount;
 
 	private long size = 0;
 
-	private Writer journalWriter;
+	private int hitCount;
+
+	private int missCount;
+
+	private int evictionCount;
+
+	private long evictedBytes;
+
+	private DataOutputStream journalWriter;
+
+	/** The file under journalWriter, to sync it */
+	private FileOutputStream journalStream;
+
+	/** Records written since the journal was last synced */
+	private int unsyncedOpCount;
+
+	/** True while a sync of the journal is queued */
+	private boolean syncPending;
+
+	/** True if the journal read on open must be rewritten */
+	private boolean journalRewriteRequired;
 
 	private final LinkedHashMap<String, Entry> lruEntries = new LinkedHashMap<String, Entry>(
 			0, 0.75f, true);
@@ -287,6 +338,20 @@ public final class DiskLruCache implements Closeable {
 		}
 	};
 
+	private final Callable<Void> syncCallable = new Callable<Void>() {
+		@Override
+		public Void call() throws Exception {
+			synchronized (DiskLruCache.this) {
+				syncPending = false;
+				if (journalWriter == null) {
+					return null; // closed
+				}
+				syncJournal();
+			}
+			return null;
+		}
+	};
+
 	private DiskLruCache(final File directory, final int appVersion,
 			final int valueCount, final long maxSize) {
 		this.directory = directory;
@@ -327,8 +392,11 @@ public final class DiskLruCache implements Closeable {
 			try {
 				cache.readJournal();
 				cache.processJournal();
-				cache.journalWriter = new BufferedWriter(new FileWriter(
-						cache.journalFile, true), IO_BUFFER_SIZE);
+				if (cache.journalRewriteRequired) {
+					cache.rebuildJournal();
+				} else {
+					cache.openJournalWriter();
+				}
 				return cache;
 			} catch (final IOException journalIsCorrupt) {
 				// System.logW("DiskLruCache " + directory + " is corrupt: "
@@ -348,32 +416,105 @@ public final class DiskLruCache implements Closeable {
 		final InputStream in = new BufferedInputStream(new FileInputStream(
 				journalFile), IO_BUFFER_SIZE);
 		try {
-			final String magic = readAsciiLine(in);
-			final String version = readAsciiLine(in);
-			final String appVersionString = readAsciiLine(in);
-			final String valueCountString = readAsciiLine(in);
-			final String blank = readAsciiLine(in);
-			if (!MAGIC.equals(magic) || !VERSION_1.equals(version)
-					|| !Integer.toString(appVersion).equals(appVersionString)
-					|| !Integer.toString(valueCount).equals(valueCountString)
-					|| !"".equals(blank)) {
-				throw new IOException("unexpected journal header: [" + magic
-						+ ", " + version + ", " + valueCountString + ", "
-						+ blank + "]");
-			}
-
-			while (true) {
-				try {
-					readJournalLine(readAsciiLine(in));
-				} catch (final EOFException endOfJournal) {
-					break;
-				}
+			in.mark(4);
+			final int magic = new DataInputStream(in).readInt();
+			in.reset();
+			if (magic == BINARY_MAGIC) {
+				readBinaryJournal(new DataInputStream(in));
+			} else {
+				readTextJournal(in);
+				journalRewriteRequired = true;
 			}
 		} finally {
 			closeQuietly(in);
 		}
 	}
 
+	private void readBinaryJournal(final DataInputStream in) throws IOException {
+		final int magic = in.readInt();
+		final int version = in.readInt();
+		final int journalAppVersion = in.readInt();
+		final int journalValueCount = in.readInt();
+		if (magic != BINARY_MAGIC || version != VERSION_2
+				|| journalAppVersion != appVersion
+				|| journalValueCount != valueCount) {
+			throw new IOException("unexpected journal header: [" + version
+					+ ", " + journalAppVersion + ", " + journalValueCount + "]");
+		}
+
+		while (true) {
+			final int op = in.read();
+			if (op == -1) {
+				break;
+			}
+			try {
+				readJournalRecord(op, in);
+			} catch (final EOFException tornRecord) {
+				// The last record was cut short, drop it
+				journalRewriteRequired = true;
+				break;
+			}
+		}
+	}
+
+	private void readJournalRecord(final int op, final DataInputStream in)
+			throws IOException {
+		// Read the whole record before applying it
+		final String key = in.readUTF();
+		long[] lengths = null;
+		if (op == OP_CLEAN) {
+			lengths = new long[valueCount];
+			for (int i = 0; i < valueCount; i++) {
+				lengths[i] = in.readLong();
+			}
+		} else if (op != OP_DIRTY && op != OP_REMOVE) {
+			throw new IOException("unexpected journal record: " + op);
+		}
+
+		if (op == OP_REMOVE) {
+			lruEntries.remove(key);
+			return;
+		}
+
+		Entry entry = lruEntries.get(key);
+		if (entry == null) {
+			entry = new Entry(key);
+			lruEntries.put(key, entry);
+		}
+
+		if (op == OP_CLEAN) {
+			entry.readable = true;
+			entry.currentEditor = null;
+			System.arraycopy(lengths, 0, entry.lengths, 0, valueCount);
+		} else {
+			entry.currentEditor = new Editor(entry);
+		}
+	}
+
+	private void readTextJournal(final InputStream in) throws IOException {
+		final String magic = readAsciiLine(in);
+		final String version = readAsciiLine(in);
+		final String appVersionString = readAsciiLine(in);
+		final String valueCountString = readAsciiLine(in);
+		final String blank = readAsciiLine(in);
+		if (!MAGIC.equals(magic) || !VERSION_1.equals(version)
+				|| !Integer.toString(appVersion).equals(appVersionString)
+				|| !Integer.toString(valueCount).equals(valueCountString)
+				|| !"".equals(blank)) {
+			throw new IOException("unexpected journal header: [" + magic
+					+ ", " + version + ", " + valueCountString + ", "
+					+ blank + "]");
+		}
+
+		while (true) {
+			try {
+				readJournalLine(readAsciiLine(in));
+			} catch (final EOFException endOfJournal) {
+				break;
+			}
+		}
+	}
+
 	private void readJournalLine(final String line) throws IOException {
 		final String[] parts = line.split(" ");
 		if (parts.length < 2) {
@@ -438,31 +579,77 @@ public final class DiskLruCache implements Closeable {
 			journalWriter.close();
 		}
 
-		final Writer writer = new BufferedWriter(
-				new FileWriter(journalFileTmp), IO_BUFFER_SIZE);
-		writer.write(MAGIC);
-		writer.write("\n");
-		writer.write(VERSION_1);
-		writer.write("\n");
-		writer.write(Integer.toString(appVersion));
-		writer.write("\n");
-		writer.write(Integer.toString(valueCount));
-		writer.write("\n");
-		writer.write("\n");
-
-		for (final Entry entry : lruEntries.values()) {
-			if (entry.currentEditor != null) {
-				writer.write(DIRTY + ' ' + entry.key + '\n');
-			} else {
-				writer.write(CLEAN + ' ' + entry.key + entry.getLengths()
-						+ '\n');
+		final FileOutputStream stream = new FileOutputStream(journalFileTmp);
+		final DataOutputStream writer = new DataOutputStream(
+				new BufferedOutputStream(stream, IO_BUFFER_SIZE));
+		try {
+			writer.writeInt(BINARY_MAGIC);
+			writer.writeInt(VERSION_2);
+			writer.writeInt(appVersion);
+			writer.writeInt(valueCount);
+
+			for (final Entry entry : lruEntries.values()) {
+				if (entry.currentEditor != null) {
+					writeRecord(writer, OP_DIRTY, entry.key, null);
+				} else {
+					writeRecord(writer, OP_CLEAN, entry.key, entry.lengths);
+				}
 			}
+			writer.flush();
+			stream.getFD().sync();
+		} finally {
+			writer.close();
 		}
 
-		writer.close();
 		journalFileTmp.renameTo(journalFile);
-		journalWriter = new BufferedWriter(new FileWriter(journalFile, true),
-				IO_BUFFER_SIZE);
+		openJournalWriter();
+		journalRewriteRequired = false;
+	}
+
+	private void openJournalWriter() throws IOException {
+		journalStream = new FileOutputStream(journalFile, true);
+		journalWriter = new DataOutputStream(new BufferedOutputStream(
+				journalStream, IO_BUFFER_SIZE));
+		unsyncedOpCount = 0;
+	}
+
+	private static void writeRecord(final DataOutputStream writer,
+			final byte op, final String key, final long[] lengths)
+			throws IOException {
+		writer.writeByte(op);
+		writer.writeUTF(key);
+		if (lengths != null) {
+			for (final long length : lengths) {
+				writer.writeLong(length);
+			}
+		}
+	}
+
+	/**
+	 * Appends a record to the journal. The record is handed to the OS right
+	 * away, so it survives the process being killed, while syncing it to the
+	 * disk is left to the background once enough records piled up.
+	 */
+	private void journal(final byte op, final String key, final long[] lengths)
+			throws IOException {
+		writeRecord(journalWriter, op, key, lengths);
+		journalWriter.flush();
+		unsyncedOpCount++;
+		if (unsyncedOpCount >= JOURNAL_SYNC_BATCH && !syncPending) {
+			syncPending = true;
+			executorService.submit(syncCallable);
+		}
+	}
+
+	/**
+	 * Syncs the journal file to the disk.
+	 */
+	private void syncJournal() throws IOException {
+		journalWriter.flush();
+		if (unsyncedOpCount > 0) {
+			journalStream.getFD().sync();
+			unsyncedOpCount = 0;
+		}
 	}
 
 	private static void deleteIfExists(final File file) throws IOException {
@@ -487,11 +674,8 @@ public final class DiskLruCache implements Closeable {
 		checkNotClosed();
 		validateKey(key);
 		final Entry entry = lruEntries.get(key);
-		if (entry == null) {
-			return null;
-		}
-
-		if (!entry.readable) {
+		if (entry == null || !entry.readable) {
+			missCount++;
 			return null;
 		}
 
@@ -507,11 +691,13 @@ public final class DiskLruCache implements Closeable {
 			}
 		} catch (final FileNotFoundException e) {
 			// a file must have been deleted manually!
+			missCount++;
 			return null;
 		}
 
+		hitCount++;
+		// The read isn't journaled, the order is saved by the next rebuild
 		redundantOpCount++;
-		journalWriter.append(READ + ' ' + key + '\n');
 		if (journalRebuildRequired()) {
 			executorService.submit(cleanupCallable);
 		}
@@ -519,6 +705,17 @@ public final class DiskLruCache implements Closeable {
 		return new Snapshot(key, entry.sequenceNumber, ins);
 	}
 
+	/**
+	 * Returns true if there is an entry named {@code key}, or one is being
+	 * written for the first time. Unlike {@link #get} this opens no files and
+	 * leaves the LRU order and the statistics as they are.
+	 */
+	public synchronized boolean contains(final String key) {
+		checkNotClosed();
+		validateKey(key);
+		return lruEntries.containsKey(key);
+	}
+
 	/**
 	 * Returns an editor for the entry named {@code key}, or null if another
 	 * edit is in progress.
@@ -546,9 +743,8 @@ public final class DiskLruCache implements Closeable {
 		final Editor editor = new Editor(entry);
 		entry.currentEditor = editor;
 
-		// flush the journal before creating files to prevent file leaks
-		journalWriter.write(DIRTY + ' ' + key + '\n');
-		journalWriter.flush();
+		// the journal is flushed before creating files to prevent file leaks
+		journal(OP_DIRTY, key, null);
 		return editor;
 	}
 
@@ -563,10 +759,55 @@ public final class DiskLruCache implements Closeable {
 	 * Returns the maximum number of bytes that this cache should use to store
 	 * its data.
 	 */
-	public long maxSize() {
+	public synchronized long maxSize() {
 		return maxSize;
 	}
 
+	/**
+	 * Changes the maximum number of bytes the cache should use to store its
+	 * data. Entries are evicted in the background if the cache is now too
+	 * large.
+	 */
+	public synchronized void setMaxSize(final long maxSize) {
+		if (maxSize <= 0) {
+			throw new IllegalArgumentException("maxSize <= 0");
+		}
+		this.maxSize = maxSize;
+		if (size > maxSize) {
+			executorService.submit(cleanupCallable);
+		}
+	}
+
+	/**
+	 * Returns the number of times {@link #get} returned a value.
+	 */
+	public synchronized int hitCount() {
+		return hitCount;
+	}
+
+	/**
+	 * Returns the number of times {@link #get} returned null.
+	 */
+	public synchronized int missCount() {
+		return missCount;
+	}
+
+	/**
+	 * Returns the number of entries evicted to keep the cache under its
+	 * maximum size.
+	 */
+	public synchronized int evictionCount() {
+		return evictionCount;
+	}
+
+	/**
+	 * Returns the number of bytes evicted to keep the cache under its maximum
+	 * size.
+	 */
+	public synchronized long evictedBytes() {
+		return evictedBytes;
+	}
+
 	/**
 	 * Returns the number of bytes currently being used to store the values in
 	 * this cache. This may be greater than the max size if a background
@@ -615,14 +856,13 @@ public final class DiskLruCache implements Closeable {
 		entry.currentEditor = null;
 		if (entry.readable | success) {
 			entry.readable = true;
-			journalWriter.write(CLEAN + ' ' + entry.key + entry.getLengths()
-					+ '\n');
+			journal(OP_CLEAN, entry.key, entry.lengths);
 			if (success) {
 				entry.sequenceNumber = nextSequenceNumber++;
 			}
 		} else {
 			lruEntries.remove(entry.key);
-			journalWriter.write(REMOVE + ' ' + entry.key + '\n');
+			journal(OP_REMOVE, entry.key, null);
 		}
 
 		if (size > maxSize || journalRebuildRequired()) {
@@ -664,7 +904,7 @@ public final class DiskLruCache implements Closeable {
 		}
 
 		redundantOpCount++;
-		journalWriter.append(REMOVE + ' ' + key + '\n');
+		journal(OP_REMOVE, key, null);
 		lruEntries.remove(key);
 
 		if (journalRebuildRequired()) {
@@ -693,7 +933,7 @@ public final class DiskLruCache implements Closeable {
 	public synchronized void flush() throws IOException {
 		checkNotClosed();
 		trimToSize();
-		journalWriter.flush();
+		syncJournal();
 	}
 
 	/**
@@ -710,8 +950,10 @@ public final class DiskLruCache implements Closeable {
 			}
 		}
 		trimToSize();
+		syncJournal();
 		journalWriter.close();
 		journalWriter = null;
+		journalStream = null;
 	}
 
 	private void trimToSize() throws IOException {
@@ -719,7 +961,11 @@ public final class DiskLruCache implements Closeable {
 			// Map.Entry<String, Entry> toEvict = lruEntries.eldest();
 			final Map.Entry<String, Entry> toEvict = lruEntries.entrySet()
 					.iterator().next();
-			remove(toEvict.getKey());
+			final long evictedSize = size;
+			if (remove(toEvict.getKey())) {
+				evictionCount++;
+				evictedBytes += evictedSize - size;
+			}
 		}
 	}
 
@@ -948,14 +1194,6 @@ public final class DiskLruCache implements Closeable {
 			lengths = new long[valueCount];
 		}
 
-		public String getLengths() throws IOException {
-			final StringBuilder result = new StringBuilder();
-			for (final long size : lengths) {
-				result.append(' ').append(size);
-			}
-			return result.toString();
-		}
-
 		/**
 		 * Set lengths using decimal numbers like "10123".
 		 */
@@ -11,6 +11,8 @@
 
 package com.boko.vimusic.cache;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileDescriptor;
 import java.io.FileNotFoundException;
@@ -29,6 +31,7 @@ import android.content.ComponentCallbacks2;
 import android.content.ContentUris;
 import android.content.Context;
 import android.content.res.Configuration;
+import android.database.Cursor;
 import android.graphics.Bitmap;
 import android.graphics.Bitmap.CompressFormat;
 import android.graphics.BitmapFactory;
@@ -36,12 +39,16 @@ import android.net.Uri;
 import android.os.AsyncTask;
 import android.os.Bundle;
 import android.os.Environment;
-import android.os.Looper;
 import android.os.ParcelFileDescriptor;
+import android.provider.BaseColumns;
+import android.provider.MediaStore;
 import android.support.v4.app.FragmentActivity;
+import android.util.DisplayMetrics;
 import android.util.Log;
 
+import com.boko.vimusic.Config;
 import com.boko.vimusic.utils.CommonUtils;
+import com.boko.vimusic.utils.PreferenceUtils;
 
 /**
  * This class holds the memory and disk bitmap caches.
@@ -61,14 +68,57 @@ public final class ImageCache {
 	private static final float MEM_CACHE_DIVIDER = 0.25f;
 
 	/**
-	 * Default disk cache size 10MB
+	 * Share of the memory cache size kept for bitmaps to reuse
 	 */
-	private static final int DISK_CACHE_SIZE = 1024 * 1024 * 10;
+	private static final float BITMAP_POOL_DIVIDER = 0.125f;
 
 	/**
-	 * Compression settings when writing images to disk cache
+	 * Smallest automatic disk cache size 10MB, album art and artist images
+	 * together
 	 */
-	private static final CompressFormat COMPRESS_FORMAT = CompressFormat.JPEG;
+	private static final long DISK_CACHE_SIZE = 1024 * 1024 * 10;
+
+	/**
+	 * Largest automatic disk cache size 256MB
+	 */
+	private static final long MAX_DISK_CACHE_SIZE = 1024 * 1024 * 256;
+
+	/**
+	 * Disk caches smaller than 1MB aren't opened
+	 */
+	private static final long MIN_DISK_CACHE_SIZE = 1024 * 1024;
+
+	/**
+	 * Most of the usable space the automatic disk cache size takes
+	 */
+	private static final float DISK_CACHE_SPACE_DIVIDER = 0.1f;
+
+	/**
+	 * Expected size of a cached image, used to size the disk cache by the
+	 * number of albums and artists
+	 */
+	private static final long IMAGE_SIZE_ESTIMATE = 1024 * 64;
+
+	/**
+	 * Least share of the disk cache size album art or artist images get
+	 */
+	private static final float MIN_DISK_CACHE_SHARE = 0.25f;
+
+	/**
+	 * Directory of the artist images, next to the album art
+	 */
+	private static final String ARTIST_CACHE_DIR = TAG + "Artists";
+
+	/**
+	 * Compression settings when writing decoded images to disk cache,
+	 * downloads are stored as they were received
+	 */
+	private static final CompressFormat COMPRESS_FORMAT = CompressFormat.WEBP;
+
+	/**
+	 * Buffer used to copy images to and from the disk cache
+	 */
+	private static final int IO_BUFFER_SIZE = 8 * 1024;
 
 	/**
 	 * Disk cache index to read from
@@ -78,7 +128,33 @@ public final class ImageCache {
 	/**
 	 * Image compression quality
 	 */
-	private static final int COMPRESS_QUALITY = 98;
+	private static final int COMPRESS_QUALITY = 80;
+
+	/**
+	 * Longest edge of a thumbnail in dp, large enough for the list items,
+	 * widgets and the bottom action bar
+	 */
+	private static final int THUMBNAIL_SIZE_DP = 192;
+
+	/**
+	 * Longest edge of a full size image in pixels
+	 */
+	private static final int FULL_SIZE = 1024;
+
+	/**
+	 * Appended to the memory cache key of thumbnails
+	 */
+	private static final String THUMBNAIL_KEY_SUFFIX = "#thumbnail";
+
+	/**
+	 * Longest edge of a thumbnail in pixels
+	 */
+	private int mThumbnailSize = THUMBNAIL_SIZE_DP;
+
+	/**
+	 * Density of the screen, given to the decoded images
+	 */
+	private int mDensityDpi = DisplayMetrics.DENSITY_DEFAULT;
 
 	/**
 	 * LRU cache
@@ -86,17 +162,31 @@ public final class ImageCache {
 	private MemoryCache mLruCache;
 
 	/**
-	 * Disk LRU cache
+	 * Bitmaps no view shows anymore, reused by the decoders
 	 */
-	private DiskLruCache mDiskCache;
+	private BitmapPool mBitmapPool;
+
+	/**
+	 * Disk LRU cache for album art
+	 */
+	private DiskLruCache mAlbumDiskCache;
+
+	/**
+	 * Disk LRU cache for artist and other images
+	 */
+	private DiskLruCache mArtistDiskCache;
+
+	/**
+	 * The Context to use
+	 */
+	private Context mContext;
 
 	private static ImageCache sInstance;
 
 	/**
 	 * Used to temporarily pause the disk cache while scrolling
 	 */
-	public boolean mPauseDiskAccess = false;
-	private Object mPauseLock = new Object();
+	public volatile boolean mPauseDiskAccess = false;
 
 	static {
 		mArtworkUri = Uri.parse("content://media/external/audio/albumart");
@@ -135,46 +225,312 @@ public final class ImageCache {
 	 *            The cache parameters to initialize the cache
 	 */
 	private void init(final Context context) {
+		mContext = context;
 		CommonUtils.execute(false, new AsyncTask<Void, Void, Void>() {
 
 			@Override
 			protected Void doInBackground(final Void... unused) {
 				// Initialize the disk cahe in a background thread
-				initDiskCache(context);
+				initDiskCache(context, PreferenceUtils.getInstance(context)
+						.getCacheSize());
 				return null;
 			}
 		}, (Void[]) null);
 		// Set up the memory cache
 		initLruCache(context);
+		mThumbnailSize = Math.round(THUMBNAIL_SIZE_DP
+				* context.getResources().getDisplayMetrics().density);
+		mDensityDpi = context.getResources().getDisplayMetrics().densityDpi;
 	}
 
 	/**
-	 * Initializes the disk cache. Note that this includes disk access so this
-	 * should not be executed on the main/UI thread. By default an ImageCache
-	 * does not initialize the disk cache when it is created, instead you should
-	 * call initDiskCache() to initialize it on a background thread.
+	 * Initializes the disk caches, or resizes them if they are open. Note that
+	 * this includes disk access so this should not be executed on the main/UI
+	 * thread. By default an ImageCache does not initialize the disk cache when
+	 * it is created, instead you should call initDiskCache() to initialize it
+	 * on a background thread.
 	 * 
 	 * @param context
 	 *            The {@link Context} to use
+	 * @param cacheSize
+	 *            The disk cache size in MB picked by the user, 0 to size it
+	 *            automatically
 	 */
-	private synchronized void initDiskCache(final Context context) {
-		// Set up disk cache
-		if (mDiskCache == null || mDiskCache.isClosed()) {
-			File diskCacheDir = getDiskCacheDir(context, TAG);
-			if (diskCacheDir != null) {
-				if (!diskCacheDir.exists()) {
-					diskCacheDir.mkdirs();
+	private synchronized void initDiskCache(final Context context,
+			final int cacheSize) {
+		final File albumDir = getDiskCacheDir(context, TAG);
+		final File artistDir = getDiskCacheDir(context, ARTIST_CACHE_DIR);
+		if (!albumDir.exists()) {
+			albumDir.mkdirs();
+		}
+		// Artist images used to share the album cache
+		final String[] albumFiles = albumDir.list();
+		final boolean migrateArtists = !artistDir.exists()
+				&& albumFiles != null && albumFiles.length > 0;
+		if (!artistDir.exists()) {
+			artistDir.mkdirs();
+		}
+
+		final int albums = getCount(context,
+				MediaStore.Audio.Albums.EXTERNAL_CONTENT_URI);
+		final int artists = getCount(context,
+				MediaStore.Audio.Artists.EXTERNAL_CONTENT_URI);
+		final long usableSpace = getUsableSpace(albumDir);
+		long size;
+		if (cacheSize > 0) {
+			size = cacheSize * 1024L * 1024L;
+		} else {
+			// Room for an image of every album and artist, within a share of
+			// the free space
+			size = (albums + artists) * IMAGE_SIZE_ESTIMATE;
+			size = Math.min(size,
+					(long) (usableSpace * DISK_CACHE_SPACE_DIVIDER));
+			size = Math.min(Math.max(size, DISK_CACHE_SIZE),
+					MAX_DISK_CACHE_SIZE);
+		}
+		// Never grow into more than half of the free space
+		size = Math.min(size, usableSpace / 2 + getDiskCacheSize());
+
+		// Split between album art and artist images by library size
+		float albumShare = albums + artists > 0 ? (float) albums
+				/ (albums + artists) : 0.5f;
+		albumShare = Math.max(MIN_DISK_CACHE_SHARE,
+				Math.min(1f - MIN_DISK_CACHE_SHARE, albumShare));
+		final long albumSize = (long) (size * albumShare);
+		mAlbumDiskCache = openDiskCache(mAlbumDiskCache, albumDir, albumSize);
+		mArtistDiskCache = openDiskCache(mArtistDiskCache, artistDir, size
+				- albumSize);
+		if (migrateArtists && mAlbumDiskCache != null
+				&& mArtistDiskCache != null) {
+			moveArtistImages(context, mAlbumDiskCache, mArtistDiskCache);
+		}
+	}
+
+	/**
+	 * Moves the artist images of the library out of the album cache, where
+	 * they were kept before the artist cache existed. The disk keys are
+	 * hashed, so the artists are looked up by name.
+	 * 
+	 * @param context
+	 *            The {@link Context} to use
+	 * @param albumCache
+	 *            The album cache
+	 * @param artistCache
+	 *            The artist cache
+	 */
+	private static final void moveArtistImages(final Context context,
+			final DiskLruCache albumCache, final DiskLruCache artistCache) {
+		Cursor cursor = null;
+		try {
+			cursor = context.getContentResolver().query(
+					MediaStore.Audio.Artists.EXTERNAL_CONTENT_URI,
+					new String[] { MediaStore.Audio.ArtistColumns.ARTIST },
+					null, null, null);
+			while (cursor != null && cursor.moveToNext()) {
+				final String artist = cursor.getString(0);
+				if (artist != null) {
+					moveEntry(albumCache, artistCache, hashKeyForDisk(artist));
 				}
-				if (getUsableSpace(diskCacheDir) > DISK_CACHE_SIZE) {
-					try {
-						mDiskCache = DiskLruCache.open(diskCacheDir, 1, 1,
-								DISK_CACHE_SIZE);
-					} catch (final IOException e) {
-						diskCacheDir = null;
-					}
+			}
+		} catch (final RuntimeException e) {
+			Log.e(TAG, "moveArtistImages - " + e);
+		} catch (final IOException e) {
+			Log.e(TAG, "moveArtistImages - " + e);
+		} finally {
+			if (cursor != null) {
+				cursor.close();
+			}
+		}
+	}
+
+	/**
+	 * Moves an entry from one disk cache to another.
+	 */
+	private static final void moveEntry(final DiskLruCache from,
+			final DiskLruCache to, final String key) throws IOException {
+		if (!from.contains(key)) {
+			return;
+		}
+		final DiskLruCache.Snapshot snapshot = from.get(key);
+		if (snapshot == null) {
+			return;
+		}
+		try {
+			final DiskLruCache.Editor editor = to.edit(key);
+			if (editor == null) {
+				return;
+			}
+			boolean committed = false;
+			try {
+				final OutputStream out = editor
+						.newOutputStream(DISK_CACHE_INDEX);
+				try {
+					copy(snapshot.getInputStream(DISK_CACHE_INDEX), out);
+				} finally {
+					out.close();
+				}
+				editor.commit();
+				committed = true;
+			} finally {
+				if (!committed) {
+					editor.abort();
 				}
 			}
+		} finally {
+			snapshot.close();
 		}
+		from.remove(key);
+	}
+
+	/**
+	 * Opens a disk cache, or resizes it if it's open.
+	 * 
+	 * @param diskCache
+	 *            The cache as it is now, may be null
+	 * @param directory
+	 *            The directory of the cache
+	 * @param maxSize
+	 *            The size of the cache in bytes
+	 * @return The open cache, or null if there is no room for it
+	 */
+	private static final DiskLruCache openDiskCache(
+			final DiskLruCache diskCache, final File directory,
+			final long maxSize) {
+		if (diskCache != null && !diskCache.isClosed()) {
+			diskCache.setMaxSize(Math.max(maxSize, MIN_DISK_CACHE_SIZE));
+			return diskCache;
+		}
+		if (maxSize < MIN_DISK_CACHE_SIZE) {
+			return null;
+		}
+		try {
+			return DiskLruCache.open(directory, 1, 1, maxSize);
+		} catch (final IOException e) {
+			Log.e(TAG, "openDiskCache - " + e);
+		}
+		return null;
+	}
+
+	/**
+	 * @param context
+	 *            The {@link Context} to use
+	 * @param uri
+	 *            The {@link Uri} of a table
+	 * @return The number of rows in the table
+	 */
+	private static final int getCount(final Context context, final Uri uri) {
+		Cursor cursor = null;
+		try {
+			cursor = context.getContentResolver().query(uri,
+					new String[] { BaseColumns._ID }, null, null, null);
+			if (cursor != null) {
+				return cursor.getCount();
+			}
+		} catch (final RuntimeException e) {
+			Log.e(TAG, "getCount - " + e);
+		} finally {
+			if (cursor != null) {
+				cursor.close();
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * Changes the disk cache size, used when the user picks a new one.
+	 * 
+	 * @param cacheSize
+	 *            The disk cache size in MB, 0 to size it automatically
+	 */
+	public void setDiskCacheSize(final int cacheSize) {
+		CommonUtils.execute(false, new AsyncTask<Void, Void, Void>() {
+
+			@Override
+			protected Void doInBackground(final Void... unused) {
+				initDiskCache(mContext, cacheSize);
+				return null;
+			}
+		}, (Void[]) null);
+	}
+
+	/**
+	 * @param data
+	 *            The key used to store the image
+	 * @return The disk cache holding the image, may be null
+	 */
+	private DiskLruCache getDiskCache(final String data) {
+		if (data.endsWith("_" + Config.ALBUM_ART_SUFFIX)) {
+			return mAlbumDiskCache;
+		}
+		return mArtistDiskCache;
+	}
+
+	/**
+	 * @return The number of bytes used by the disk caches
+	 */
+	public long getDiskCacheSize() {
+		long size = 0;
+		final DiskLruCache albumDiskCache = mAlbumDiskCache;
+		final DiskLruCache artistDiskCache = mArtistDiskCache;
+		if (albumDiskCache != null) {
+			size += albumDiskCache.size();
+		}
+		if (artistDiskCache != null) {
+			size += artistDiskCache.size();
+		}
+		return size;
+	}
+
+	/**
+	 * @return The number of bytes the disk caches may use
+	 */
+	public long getDiskCacheMaxSize() {
+		long size = 0;
+		final DiskLruCache albumDiskCache = mAlbumDiskCache;
+		final DiskLruCache artistDiskCache = mArtistDiskCache;
+		if (albumDiskCache != null) {
+			size += albumDiskCache.maxSize();
+		}
+		if (artistDiskCache != null) {
+			size += artistDiskCache.maxSize();
+		}
+		return size;
+	}
+
+	/**
+	 * @return The number of images evicted from the disk caches
+	 */
+	public int getDiskCacheEvictionCount() {
+		int count = 0;
+		final DiskLruCache albumDiskCache = mAlbumDiskCache;
+		final DiskLruCache artistDiskCache = mArtistDiskCache;
+		if (albumDiskCache != null) {
+			count += albumDiskCache.evictionCount();
+		}
+		if (artistDiskCache != null) {
+			count += artistDiskCache.evictionCount();
+		}
+		return count;
+	}
+
+	/**
+	 * @return The sizes, hits, misses and evictions of the disk caches, for
+	 *         tuning their sizes
+	 */
+	public String getDiskCacheStats() {
+		return "albums=" + getDiskCacheStats(mAlbumDiskCache) + ", artists="
+				+ getDiskCacheStats(mArtistDiskCache);
+	}
+
+	private static final String getDiskCacheStats(final DiskLruCache diskCache) {
+		if (diskCache == null) {
+			return "closed";
+		}
+		return String.format(
+				"[size=%d,maxSize=%d,hits=%d,misses=%d,evictions=%d,evictedBytes=%d]",
+				diskCache.size(), diskCache.maxSize(), diskCache.hitCount(),
+				diskCache.missCount(), diskCache.evictionCount(),
+				diskCache.evictedBytes());
 	}
 
 	/**
@@ -189,7 +545,11 @@ public final class ImageCache {
 				.getSystemService(Context.ACTIVITY_SERVICE);
 		final int lruCacheSize = Math.round(MEM_CACHE_DIVIDER
 				* activityManager.getMemoryClass() * 1024 * 1024);
-		mLruCache = new MemoryCache(lruCacheSize);
+		// The pool counts against the memory cache size
+		final int bitmapPoolSize = Math.round(BITMAP_POOL_DIVIDER
+				* lruCacheSize);
+		mBitmapPool = new BitmapPool(bitmapPoolSize);
+		mLruCache = new MemoryCache(lruCacheSize - bitmapPoolSize);
 
 		// Release some memory as needed
 		context.registerComponentCallbacks(new ComponentCallbacks2() {
@@ -203,6 +563,7 @@ public final class ImageCache {
 					evictAll();
 				} else if (level >= TRIM_MEMORY_BACKGROUND) {
 					mLruCache.trimToSize(mLruCache.size() / 2);
+					mBitmapPool.clear();
 				}
 			}
 
@@ -291,25 +652,61 @@ public final class ImageCache {
 		addBitmapToMemCache(data, bitmap);
 
 		// Add to disk cache
-		if (mDiskCache != null) {
+		addBitmapToDiskCache(data, bitmap);
+	}
+
+	/**
+	 * Adds a new image to the disk cache, at the size it was given. The image
+	 * is encoded in the background, it must not be recycled or reused.
+	 * 
+	 * @param data
+	 *            The key used to store the image
+	 * @param bitmap
+	 *            The {@link Bitmap} to cache
+	 */
+	public void addBitmapToDiskCache(final String data, final Bitmap bitmap) {
+		if (data == null || bitmap == null || getDiskCache(data) == null) {
+			return;
+		}
+		CommonUtils.execute(false, new AsyncTask<Void, Void, Void>() {
+
+			@Override
+			protected Void doInBackground(final Void... unused) {
+				// Encoding is slow, keep it off the calling thread
+				writeBitmapToDiskCache(data, bitmap);
+				return null;
+			}
+		}, (Void[]) null);
+	}
+
+	/**
+	 * Encodes an image into the disk cache, unless it's already there
+	 * 
+	 * @param data
+	 *            The key used to store the image
+	 * @param bitmap
+	 *            The {@link Bitmap} to cache
+	 */
+	private void writeBitmapToDiskCache(final String data, final Bitmap bitmap) {
+		final DiskLruCache diskCache = getDiskCache(data);
+		if (diskCache != null && !bitmap.isRecycled()) {
 			final String key = hashKeyForDisk(data);
 			OutputStream out = null;
 			try {
-				final DiskLruCache.Snapshot snapshot = mDiskCache.get(key);
+				final DiskLruCache.Snapshot snapshot = diskCache.get(key);
 				if (snapshot == null) {
-					final DiskLruCache.Editor editor = mDiskCache.edit(key);
+					final DiskLruCache.Editor editor = diskCache.edit(key);
 					if (editor != null) {
 						out = editor.newOutputStream(DISK_CACHE_INDEX);
 						bitmap.compress(COMPRESS_FORMAT, COMPRESS_QUALITY, out);
 						editor.commit();
 						out.close();
-						flush();
 					}
 				} else {
-					snapshot.getInputStream(DISK_CACHE_INDEX).close();
+					snapshot.close();
 				}
 			} catch (final IOException e) {
-				Log.e(TAG, "addBitmapToCache - " + e);
+				Log.e(TAG, "writeBitmapToDiskCache - " + e);
 			} finally {
 				try {
 					if (out != null) {
@@ -317,9 +714,9 @@ public final class ImageCache {
 						out = null;
 					}
 				} catch (final IOException e) {
-					Log.e(TAG, "addBitmapToCache - " + e);
+					Log.e(TAG, "writeBitmapToDiskCache - " + e);
 				} catch (final IllegalStateException e) {
-					Log.e(TAG, "addBitmapToCache - " + e);
+					Log.e(TAG, "writeBitmapToDiskCache - " + e);
 				}
 			}
 		}
@@ -337,10 +734,56 @@ public final class ImageCache {
 		if (data == null || bitmap == null) {
 			return;
 		}
-		// Add to memory cache
-		if (getBitmapFromMemCache(data) == null) {
-			mLruCache.put(data, bitmap);
+		// The caller keeps using the image, so it's never reused
+		final ReusableBitmap image = addToMemCache(data, new ReusableBitmap(
+				bitmap, null));
+		image.release();
+	}
+
+	/**
+	 * Adds an image the caller holds a reference to to the memory cache,
+	 * unless the cache already has one for the key.
+	 * 
+	 * @param data
+	 *            The key identifier
+	 * @param image
+	 *            The {@link ReusableBitmap} to cache, may be null
+	 * @return The image in the cache, the caller holds a reference to it
+	 */
+	private ReusableBitmap addToMemCache(final String data,
+			final ReusableBitmap image) {
+		if (image == null || mLruCache == null) {
+			return image;
 		}
+		final ReusableBitmap cached = acquireFromMemCache(data);
+		if (cached != null) {
+			// Loaded twice, the copy nobody shows goes straight to the pool
+			image.release();
+			return cached;
+		}
+		image.setCached(true);
+		mLruCache.put(data, image);
+		return image;
+	}
+
+	/**
+	 * Fetches a cached image from the memory cache for a view that releases
+	 * it when it stops showing it.
+	 * 
+	 * @param data
+	 *            Unique identifier for which item to get
+	 * @return The {@link ReusableBitmap} if found in cache, null otherwise. The
+	 *         caller holds a reference to it.
+	 */
+	public ReusableBitmap acquireFromMemCache(final String data) {
+		if (data == null || mLruCache == null) {
+			return null;
+		}
+		final ReusableBitmap image = mLruCache.get(data);
+		if (image != null && image.acquire()) {
+			return image;
+		}
+		return null;
 	}
 
 	/**
@@ -355,9 +798,9 @@ public final class ImageCache {
 			return null;
 		}
 		if (mLruCache != null) {
-			final Bitmap lruBitmap = mLruCache.get(data);
-			if (lruBitmap != null) {
-				return lruBitmap;
+			final ReusableBitmap image = mLruCache.get(data);
+			if (image != null && image.pin()) {
+				return image.getBitmap();
 			}
 		}
 		return null;
@@ -371,27 +814,56 @@ public final class ImageCache {
 	 * @return The {@link Bitmap} if found in cache, null otherwise
 	 */
 	public final Bitmap getBitmapFromDiskCache(final String data) {
+		return getBitmapFromDiskCache(data, ImageSize.FULL);
+	}
+
+	/**
+	 * Fetches a cached image from the disk cache, decoded to fit a size bucket
+	 * 
+	 * @param data
+	 *            Unique identifier for which item to get
+	 * @param size
+	 *            The size bucket to decode to
+	 * @return The {@link Bitmap} if found in cache, null otherwise
+	 */
+	public final Bitmap getBitmapFromDiskCache(final String data,
+			final ImageSize size) {
 		if (data == null) {
 			return null;
 		}
 
 		// Check in the memory cache here to avoid going to the disk cache less
 		// often
-		if (getBitmapFromMemCache(data) != null) {
-			return getBitmapFromMemCache(data);
+		final Bitmap memBitmap = getBitmapFromMemCache(getMemCacheKey(data,
+				size));
+		if (memBitmap != null) {
+			return memBitmap;
 		}
+		return decodeFromDiskCache(data, size);
+	}
 
-		waitUntilUnpaused();
+	/**
+	 * Decodes an image from the disk cache, without looking at the memory
+	 * cache
+	 * 
+	 * @param data
+	 *            Unique identifier for which item to get
+	 * @param size
+	 *            The size bucket to decode to
+	 * @return The {@link Bitmap} if found in cache, null otherwise
+	 */
+	private Bitmap decodeFromDiskCache(final String data, final ImageSize size) {
 		final String key = hashKeyForDisk(data);
-		if (mDiskCache != null) {
+		final DiskLruCache diskCache = getDiskCache(data);
+		if (diskCache != null) {
 			InputStream inputStream = null;
 			try {
-				final DiskLruCache.Snapshot snapshot = mDiskCache.get(key);
+				final DiskLruCache.Snapshot snapshot = diskCache.get(key);
 				if (snapshot != null) {
 					inputStream = snapshot.getInputStream(DISK_CACHE_INDEX);
 					if (inputStream != null) {
-						final Bitmap bitmap = BitmapFactory
-								.decodeStream(inputStream);
+						final Bitmap bitmap = decodeBytes(
+								readFully(inputStream), size);
 						if (bitmap != null) {
 							return bitmap;
 						}
@@ -411,6 +883,145 @@ public final class ImageCache {
 		return null;
 	}
 
+	/**
+	 * Streams an encoded image into the disk cache as it is, then decodes it
+	 * from there. If the disk cache can't take it, the image is decoded from
+	 * memory instead. Either way the result goes to the memory cache.
+	 * 
+	 * @param data
+	 *            The key used to store the image
+	 * @param in
+	 *            The encoded image, read to its end
+	 * @param size
+	 *            The size bucket to decode to
+	 * @return The decoded {@link Bitmap}, or null if it couldn't be decoded
+	 * @throws IOException
+	 *             If reading the image failed
+	 */
+	public Bitmap addStreamToCache(final String data, final InputStream in,
+			final ImageSize size) throws IOException {
+		return pin(acquireStream(data, in, size));
+	}
+
+	/**
+	 * Like {@link #addStreamToCache(String, InputStream, ImageSize)}, for a
+	 * view that releases the image when it stops showing it.
+	 * 
+	 * @param data
+	 *            The key used to store the image
+	 * @param in
+	 *            The encoded image, read to its end
+	 * @param size
+	 *            The size bucket to decode to
+	 * @return The decoded {@link ReusableBitmap}, or null if it couldn't be
+	 *         decoded. The caller holds a reference to it.
+	 * @throws IOException
+	 *             If reading the image failed
+	 */
+	public ReusableBitmap acquireStream(final String data, final InputStream in,
+			final ImageSize size) throws IOException {
+		if (data == null || in == null) {
+			return null;
+		}
+		if (!addStreamToDiskCache(data, in)) {
+			// No disk cache, or another thread is writing the entry
+			return addToMemCache(getMemCacheKey(data, size),
+					track(decodeBytes(readFully(in), size)));
+		}
+		return acquireCachedBitmap(data, size);
+	}
+
+	/**
+	 * Streams an encoded image into the disk cache as it is, without decoding
+	 * it.
+	 * 
+	 * @param data
+	 *            The key used to store the image
+	 * @param in
+	 *            The encoded image, read to its end
+	 * @return True if the image was stored, false if there is no disk cache or
+	 *         another thread is writing the entry, then nothing was read
+	 * @throws IOException
+	 *             If reading the image failed
+	 */
+	public boolean addStreamToDiskCache(final String data, final InputStream in)
+			throws IOException {
+		final DiskLruCache diskCache = getDiskCache(data);
+		final DiskLruCache.Editor editor = diskCache != null ? diskCache
+				.edit(hashKeyForDisk(data)) : null;
+		if (editor == null) {
+			return false;
+		}
+		boolean committed = false;
+		try {
+			final OutputStream out = editor.newOutputStream(DISK_CACHE_INDEX);
+			try {
+				copy(in, out);
+			} finally {
+				out.close();
+			}
+			editor.commit();
+			committed = true;
+		} finally {
+			if (!committed) {
+				editor.abort();
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Checks the disk cache without reading the image, so the LRU order and
+	 * the statistics stay as they are.
+	 * 
+	 * @param data
+	 *            The key used to store the image
+	 * @return True if the disk cache holds the image or it is being written
+	 */
+	public boolean isInDiskCache(final String data) {
+		if (data == null) {
+			return false;
+		}
+		final DiskLruCache diskCache = getDiskCache(data);
+		if (diskCache == null || diskCache.isClosed()) {
+			return false;
+		}
+		return diskCache.contains(hashKeyForDisk(data));
+	}
+
+	/**
+	 * @param context
+	 *            The {@link Context} to use
+	 * @param albumId
+	 *            The ID of the album
+	 * @return True if the device holds artwork for the album
+	 */
+	public final boolean hasArtworkFile(final Context context,
+			final String albumId) {
+		if (albumId == null) {
+			return false;
+		}
+		ParcelFileDescriptor parcelFileDescriptor = null;
+		try {
+			parcelFileDescriptor = context.getContentResolver()
+					.openFileDescriptor(
+							ContentUris.withAppendedId(mArtworkUri,
+									Long.valueOf(albumId)), "r");
+			return parcelFileDescriptor != null;
+		} catch (final FileNotFoundException e) {
+			return false;
+		} catch (final IllegalStateException e) {
+			return false;
+		} finally {
+			if (parcelFileDescriptor != null) {
+				try {
+					parcelFileDescriptor.close();
+				} catch (final IOException ignored) {
+				}
+			}
+		}
+	}
+
 	/**
 	 * Tries to return a cached image from memory cache before fetching from the
 	 * disk cache
@@ -420,18 +1031,45 @@ public final class ImageCache {
 	 * @return The {@link Bitmap} if found in cache, null otherwise
 	 */
 	public final Bitmap getCachedBitmap(final String data) {
+		return getCachedBitmap(data, ImageSize.FULL);
+	}
+
+	/**
+	 * Tries to return a cached image from memory cache before fetching from the
+	 * disk cache
+	 * 
+	 * @param data
+	 *            Unique identifier for which item to get
+	 * @param size
+	 *            The size bucket to return
+	 * @return The {@link Bitmap} if found in cache, null otherwise
+	 */
+	public final Bitmap getCachedBitmap(final String data, final ImageSize size) {
+		return pin(acquireCachedBitmap(data, size));
+	}
+
+	/**
+	 * Like {@link #getCachedBitmap(String, ImageSize)}, for a view that
+	 * releases the image when it stops showing it.
+	 * 
+	 * @param data
+	 *            Unique identifier for which item to get
+	 * @param size
+	 *            The size bucket to return
+	 * @return The {@link ReusableBitmap} if found in cache, null otherwise. The
+	 *         caller holds a reference to it.
+	 */
+	public ReusableBitmap acquireCachedBitmap(final String data,
+			final ImageSize size) {
 		if (data == null) {
 			return null;
 		}
-		Bitmap cachedImage = getBitmapFromMemCache(data);
-		if (cachedImage == null) {
-			cachedImage = getBitmapFromDiskCache(data);
-		}
+		final String memKey = getMemCacheKey(data, size);
+		final ReusableBitmap cachedImage = acquireFromMemCache(memKey);
 		if (cachedImage != null) {
-			addBitmapToMemCache(data, cachedImage);
 			return cachedImage;
 		}
-		return null;
+		return addToMemCache(memKey, track(decodeFromDiskCache(data, size)));
 	}
 
 	/**
@@ -448,18 +1086,82 @@ public final class ImageCache {
 	 */
 	public final Bitmap getCachedArtwork(final Context context,
 			final String data, final String id) {
+		return getCachedArtwork(context, data, id, ImageSize.FULL);
+	}
+
+	/**
+	 * Tries to return the album art from memory cache and disk cache, before
+	 * calling {@code #getArtworkFromFile(Context, String, ImageSize)} again
+	 * 
+	 * @param context
+	 *            The {@link Context} to use
+	 * @param data
+	 *            The name of the album art
+	 * @param id
+	 *            The ID of the album to find artwork for
+	 * @param size
+	 *            The size bucket to return
+	 * @return The artwork for an album
+	 */
+	public final Bitmap getCachedArtwork(final Context context,
+			final String data, final String id, final ImageSize size) {
+		return pin(acquireCachedArtwork(context, data, id, size));
+	}
+
+	/**
+	 * Like {@link #getCachedArtwork(Context, String, String, ImageSize)}, for a
+	 * view that releases the image when it stops showing it.
+	 * 
+	 * @param context
+	 *            The {@link Context} to use
+	 * @param data
+	 *            The name of the album art
+	 * @param id
+	 *            The ID of the album to find artwork for
+	 * @param size
+	 *            The size bucket to return
+	 * @return The {@link ReusableBitmap} for the album, or null. The caller
+	 *         holds a reference to it.
+	 */
+	public ReusableBitmap acquireCachedArtwork(final Context context,
+			final String data, final String id, final ImageSize size) {
 		if (context == null || data == null) {
 			return null;
 		}
-		Bitmap cachedImage = getCachedBitmap(data);
-		if (cachedImage == null && id != null) {
-			cachedImage = getArtworkFromFile(context, id);
-		}
-		if (cachedImage != null) {
-			addBitmapToMemCache(data, cachedImage);
+		final ReusableBitmap cachedImage = acquireCachedBitmap(data, size);
+		if (cachedImage != null || id == null) {
 			return cachedImage;
 		}
-		return null;
+		return addToMemCache(getMemCacheKey(data, size),
+				track(getArtworkFromFile(context, id, size)));
+	}
+
+	/**
+	 * @param bitmap
+	 *            A freshly decoded image, may be null
+	 * @return The image wrapped for the memory cache, the caller holds a
+	 *         reference to it
+	 */
+	private ReusableBitmap track(final Bitmap bitmap) {
+		if (bitmap == null) {
+			return null;
+		}
+		return new ReusableBitmap(bitmap, mBitmapPool);
+	}
+
+	/**
+	 * Hands an image to code that doesn't count its references.
+	 * 
+	 * @param image
+	 *            An image the caller holds a reference to, may be null
+	 * @return The image, which is never reused from now on
+	 */
+	private static Bitmap pin(final ReusableBitmap image) {
+		if (image == null) {
+			return null;
+		}
+		image.pin();
+		return image.getBitmap();
 	}
 
 	/**
@@ -473,20 +1175,51 @@ public final class ImageCache {
 	 */
 	public final Bitmap getArtworkFromFile(final Context context,
 			final String albumId) {
+		return getArtworkFromFile(context, albumId, ImageSize.FULL);
+	}
+
+	/**
+	 * Used to fetch the artwork for an album locally from the user's device
+	 * 
+	 * @param context
+	 *            The {@link Context} to use
+	 * @param albumID
+	 *            The ID of the album to find artwork for
+	 * @param size
+	 *            The size bucket to decode to
+	 * @return The artwork for an album
+	 */
+	public final Bitmap getArtworkFromFile(final Context context,
+			final String albumId, final ImageSize size) {
 		if (albumId == null) {
 			return null;
 		}
 		Bitmap artwork = null;
-		waitUntilUnpaused();
+		ParcelFileDescriptor parcelFileDescriptor = null;
 		try {
 			final Uri uri = ContentUris.withAppendedId(mArtworkUri,
 					Long.valueOf(albumId));
-			final ParcelFileDescriptor parcelFileDescriptor = context
-					.getContentResolver().openFileDescriptor(uri, "r");
+			parcelFileDescriptor = context.getContentResolver()
+					.openFileDescriptor(uri, "r");
 			if (parcelFileDescriptor != null) {
 				final FileDescriptor fileDescriptor = parcelFileDescriptor
 						.getFileDescriptor();
-				artwork = BitmapFactory.decodeFileDescriptor(fileDescriptor);
+				final BitmapFactory.Options options = new BitmapFactory.Options();
+				options.inJustDecodeBounds = true;
+				BitmapFactory.decodeFileDescriptor(fileDescriptor, null,
+						options);
+				setDecodeSize(options, size);
+				setReusableBitmap(options);
+				try {
+					artwork = BitmapFactory.decodeFileDescriptor(
+							fileDescriptor, null, options);
+				} catch (final IllegalArgumentException e) {
+					// The pooled bitmap didn't fit after all
+					options.inBitmap = null;
+					artwork = BitmapFactory.decodeFileDescriptor(
+							fileDescriptor, null, options);
+				}
+				artwork = resetDensity(artwork);
 			}
 		} catch (final IllegalStateException e) {
 			// Log.e(TAG, "IllegalStateExcetpion - getArtworkFromFile - ", e);
@@ -495,10 +1228,180 @@ public final class ImageCache {
 		} catch (final OutOfMemoryError evict) {
 			// Log.e(TAG, "OutOfMemoryError - getArtworkFromFile - ", evict);
 			evictAll();
+		} finally {
+			if (parcelFileDescriptor != null) {
+				try {
+					parcelFileDescriptor.close();
+				} catch (final IOException ignored) {
+				}
+			}
 		}
 		return artwork;
 	}
 
+	/**
+	 * @param width
+	 *            The width of the view showing the image, or 0 if unknown
+	 * @param height
+	 *            The height of the view showing the image, or 0 if unknown
+	 * @return The smallest size bucket covering the view
+	 */
+	public ImageSize getImageSize(final int width, final int height) {
+		if (width > 0 && height > 0
+				&& Math.max(width, height) <= mThumbnailSize) {
+			return ImageSize.THUMBNAIL;
+		}
+		return ImageSize.FULL;
+	}
+
+	/**
+	 * @param size
+	 *            A size bucket
+	 * @return The longest edge of the images in the bucket, in pixels
+	 */
+	public int getMaxEdge(final ImageSize size) {
+		return size == ImageSize.THUMBNAIL ? mThumbnailSize : FULL_SIZE;
+	}
+
+	/**
+	 * @param bitmap
+	 *            An image of any size
+	 * @param size
+	 *            The size bucket to fit the image to
+	 * @return The image scaled down to the bucket, or the image itself if it
+	 *         already fits
+	 */
+	public Bitmap scaleToSize(final Bitmap bitmap, final ImageSize size) {
+		final int maxEdge = getMaxEdge(size);
+		final int edge = Math.max(bitmap.getWidth(), bitmap.getHeight());
+		if (edge <= maxEdge) {
+			return bitmap;
+		}
+		return Bitmap.createScaledBitmap(bitmap,
+				Math.max(1, bitmap.getWidth() * maxEdge / edge),
+				Math.max(1, bitmap.getHeight() * maxEdge / edge), true);
+	}
+
+	/**
+	 * Sets up decode options so the image whose bounds were read fits a size
+	 * bucket. The image is sampled down by powers of two first, the density
+	 * scales it the rest of the way. The decoded image must go through
+	 * {@link #resetDensity} afterwards.
+	 * 
+	 * @param options
+	 *            Options holding the bounds of the image
+	 * @param size
+	 *            The size bucket to decode to
+	 */
+	private void setDecodeSize(final BitmapFactory.Options options,
+			final ImageSize size) {
+		final int maxEdge = getMaxEdge(size);
+		final int edge = Math.max(options.outWidth, options.outHeight);
+		options.inJustDecodeBounds = false;
+		options.inSampleSize = 1;
+		if (edge <= maxEdge) {
+			return;
+		}
+		while (edge / (options.inSampleSize * 2) >= maxEdge) {
+			options.inSampleSize *= 2;
+		}
+		final int sampledEdge = edge / options.inSampleSize;
+		if (sampledEdge > maxEdge) {
+			options.inScaled = true;
+			options.inDensity = sampledEdge;
+			options.inTargetDensity = maxEdge;
+		}
+	}
+
+	/**
+	 * Decodes an encoded image to fit a size bucket.
+	 * 
+	 * @param bytes
+	 *            The encoded image
+	 * @param size
+	 *            The size bucket to decode to
+	 * @return The decoded {@link Bitmap}, or null if it couldn't be decoded
+	 */
+	private Bitmap decodeBytes(final byte[] bytes, final ImageSize size) {
+		// The image is decoded in two passes
+		final BitmapFactory.Options options = new BitmapFactory.Options();
+		options.inJustDecodeBounds = true;
+		BitmapFactory.decodeStream(new ByteArrayInputStream(bytes), null,
+				options);
+		if (options.outWidth <= 0 || options.outHeight <= 0) {
+			return null;
+		}
+		setDecodeSize(options, size);
+		setReusableBitmap(options);
+		Bitmap bitmap;
+		try {
+			bitmap = BitmapFactory.decodeStream(
+					new ByteArrayInputStream(bytes), null, options);
+		} catch (final IllegalArgumentException e) {
+			// The pooled bitmap didn't fit after all
+			options.inBitmap = null;
+			bitmap = BitmapFactory.decodeStream(
+					new ByteArrayInputStream(bytes), null, options);
+		}
+		return resetDensity(bitmap);
+	}
+
+	/**
+	 * Lets a decode set up by {@link #setDecodeSize} reuse a pooled bitmap.
+	 * That is only possible when the image is decoded at its own size.
+	 * 
+	 * @param options
+	 *            Options holding the bounds of the image
+	 */
+	private void setReusableBitmap(final BitmapFactory.Options options) {
+		// Decode to a mutable bitmap so it can go to the pool later on
+		options.inMutable = true;
+		if (mBitmapPool != null && options.inSampleSize == 1
+				&& options.inDensity == 0) {
+			options.inBitmap = mBitmapPool.get(options.outWidth,
+					options.outHeight);
+		}
+	}
+
+	/**
+	 * @return The pool of bitmaps reused by the decoders, with its hit and
+	 *         miss counts
+	 */
+	public BitmapPool getBitmapPool() {
+		return mBitmapPool;
+	}
+
+	/**
+	 * Gives an image decoded with {@link #setDecodeSize} the density of the
+	 * screen. The scaling densities are only a way to size the decode, left
+	 * on the image they would make drawables rescale it.
+	 * 
+	 * @param bitmap
+	 *            The decoded image, may be null
+	 * @return The same image
+	 */
+	private Bitmap resetDensity(final Bitmap bitmap) {
+		if (bitmap != null) {
+			bitmap.setDensity(mDensityDpi);
+		}
+		return bitmap;
+	}
+
+	/**
+	 * @param data
+	 *            The key used to store the image
+	 * @param size
+	 *            The size bucket of the image
+	 * @return The key of the image in the memory cache
+	 */
+	public static final String getMemCacheKey(final String data,
+			final ImageSize size) {
+		if (data == null || size == ImageSize.FULL) {
+			return data;
+		}
+		return data + THUMBNAIL_KEY_SUFFIX;
+	}
+
 	/**
 	 * flush() is called to synchronize up other methods that are accessing the
 	 * cache first
@@ -508,15 +1411,8 @@ public final class ImageCache {
 
 			@Override
 			protected Void doInBackground(final Void... unused) {
-				if (mDiskCache != null) {
-					try {
-						if (!mDiskCache.isClosed()) {
-							mDiskCache.flush();
-						}
-					} catch (final IOException e) {
-						Log.e(TAG, "flush - " + e);
-					}
-				}
+				flushDiskCache(mAlbumDiskCache);
+				flushDiskCache(mArtistDiskCache);
 				return null;
 			}
 		}, (Void[]) null);
@@ -530,17 +1426,26 @@ public final class ImageCache {
 
 			@Override
 			protected Void doInBackground(final Void... unused) {
-				// Clear the disk cache
-				try {
-					if (mDiskCache != null) {
-						mDiskCache.delete();
-						mDiskCache = null;
+				// Clear the disk caches
+				synchronized (ImageCache.this) {
+					try {
+						if (mAlbumDiskCache != null) {
+							mAlbumDiskCache.delete();
+							mAlbumDiskCache = null;
+						}
+						if (mArtistDiskCache != null) {
+							mArtistDiskCache.delete();
+							mArtistDiskCache = null;
+						}
+					} catch (final IOException e) {
+						Log.e(TAG, "clearCaches - " + e);
 					}
-				} catch (final IOException e) {
-					Log.e(TAG, "clearCaches - " + e);
 				}
 				// Clear the memory cache
 				evictAll();
+				// Start over with empty disk caches
+				initDiskCache(mContext, PreferenceUtils.getInstance(mContext)
+						.getCacheSize());
 				return null;
 			}
 		}, (Void[]) null);
@@ -556,11 +1461,15 @@ public final class ImageCache {
 
 			@Override
 			protected Void doInBackground(final Void... unused) {
-				if (mDiskCache != null) {
+				synchronized (ImageCache.this) {
 					try {
-						if (!mDiskCache.isClosed()) {
-							mDiskCache.close();
-							mDiskCache = null;
+						if (mAlbumDiskCache != null) {
+							mAlbumDiskCache.close();
+							mAlbumDiskCache = null;
+						}
+						if (mArtistDiskCache != null) {
+							mArtistDiskCache.close();
+							mArtistDiskCache = null;
 						}
 					} catch (final IOException e) {
 						Log.e(TAG, "close - " + e);
@@ -571,6 +1480,18 @@ public final class ImageCache {
 		}, (Void[]) null);
 	}
 
+	private static final void flushDiskCache(final DiskLruCache diskCache) {
+		if (diskCache != null) {
+			try {
+				if (!diskCache.isClosed()) {
+					diskCache.flush();
+				}
+			} catch (final IOException e) {
+				Log.e(TAG, "flush - " + e);
+			}
+		}
+	}
+
 	/**
 	 * Evicts all of the items from the memory cache and lets the system know
 	 * now would be a good time to garbage collect
@@ -579,6 +1500,10 @@ public final class ImageCache {
 		if (mLruCache != null) {
 			mLruCache.evictAll();
 		}
+		// Evicting fed the pool, don't hold on to any of it
+		if (mBitmapPool != null) {
+			mBitmapPool.clear();
+		}
 		System.gc();
 	}
 
@@ -590,15 +1515,17 @@ public final class ImageCache {
 		if (key == null) {
 			return;
 		}
-		// Remove the Lru entry
+		// Remove the Lru entries
 		if (mLruCache != null) {
 			mLruCache.remove(key);
+			mLruCache.remove(getMemCacheKey(key, ImageSize.THUMBNAIL));
 		}
 
 		try {
 			// Remove the disk entry
-			if (mDiskCache != null) {
-				mDiskCache.remove(hashKeyForDisk(key));
+			final DiskLruCache diskCache = getDiskCache(key);
+			if (diskCache != null) {
+				diskCache.remove(hashKeyForDisk(key));
 			}
 		} catch (final IOException e) {
 			Log.e(TAG, "remove - " + e);
@@ -614,28 +1541,9 @@ public final class ImageCache {
 	 *            True to temporarily pause the disk cache, false otherwise.
 	 */
 	public void setPauseDiskCache(final boolean pause) {
-		synchronized (mPauseLock) {
-			if (mPauseDiskAccess != pause) {
-				mPauseDiskAccess = pause;
-				if (!pause) {
-					mPauseLock.notify();
-				}
-			}
-		}
-	}
-
-	private void waitUntilUnpaused() {
-		synchronized (mPauseLock) {
-			if (Looper.myLooper() != Looper.getMainLooper()) {
-				while (mPauseDiskAccess) {
-					try {
-						mPauseLock.wait();
-					} catch (InterruptedException e) {
-						// ignored, we'll start waiting again
-					}
-				}
-			}
-		}
+		mPauseDiskAccess = pause;
+		// Image loads wait in the executor, other readers are never held up
+		ImageExecutor.getInstance().setDiskPaused(pause);
 	}
 
 	/**
@@ -696,6 +1604,39 @@ public final class ImageCache {
 		return path.getUsableSpace();
 	}
 
+	/**
+	 * Reads a stream to its end.
+	 * 
+	 * @param in
+	 *            The stream to read
+	 * @return The bytes read
+	 * @throws IOException
+	 */
+	private static final byte[] readFully(final InputStream in)
+			throws IOException {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		copy(in, out);
+		return out.toByteArray();
+	}
+
+	/**
+	 * Copies a stream to its end.
+	 * 
+	 * @param in
+	 *            The stream to read
+	 * @param out
+	 *            The stream to write to
+	 * @throws IOException
+	 */
+	private static final void copy(final InputStream in, final OutputStream out)
+			throws IOException {
+		final byte[] buffer = new byte[IO_BUFFER_SIZE];
+		int count;
+		while ((count = in.read(buffer)) != -1) {
+			out.write(buffer, 0, count);
+		}
+	}
+
 	/**
 	 * A hashing method that changes a string (like a URL) into a hash suitable
 	 * for using as a disk filename.
@@ -735,6 +1676,14 @@ public final class ImageCache {
 		return builder.toString();
 	}
 
+	/**
+	 * The size buckets images are decoded to. Each bucket is kept under its
+	 * own key in the memory cache, the disk cache holds the full size image.
+	 */
+	public enum ImageSize {
+		THUMBNAIL, FULL;
+	}
+
 	/**
 	 * A simple non-UI Fragment that stores a single Object and is retained over
 	 * configuration changes. In this sample it will be used to retain an
@@ -784,15 +1733,18 @@ public final class ImageCache {
 	}
 
 	/**
-	 * Used to cache images via {@link LruCache}.
+	 * Used to cache images via {@link ConcurrentLruCache}. A dropped image is
+	 * only reused once every reference to it was released, see
+	 * {@link ReusableBitmap}.
 	 */
-	public static final class MemoryCache extends LruCache<String, Bitmap> {
+	public static final class MemoryCache extends
+			ConcurrentLruCache<String, ReusableBitmap> {
 
 		/**
 		 * Constructor of <code>MemoryCache</code>
 		 * 
 		 * @param maxSize
-		 *            The allowed size of the {@link LruCache}
+		 *            The allowed size of the {@link ConcurrentLruCache}
 		 */
 		public MemoryCache(final int maxSize) {
 			super(maxSize);
@@ -809,8 +1761,18 @@ public final class ImageCache {
 		 * {@inheritDoc}
 		 */
 		@Override
-		protected int sizeOf(final String paramString, final Bitmap paramBitmap) {
-			return getBitmapSize(paramBitmap);
+		protected int sizeOf(final String paramString,
+				final ReusableBitmap paramBitmap) {
+			return getBitmapSize(paramBitmap.getBitmap());
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		protected void entryRemoved(final boolean evicted, final String key,
+				final ReusableBitmap oldValue, final ReusableBitmap newValue) {
+			oldValue.setCached(false);
 		}
 
 	}
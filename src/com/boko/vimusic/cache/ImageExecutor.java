@@ -0,0 +1,346 @@
+/*
+ * Copyright (C) 2012 Andrew Neal Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law
+ * or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+
+package com.boko.vimusic.cache;
+
+import java.util.ArrayList;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.os.Process;
+
+/**
+ * The threads {@link ImageWorker} loads images on, kept apart from
+ * {@link android.os.AsyncTask}'s shared pool. Reading the caches and decoding
+ * runs on a disk pool, fetching missing images runs on a network pool, so slow
+ * downloads never hold up images that are already on the device.
+ * <p>
+ * Both queues are last in, first out: the views bound last are the ones on
+ * screen, so they are served first. The queues are bounded, when one is full
+ * the oldest request is dropped.
+ * <p>
+ * While the user scrolls the disk pool is paused: its requests are held back
+ * and handed to the threads again on resume, so no thread sits waiting for the
+ * scroll to end.
+ */
+public final class ImageExecutor {
+
+	/**
+	 * Threads reading the caches and decoding
+	 */
+	private static final int DISK_POOL_SIZE = 2;
+
+	/**
+	 * Threads downloading missing images
+	 */
+	private static final int NETWORK_POOL_SIZE = 3;
+
+	/**
+	 * Most requests waiting in each pool
+	 */
+	private static final int QUEUE_CAPACITY = 48;
+
+	/**
+	 * Idle threads are stopped after this many seconds
+	 */
+	private static final int KEEP_ALIVE = 10;
+
+	private static ImageExecutor sInstance;
+
+	private final LifoQueue mDiskQueue = new LifoQueue(QUEUE_CAPACITY);
+
+	private final LifoQueue mNetworkQueue = new LifoQueue(QUEUE_CAPACITY);
+
+	private final ThreadPoolExecutor mDiskExecutor;
+
+	private final ThreadPoolExecutor mNetworkExecutor;
+
+	/**
+	 * Disk requests held back while the disk pool is paused, oldest first
+	 */
+	private final ArrayList<Runnable> mHeldRequests = new ArrayList<Runnable>();
+
+	/**
+	 * True while the disk pool is paused, guarded by mHeldRequests. Disk
+	 * requests are handed to the pool under the same lock, so none reaches
+	 * it while it is paused.
+	 */
+	private boolean mDiskPaused = false;
+
+	/**
+	 * Requests cancelled before they ran
+	 */
+	private final AtomicInteger mCancelledCount = new AtomicInteger();
+
+	/**
+	 * Requests dropped because a queue was full
+	 */
+	private final AtomicInteger mDroppedCount = new AtomicInteger();
+
+	/**
+	 * Used to create a singleton of {@link ImageExecutor}
+	 *
+	 * @return A new instance of this class.
+	 */
+	public static final synchronized ImageExecutor getInstance() {
+		if (sInstance == null) {
+			sInstance = new ImageExecutor();
+		}
+		return sInstance;
+	}
+
+	/**
+	 * Constructor of <code>ImageExecutor</code>
+	 */
+	private ImageExecutor() {
+		mDiskExecutor = newExecutor(DISK_POOL_SIZE, mDiskQueue, "ImageDisk");
+		mNetworkExecutor = newExecutor(NETWORK_POOL_SIZE, mNetworkQueue,
+				"ImageNetwork");
+	}
+
+	/**
+	 * A request that is told when it was dropped from a full queue.
+	 */
+	public interface Cancellable extends Runnable {
+
+		/**
+		 * Called when the request won't run.
+		 */
+		public void cancel();
+	}
+
+	/**
+	 * Runs a request on the disk pool.
+	 *
+	 * @param request
+	 *            The request to run
+	 */
+	public void executeDisk(final Runnable request) {
+		Runnable dropped = null;
+		synchronized (mHeldRequests) {
+			if (mDiskPaused) {
+				dropped = hold(request);
+			} else {
+				// Under the lock, so a pause can't miss the request. The
+				// queue never blocks or rejects, a full one drops its oldest.
+				mDiskExecutor.execute(request);
+			}
+		}
+		cancel(dropped);
+	}
+
+	/**
+	 * Runs a request on the network pool.
+	 *
+	 * @param request
+	 *            The request to run
+	 */
+	public void executeNetwork(final Runnable request) {
+		mNetworkExecutor.execute(request);
+	}
+
+	/**
+	 * Drops a request that hasn't started yet.
+	 *
+	 * @param request
+	 *            The request to drop
+	 */
+	public void remove(final Runnable request) {
+		boolean removed;
+		synchronized (mHeldRequests) {
+			removed = mHeldRequests.remove(request);
+		}
+		if (removed || mDiskExecutor.remove(request)
+				|| mNetworkExecutor.remove(request)) {
+			mCancelledCount.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Pauses or resumes the disk pool. While it is paused new and waiting disk
+	 * requests are held back, the ones already running finish.
+	 *
+	 * @param pause
+	 *            True to pause the disk pool, false to resume it
+	 */
+	public void setDiskPaused(final boolean pause) {
+		final ArrayList<Runnable> dropped = new ArrayList<Runnable>();
+		synchronized (mHeldRequests) {
+			if (mDiskPaused == pause) {
+				return;
+			}
+			mDiskPaused = pause;
+			if (pause) {
+				// The queue hands out the newest first, hold them oldest first
+				final ArrayList<Runnable> waiting = new ArrayList<Runnable>();
+				mDiskQueue.drainTo(waiting);
+				for (int i = waiting.size() - 1; i >= 0; i--) {
+					dropped.add(hold(waiting.get(i)));
+				}
+			} else {
+				// Oldest first, so the newest ends up at the head of the queue
+				for (final Runnable request : mHeldRequests) {
+					mDiskExecutor.execute(request);
+				}
+				mHeldRequests.clear();
+			}
+		}
+		for (final Runnable request : dropped) {
+			cancel(request);
+		}
+	}
+
+	/**
+	 * Holds back a disk request, dropping the oldest one when too many are
+	 * held. Must hold mHeldRequests.
+	 *
+	 * @return The dropped request, to be cancelled without the lock, or null
+	 */
+	private Runnable hold(final Runnable request) {
+		mHeldRequests.add(request);
+		if (mHeldRequests.size() > QUEUE_CAPACITY) {
+			mDroppedCount.incrementAndGet();
+			return mHeldRequests.remove(0);
+		}
+		return null;
+	}
+
+	/**
+	 * Tells a dropped request it won't run.
+	 */
+	private static void cancel(final Runnable request) {
+		if (request instanceof Cancellable) {
+			((Cancellable) request).cancel();
+		}
+	}
+
+	/**
+	 * @return The number of requests waiting for a disk thread
+	 */
+	public int getDiskQueueDepth() {
+		return mDiskQueue.size();
+	}
+
+	/**
+	 * @return The number of disk requests held back by the pause
+	 */
+	public int getHeldCount() {
+		synchronized (mHeldRequests) {
+			return mHeldRequests.size();
+		}
+	}
+
+	/**
+	 * @return The number of requests waiting for a network thread
+	 */
+	public int getNetworkQueueDepth() {
+		return mNetworkQueue.size();
+	}
+
+	/**
+	 * @return The most requests that were waiting for a disk thread at once
+	 */
+	public int getMaxDiskQueueDepth() {
+		return mDiskQueue.mMaxDepth;
+	}
+
+	/**
+	 * @return The most requests that were waiting for a network thread at once
+	 */
+	public int getMaxNetworkQueueDepth() {
+		return mNetworkQueue.mMaxDepth;
+	}
+
+	/**
+	 * @return The number of requests cancelled before they ran
+	 */
+	public int getCancelledCount() {
+		return mCancelledCount.get();
+	}
+
+	/**
+	 * @return The number of requests dropped because a queue was full
+	 */
+	public int getDroppedCount() {
+		return mDroppedCount.get();
+	}
+
+	/**
+	 * @return The number of requests that ran to completion
+	 */
+	public long getCompletedCount() {
+		return mDiskExecutor.getCompletedTaskCount()
+				+ mNetworkExecutor.getCompletedTaskCount();
+	}
+
+	private static ThreadPoolExecutor newExecutor(final int size,
+			final LifoQueue queue, final String name) {
+		final ThreadPoolExecutor executor = new ThreadPoolExecutor(size, size,
+				KEEP_ALIVE, TimeUnit.SECONDS, queue, new ThreadFactory() {
+
+					private final AtomicInteger mCount = new AtomicInteger(1);
+
+					@Override
+					public Thread newThread(final Runnable r) {
+						return new Thread(r, name + " #"
+								+ mCount.getAndIncrement()) {
+
+							@Override
+							public void run() {
+								Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+								super.run();
+							}
+						};
+					}
+				});
+		executor.allowCoreThreadTimeOut(true);
+		return executor;
+	}
+
+	/**
+	 * A bounded queue that hands out the newest request first and drops the
+	 * oldest one when it is full.
+	 */
+	private final class LifoQueue extends LinkedBlockingDeque<Runnable> {
+
+		private static final long serialVersionUID = 1L;
+
+		private volatile int mMaxDepth = 0;
+
+		public LifoQueue(final int capacity) {
+			super(capacity);
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public boolean offer(final Runnable request) {
+			while (!offerFirst(request)) {
+				final Runnable oldest = pollLast();
+				if (oldest != null) {
+					mDroppedCount.incrementAndGet();
+					if (oldest instanceof Cancellable) {
+						((Cancellable) oldest).cancel();
+					}
+				}
+			}
+			final int depth = size();
+			if (depth > mMaxDepth) {
+				mMaxDepth = depth;
+			}
+			return true;
+		}
+	}
+}
@@ -11,10 +11,6 @@
 
 package com.boko.vimusic.cache;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.HttpURLConnection;
@@ -24,11 +20,13 @@ import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.text.TextUtils;
+import android.util.Log;
 import android.widget.ImageView;
 
 import com.boko.vimusic.Config;
 import com.boko.vimusic.api.lastfm.Album;
 import com.boko.vimusic.api.lastfm.Artist;
+import com.boko.vimusic.cache.ImageCache.ImageSize;
 import com.boko.vimusic.service.MediaPlaybackService;
 import com.boko.vimusic.utils.MusicUtils;
 import com.boko.vimusic.utils.PreferenceUtils;
@@ -38,14 +36,12 @@ import com.boko.vimusic.utils.PreferenceUtils;
  */
 public class ImageFetcher extends ImageWorker {
 
-	public static final int IO_BUFFER_SIZE_BYTES = 1024;
+	private static final String TAG = ImageFetcher.class.getSimpleName();
 
 	private static final int DEFAULT_MAX_IMAGE_HEIGHT = 1024;
 
 	private static final int DEFAULT_MAX_IMAGE_WIDTH = 1024;
 
-	private static final String DEFAULT_HTTP_CACHE_DIR = "http"; //$NON-NLS-1$
-
 	private static ImageFetcher sInstance = null;
 
 	/**
@@ -76,23 +72,75 @@ public class ImageFetcher extends ImageWorker {
 	 * {@inheritDoc}
 	 */
 	@Override
-	protected Bitmap processBitmap(final String url) {
-		if (url == null) {
+	protected ReusableBitmap processBitmap(final String key, final String url,
+			final ImageSize size) {
+		if (key == null || url == null || mImageCache == null) {
 			return null;
 		}
-		final File file = downloadBitmapToFile(mContext, url,
-				DEFAULT_HTTP_CACHE_DIR);
-		if (file != null) {
-			// Return a sampled down version
-			final Bitmap bitmap = decodeSampledBitmapFromFile(file.toString());
-			file.delete();
-			if (bitmap != null) {
-				return bitmap;
+		HttpURLConnection urlConnection = null;
+		InputStream in = null;
+		try {
+			urlConnection = (HttpURLConnection) new URL(url).openConnection();
+			if (urlConnection.getResponseCode() != HttpURLConnection.HTTP_OK) {
+				return null;
+			}
+			in = urlConnection.getInputStream();
+			// The body goes straight into the disk cache
+			return mImageCache.acquireStream(key, in, size);
+		} catch (final IOException e) {
+			Log.e(TAG, "processBitmap - " + e);
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (final IOException ignored) {
+				}
+			}
+			if (urlConnection != null) {
+				urlConnection.disconnect();
 			}
 		}
 		return null;
 	}
 
+	/**
+	 * Downloads an image into the disk cache without decoding it.
+	 * 
+	 * @param key
+	 *            The key used to store the image
+	 * @param url
+	 *            The URL of the image
+	 * @return True if the image was stored
+	 */
+	public boolean downloadToDiskCache(final String key, final String url) {
+		if (key == null || url == null || mImageCache == null) {
+			return false;
+		}
+		HttpURLConnection urlConnection = null;
+		InputStream in = null;
+		try {
+			urlConnection = (HttpURLConnection) new URL(url).openConnection();
+			if (urlConnection.getResponseCode() != HttpURLConnection.HTTP_OK) {
+				return false;
+			}
+			in = urlConnection.getInputStream();
+			return mImageCache.addStreamToDiskCache(key, in);
+		} catch (final IOException e) {
+			Log.e(TAG, "downloadToDiskCache - " + e);
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (final IOException ignored) {
+				}
+			}
+			if (urlConnection != null) {
+				urlConnection.disconnect();
+			}
+		}
+		return false;
+	}
+
 	/**
 	 * {@inheritDoc}
 	 */
@@ -266,8 +314,9 @@ public class ImageFetcher extends ImageWorker {
 		}
 		// if (artwork == null && artistName != null && albumName != null) {
 		// // Download missing artwork
-		// artwork = processBitmap(processImageUrl(artistName, albumName,
-		// ImageType.ALBUM));
+		// artwork = processBitmap(generateAlbumCacheKey(albumName,
+		// artistName), processImageUrl(artistName, albumName,
+		// ImageType.ALBUM), ImageSize.FULL);
 		// }
 		if (artwork != null) {
 			return artwork;
@@ -275,60 +324,6 @@ public class ImageFetcher extends ImageWorker {
 		return getDefaultArtwork();
 	}
 
-	/**
-	 * Download a {@link Bitmap} from a URL, write it to a disk and return the
-	 * File pointer. This implementation uses a simple disk cache.
-	 * 
-	 * @param context
-	 *            The context to use
-	 * @param urlString
-	 *            The URL to fetch
-	 * @return A {@link File} pointing to the fetched bitmap
-	 */
-	public static final File downloadBitmapToFile(final Context context,
-			final String urlString, final String uniqueName) {
-		final File cacheDir = ImageCache.getDiskCacheDir(context, uniqueName);
-
-		if (!cacheDir.exists()) {
-			cacheDir.mkdir();
-		}
-
-		HttpURLConnection urlConnection = null;
-		BufferedOutputStream out = null;
-
-		try {
-			final File tempFile = File.createTempFile("bitmap", null, cacheDir); //$NON-NLS-1$
-
-			final URL url = new URL(urlString);
-			urlConnection = (HttpURLConnection) url.openConnection();
-			if (urlConnection.getResponseCode() != HttpURLConnection.HTTP_OK) {
-				return null;
-			}
-			final InputStream in = new BufferedInputStream(
-					urlConnection.getInputStream(), IO_BUFFER_SIZE_BYTES);
-			out = new BufferedOutputStream(new FileOutputStream(tempFile),
-					IO_BUFFER_SIZE_BYTES);
-
-			int oneByte;
-			while ((oneByte = in.read()) != -1) {
-				out.write(oneByte);
-			}
-			return tempFile;
-		} catch (final IOException ignored) {
-		} finally {
-			if (urlConnection != null) {
-				urlConnection.disconnect();
-			}
-			if (out != null) {
-				try {
-					out.close();
-				} catch (final IOException ignored) {
-				}
-			}
-		}
-		return null;
-	}
-
 	/**
 	 * Decode and sample down a {@link Bitmap} from a file to the requested
 	 * width and height.
@@ -12,6 +12,8 @@
 package com.boko.vimusic.cache;
 
 import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashMap;
 
 import android.content.Context;
 import android.content.res.Resources;
@@ -20,11 +22,15 @@ import android.graphics.Color;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.ColorDrawable;
 import android.graphics.drawable.Drawable;
+import android.graphics.drawable.LayerDrawable;
 import android.graphics.drawable.TransitionDrawable;
-import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
+import android.view.ViewGroup;
 import android.widget.ImageView;
 
 import com.boko.vimusic.R;
+import com.boko.vimusic.cache.ImageCache.ImageSize;
 import com.boko.vimusic.utils.CommonUtils;
 import com.boko.vimusic.utils.ThemeUtils;
 
@@ -33,6 +39,12 @@ import com.boko.vimusic.utils.ThemeUtils;
  * a {@link Bitmap} to an {@link ImageView}. It handles things like using a
  * memory and disk cache, running the work in a background thread and setting a
  * placeholder image.
+ * <p>
+ * The views count their references to the images they show, so an image
+ * dropped by the memory cache is reused for another decode once no view shows
+ * it anymore. A reference is released when the image worker sets another
+ * drawable on the view. A view whose drawable is replaced elsewhere keeps its
+ * reference, its image is then simply never reused.
  */
 public abstract class ImageWorker {
 
@@ -57,15 +69,22 @@ public abstract class ImageWorker {
 	private final ColorDrawable mCurrentDrawable;
 
 	/**
-	 * Layer drawable used to cross fade the result from the worker
+	 * Used to hand results back to the main thread
 	 */
-	private final Drawable[] mArrayDrawable;
+	private static final Handler sMainHandler = new Handler(
+			Looper.getMainLooper());
 
 	/**
 	 * Default album art
 	 */
 	private final Bitmap mDefault;
 
+	/**
+	 * The images being loaded by memory cache key, so views asking for the
+	 * same image share a single load
+	 */
+	private final HashMap<String, ImageRequest> mRequests = new HashMap<String, ImageRequest>();
+
 	/**
 	 * The Context to use
 	 */
@@ -96,10 +115,6 @@ public abstract class ImageWorker {
 		// Create the transparent layer for the transition drawable
 		mCurrentDrawable = new ColorDrawable(
 				mResources.getColor(R.color.transparent));
-		// A transparent image (layer 0) and the new result (layer 1)
-		mArrayDrawable = new Drawable[2];
-		mArrayDrawable[0] = mCurrentDrawable;
-		// XXX The second layer is set in the worker task.
 	}
 
 	/**
@@ -155,15 +170,12 @@ public abstract class ImageWorker {
 	}
 
 	/**
-	 * The actual {@link AsyncTask} that will process the image.
+	 * Loads the image for a cache key. It first runs on the disk pool of
+	 * {@link ImageExecutor} and moves to the network pool when the image has to
+	 * be downloaded. Every {@link BitmapWorkerTask} waiting for the key gets
+	 * the result.
 	 */
-	private final class BitmapWorkerTask extends
-			AsyncTask<String, Void, TransitionDrawable> {
-
-		/**
-		 * The {@link ImageView} used to set the result
-		 */
-		private final WeakReference<ImageView> mImageReference;
+	private final class ImageRequest implements ImageExecutor.Cancellable {
 
 		/**
 		 * Type of URL to download
@@ -173,120 +185,311 @@ public abstract class ImageWorker {
 		/**
 		 * The key used to store cached entries
 		 */
-		private String mKey;
+		private final String mKey;
 
 		/**
 		 * Artist name param
 		 */
-		private String mArtistName;
+		private final String mArtistName;
 
 		/**
 		 * Album name parm
 		 */
-		private String mAlbumName;
+		private final String mAlbumName;
 
 		/**
 		 * The album ID used to find the corresponding artwork
 		 */
-		private String mAlbumId;
+		private final String mAlbumId;
 
 		/**
-		 * The URL of an image to download
+		 * The size bucket to decode to
 		 */
-		private String mUrl;
+		private final ImageSize mSize;
 
 		/**
-		 * Constructor of <code>BitmapWorkerTask</code>
+		 * The key of the request in mRequests and the memory cache
+		 */
+		private final String mMemKey;
+
+		/**
+		 * The views waiting for the image, guarded by mRequests
+		 */
+		private final ArrayList<BitmapWorkerTask> mTasks = new ArrayList<BitmapWorkerTask>(
+				2);
+
+		/**
+		 * True once the request moved to the network pool
+		 */
+		private boolean mOnNetwork = false;
+
+		private volatile boolean mCancelled = false;
+
+		/**
+		 * Constructor of <code>ImageRequest</code>
 		 * 
-		 * @param imageView
-		 *            The {@link ImageView} to use.
 		 * @param imageType
 		 *            The type of image URL to fetch for.
+		 * @param key
+		 *            The key used to store cached entries
+		 * @param artistName
+		 *            The artist name for the Last.fm API
+		 * @param albumName
+		 *            The album name for the Last.fm API
+		 * @param albumId
+		 *            The album ID used to find the corresponding artwork
+		 * @param size
+		 *            The size bucket to decode to
 		 */
-		@SuppressWarnings("deprecation")
-		public BitmapWorkerTask(final ImageView imageView,
-				final ImageType imageType) {
-			imageView.setBackgroundDrawable(mDefaultArtwork);
-			mImageReference = new WeakReference<ImageView>(imageView);
+		public ImageRequest(final ImageType imageType, final String key,
+				final String artistName, final String albumName,
+				final String albumId, final ImageSize size) {
 			mImageType = imageType;
+			mKey = key;
+			mArtistName = artistName;
+			mAlbumName = albumName;
+			mAlbumId = albumId;
+			mSize = size;
+			mMemKey = ImageCache.getMemCacheKey(key, size);
 		}
 
 		/**
 		 * {@inheritDoc}
 		 */
 		@Override
-		protected TransitionDrawable doInBackground(final String... params) {
-			// Define the key
-			mKey = params[0];
+		public void run() {
+			if (!isWanted()) {
+				// Views joining from now on start over
+				cancel();
+				return;
+			}
 
-			// The result
-			Bitmap bitmap = null;
+			// The result, the request holds a reference to it
+			ReusableBitmap bitmap = null;
 
-			// First, check the disk cache for the image
-			if (mKey != null && mImageCache != null && !isCancelled()
-					&& getAttachedImageView() != null) {
-				bitmap = mImageCache.getCachedBitmap(mKey);
-			}
+			if (!mOnNetwork) {
+				// First, check the disk cache for the image
+				if (mImageCache != null) {
+					bitmap = mImageCache.acquireCachedBitmap(mKey, mSize);
+				}
 
-			// Define the album id now
-			mAlbumId = params[3];
+				// Second, if we're fetching artwork, check the device for the
+				// image
+				if (bitmap == null && mImageType.equals(ImageType.ALBUM)
+						&& mAlbumId != null && mImageCache != null
+						&& isWanted()) {
+					bitmap = mImageCache.acquireCachedArtwork(mContext, mKey,
+							mAlbumId, mSize);
+				}
 
-			// Second, if we're fetching artwork, check the device for the image
-			if (bitmap == null && mImageType.equals(ImageType.ALBUM)
-					&& mAlbumId != null && mKey != null && !isCancelled()
-					&& getAttachedImageView() != null && mImageCache != null) {
-				bitmap = mImageCache.getCachedArtwork(mContext, mKey, mAlbumId);
+				// Third, by now we need to download the image, which must not
+				// hold up a disk thread
+				if (bitmap == null) {
+					if (CommonUtils.isOnline(mContext) && isWanted()) {
+						mOnNetwork = true;
+						ImageExecutor.getInstance().executeNetwork(this);
+					} else {
+						finish(null);
+					}
+					return;
+				}
+			} else {
+				final String url = processImageUrl(mArtistName, mAlbumName,
+						mImageType);
+				// Fourth, the download goes to the caches on its way
+				if (url != null && isWanted()) {
+					bitmap = processBitmap(mKey, url, mSize);
+				}
 			}
 
-			// Third, by now we need to download the image
-			if (bitmap == null && CommonUtils.isOnline(mContext)
-					&& !isCancelled() && getAttachedImageView() != null) {
-				// Now define what the artist name, album name, and url are.
-				mArtistName = params[1];
-				mAlbumName = params[2];
-				mUrl = processImageUrl(mArtistName, mAlbumName, mImageType);
-				if (mUrl != null) {
-					bitmap = processBitmap(mUrl);
+			// Finally, hand the image to the waiting views
+			finish(bitmap);
+		}
+
+		/**
+		 * Adds a view waiting for the image. Must hold mRequests.
+		 * 
+		 * @param task
+		 *            The {@link BitmapWorkerTask} of the view
+		 */
+		private void addTask(final BitmapWorkerTask task) {
+			mTasks.add(task);
+			task.mRequest = this;
+		}
+
+		/**
+		 * Stops loading the image when none of the views want it anymore.
+		 */
+		private void onTaskCancelled() {
+			synchronized (mRequests) {
+				for (final BitmapWorkerTask task : mTasks) {
+					if (!task.isCancelled()) {
+						return;
+					}
+				}
+				mCancelled = true;
+				if (mRequests.get(mMemKey) == this) {
+					mRequests.remove(mMemKey);
 				}
 			}
+			ImageExecutor.getInstance().remove(this);
+		}
 
-			// Fourth, add the new image to the cache
-			if (bitmap != null && mKey != null && mImageCache != null) {
-				addBitmapToCache(mKey, bitmap);
+		/**
+		 * Called by {@link ImageExecutor} when the request was dropped, or when
+		 * no view wants the image anymore. The views start a new request when
+		 * they are bound again.
+		 */
+		@Override
+		public void cancel() {
+			synchronized (mRequests) {
+				mCancelled = true;
+				if (mRequests.get(mMemKey) == this) {
+					mRequests.remove(mMemKey);
+				}
+				for (final BitmapWorkerTask task : mTasks) {
+					task.mCancelled = true;
+				}
 			}
+			ImageExecutor.getInstance().remove(this);
+		}
 
-			// Add the second layer to the transiation drawable
-			if (bitmap != null) {
-				final BitmapDrawable layerTwo = new BitmapDrawable(mResources,
-						bitmap);
-				layerTwo.setFilterBitmap(false);
-				layerTwo.setDither(false);
-				mArrayDrawable[1] = layerTwo;
-
-				// Finally, return the image
-				final TransitionDrawable result = new TransitionDrawable(
-						mArrayDrawable);
-				result.setCrossFadeEnabled(true);
-				result.startTransition(FADE_IN_TIME);
-				return result;
+		/**
+		 * @return True if a view still waits for the image
+		 */
+		private boolean isWanted() {
+			if (mCancelled) {
+				return false;
 			}
-			return null;
+			synchronized (mRequests) {
+				for (final BitmapWorkerTask task : mTasks) {
+					if (!task.isCancelled()
+							&& task.getAttachedImageView() != null) {
+						return true;
+					}
+				}
+			}
+			return false;
 		}
 
 		/**
-		 * {@inheritDoc}
+		 * Ends the request, views bound to the key from now on start a new
+		 * one.
+		 * 
+		 * @param bitmap
+		 *            The loaded {@link ReusableBitmap}, or null. The reference
+		 *            the request holds is released once the views took theirs.
 		 */
-		@Override
-		protected void onPostExecute(TransitionDrawable result) {
-			if (isCancelled()) {
-				result = null;
+		private void finish(final ReusableBitmap bitmap) {
+			final ArrayList<BitmapWorkerTask> tasks;
+			synchronized (mRequests) {
+				if (mRequests.get(mMemKey) == this) {
+					mRequests.remove(mMemKey);
+				}
+				tasks = new ArrayList<BitmapWorkerTask>(mTasks);
+			}
+			if (bitmap == null) {
+				return;
 			}
+			sMainHandler.post(new Runnable() {
+
+				@Override
+				public void run() {
+					for (final BitmapWorkerTask task : tasks) {
+						task.onPostExecute(bitmap);
+					}
+					bitmap.release();
+				}
+			});
+		}
+	}
+
+	/**
+	 * Binds the result of an {@link ImageRequest} to one {@link ImageView}.
+	 */
+	private final class BitmapWorkerTask {
+
+		/**
+		 * The {@link ImageView} used to set the result
+		 */
+		private final WeakReference<ImageView> mImageReference;
+
+		/**
+		 * The memory cache key of the image
+		 */
+		private final String mKey;
+
+		/**
+		 * The request loading the image, set under mRequests
+		 */
+		private ImageRequest mRequest;
+
+		private volatile boolean mCancelled = false;
+
+		/**
+		 * Constructor of <code>BitmapWorkerTask</code>
+		 * 
+		 * @param imageView
+		 *            The {@link ImageView} to use.
+		 * @param key
+		 *            The memory cache key of the image
+		 */
+		@SuppressWarnings("deprecation")
+		public BitmapWorkerTask(final ImageView imageView, final String key) {
+			imageView.setBackgroundDrawable(mDefaultArtwork);
+			mImageReference = new WeakReference<ImageView>(imageView);
+			mKey = key;
+		}
+
+		/**
+		 * Cross fades the result into the {@link ImageView}, on the main
+		 * thread.
+		 * 
+		 * @param bitmap
+		 *            The {@link ReusableBitmap} that was loaded
+		 */
+		private void onPostExecute(final ReusableBitmap bitmap) {
 			final ImageView imageView = getAttachedImageView();
-			if (result != null && imageView != null) {
-				imageView.setImageDrawable(result);
+			if (isCancelled() || imageView == null || !bitmap.acquire()) {
+				return;
+			}
+			final RecyclingBitmapDrawable layerTwo = new RecyclingBitmapDrawable(
+					mResources, bitmap);
+			layerTwo.setFilterBitmap(false);
+			layerTwo.setDither(false);
+
+			// A transparent image (layer 0) and the new result (layer 1)
+			final TransitionDrawable result = new TransitionDrawable(
+					new Drawable[] { mCurrentDrawable, layerTwo });
+			result.setCrossFadeEnabled(true);
+			result.startTransition(FADE_IN_TIME);
+			setImageDrawable(imageView, result);
+		}
+
+		/**
+		 * Stops waiting for the image, the request is dropped once no view
+		 * waits for it anymore.
+		 */
+		public void cancel() {
+			if (!mCancelled) {
+				mCancelled = true;
+				final ImageRequest request;
+				synchronized (mRequests) {
+					request = mRequest;
+				}
+				if (request != null) {
+					request.onTaskCancelled();
+				}
 			}
 		}
 
+		/**
+		 * @return True if the task was cancelled
+		 */
+		public boolean isCancelled() {
+			return mCancelled;
+		}
+
 		/**
 		 * @return The {@link ImageView} associated with this task as long as
 		 *         the ImageView's task still points to this task as well.
@@ -311,7 +514,7 @@ public abstract class ImageWorker {
 	public static final void cancelWork(final ImageView imageView) {
 		final BitmapWorkerTask bitmapWorkerTask = getBitmapWorkerTask(imageView);
 		if (bitmapWorkerTask != null) {
-			bitmapWorkerTask.cancel(true);
+			bitmapWorkerTask.cancel();
 		}
 	}
 
@@ -325,8 +528,9 @@ public abstract class ImageWorker {
 		final BitmapWorkerTask bitmapWorkerTask = getBitmapWorkerTask(imageView);
 		if (bitmapWorkerTask != null) {
 			final Object bitmapData = bitmapWorkerTask.mKey;
-			if (bitmapData == null || !bitmapData.equals(data)) {
-				bitmapWorkerTask.cancel(true);
+			if (bitmapData == null || !bitmapData.equals(data)
+					|| bitmapWorkerTask.isCancelled()) {
+				bitmapWorkerTask.cancel();
 			} else {
 				// The same work is already in progress
 				return false;
@@ -356,6 +560,79 @@ public abstract class ImageWorker {
 		return null;
 	}
 
+	/**
+	 * Sets a drawable on a view and releases the images of the drawable it
+	 * replaces.
+	 * 
+	 * @param imageView
+	 *            The {@link ImageView} to use
+	 * @param drawable
+	 *            The new {@link Drawable}
+	 */
+	private static final void setImageDrawable(final ImageView imageView,
+			final Drawable drawable) {
+		final Drawable previous = imageView.getDrawable();
+		if (previous == drawable) {
+			return;
+		}
+		imageView.setImageDrawable(drawable);
+		release(previous);
+	}
+
+	/**
+	 * Releases the images shown by a drawable, including the layers of a
+	 * {@link TransitionDrawable}.
+	 * 
+	 * @param drawable
+	 *            A {@link Drawable} no view shows anymore, may be null
+	 */
+	private static final void release(final Drawable drawable) {
+		if (drawable instanceof RecyclingBitmapDrawable) {
+			((RecyclingBitmapDrawable) drawable).release();
+		} else if (drawable instanceof LayerDrawable) {
+			final LayerDrawable layers = (LayerDrawable) drawable;
+			for (int i = 0; i < layers.getNumberOfLayers(); i++) {
+				release(layers.getDrawable(i));
+			}
+		}
+	}
+
+	/**
+	 * A {@link BitmapDrawable} holding a reference to the image it shows.
+	 * Every drawable is set on a single view and released once.
+	 */
+	private static final class RecyclingBitmapDrawable extends BitmapDrawable {
+
+		private final ReusableBitmap mImage;
+
+		private boolean mReleased = false;
+
+		/**
+		 * Constructor of <code>RecyclingBitmapDrawable</code>
+		 * 
+		 * @param res
+		 *            The resources to use
+		 * @param image
+		 *            An image the caller holds a reference to, the drawable
+		 *            takes it over
+		 */
+		public RecyclingBitmapDrawable(final Resources res,
+				final ReusableBitmap image) {
+			super(res, image.getBitmap());
+			mImage = image;
+		}
+
+		/**
+		 * Releases the reference to the image, on the main thread.
+		 */
+		public void release() {
+			if (!mReleased) {
+				mReleased = true;
+				mImage.release();
+			}
+		}
+	}
+
 	/**
 	 * A custom {@link BitmapDrawable} that will be attached to the
 	 * {@link ImageView} while the work is in progress. Contains a reference to
@@ -407,35 +684,79 @@ public abstract class ImageWorker {
 		if (key == null || mImageCache == null || imageView == null) {
 			return;
 		}
+		// Decode no larger than the view needs
+		final ImageSize size = getImageSize(imageView);
+		final String memKey = ImageCache.getMemCacheKey(key, size);
 		// First, check the memory for the image
-		final Bitmap lruBitmap = mImageCache.getBitmapFromMemCache(key);
+		final ReusableBitmap lruBitmap = mImageCache
+				.acquireFromMemCache(memKey);
 		if (lruBitmap != null && imageView != null) {
 			// Bitmap found in memory cache
-			imageView.setImageBitmap(lruBitmap);
-		} else if (executePotentialWork(key, imageView) && imageView != null
-				&& !mImageCache.isDiskCachePaused()) {
-			// Otherwise run the worker task
+			setImageDrawable(imageView, new RecyclingBitmapDrawable(
+					mResources, lruBitmap));
+		} else if (executePotentialWork(memKey, imageView)
+				&& imageView != null) {
+			// Otherwise run the worker task, the executor holds it back while
+			// the disk cache is paused
 			final BitmapWorkerTask bitmapWorkerTask = new BitmapWorkerTask(
-					imageView, imageType);
+					imageView, memKey);
 			final AsyncDrawable asyncDrawable = new AsyncDrawable(mResources,
 					mDefault, bitmapWorkerTask);
-			imageView.setImageDrawable(asyncDrawable);
-			CommonUtils.execute(false, bitmapWorkerTask, key, artistName,
-					albumName, albumId);
+			setImageDrawable(imageView, asyncDrawable);
+			// Join the load of the same image if one is running
+			ImageRequest request;
+			boolean start = false;
+			synchronized (mRequests) {
+				request = mRequests.get(memKey);
+				if (request == null) {
+					request = new ImageRequest(imageType, key, artistName,
+							albumName, albumId, size);
+					mRequests.put(memKey, request);
+					start = true;
+				}
+				request.addTask(bitmapWorkerTask);
+			}
+			if (start) {
+				ImageExecutor.getInstance().executeDisk(request);
+			}
+		}
+	}
+
+	/**
+	 * @param imageView
+	 *            The {@link ImageView} showing the image
+	 * @return The size bucket covering the view, from its size once it was
+	 *         laid out or else from its layout params
+	 */
+	private ImageSize getImageSize(final ImageView imageView) {
+		int width = imageView.getWidth();
+		int height = imageView.getHeight();
+		final ViewGroup.LayoutParams params = imageView.getLayoutParams();
+		if ((width <= 0 || height <= 0) && params != null) {
+			width = params.width;
+			height = params.height;
 		}
+		return mImageCache.getImageSize(width, height);
 	}
 
 	/**
 	 * Subclasses should override this to define any processing or work that
 	 * must happen to produce the final {@link Bitmap}. This will be executed in
-	 * a background thread and be long running.
+	 * a background thread and be long running. The image should be added to
+	 * the caches under the key.
 	 * 
 	 * @param key
 	 *            The key to identify which image to process, as provided by
 	 *            {@link ImageWorker#loadImage(mKey, ImageView)}
-	 * @return The processed {@link Bitmap}.
+	 * @param url
+	 *            The URL of the image
+	 * @param size
+	 *            The size bucket to decode to
+	 * @return The processed {@link ReusableBitmap}, the caller holds a
+	 *         reference to it.
 	 */
-	protected abstract Bitmap processBitmap(String key);
+	protected abstract ReusableBitmap processBitmap(String key, String url,
+			ImageSize size);
 
 	/**
 	 * Subclasses should override this to define any processing or work that
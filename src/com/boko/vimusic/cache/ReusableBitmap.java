@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2012 Andrew Neal Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law
+ * or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+
+package com.boko.vimusic.cache;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.graphics.Bitmap;
+
+/**
+ * An image of the memory cache together with the number of references held
+ * to it, by the views showing it and the loads handing it to them. Once the
+ * memory cache dropped the image and the last reference is released, its
+ * bitmap goes to the {@link BitmapPool}.
+ * <p>
+ * An image handed to code that doesn't count its references, like widgets,
+ * the notification or the lockscreen controls, is pinned and never reused. A
+ * reference can't be taken any more once the bitmap went to the pool, so a
+ * read racing with an eviction sees a miss rather than a reused bitmap.
+ */
+public final class ReusableBitmap {
+
+	/**
+	 * State of an image that is never reused
+	 */
+	private static final int PINNED = -1;
+
+	/**
+	 * State of an image whose bitmap went to the pool
+	 */
+	private static final int POOLED = -2;
+
+	private final Bitmap mBitmap;
+
+	private final BitmapPool mBitmapPool;
+
+	/**
+	 * The number of references held, or {@link #PINNED} or {@link #POOLED}
+	 */
+	private final AtomicInteger mState;
+
+	/**
+	 * True while the memory cache holds the image
+	 */
+	private volatile boolean mCached = false;
+
+	/**
+	 * Constructor of <code>ReusableBitmap</code>. The caller holds the first
+	 * reference.
+	 *
+	 * @param bitmap
+	 *            The decoded {@link Bitmap}
+	 * @param bitmapPool
+	 *            The {@link BitmapPool} to return the bitmap to, or null if it
+	 *            must never be reused
+	 */
+	public ReusableBitmap(final Bitmap bitmap, final BitmapPool bitmapPool) {
+		mBitmap = bitmap;
+		mBitmapPool = bitmapPool;
+		mState = new AtomicInteger(bitmapPool != null ? 1 : PINNED);
+	}
+
+	/**
+	 * @return The image
+	 */
+	public Bitmap getBitmap() {
+		return mBitmap;
+	}
+
+	/**
+	 * Takes a reference to the image.
+	 *
+	 * @return True if the image can be used, false if its bitmap was already
+	 *         reused
+	 */
+	public boolean acquire() {
+		while (true) {
+			final int state = mState.get();
+			if (state == POOLED) {
+				return false;
+			}
+			if (state == PINNED || mState.compareAndSet(state, state + 1)) {
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Gives up a reference taken with {@link #acquire()} or held since the
+	 * image was decoded.
+	 */
+	public void release() {
+		while (true) {
+			final int state = mState.get();
+			if (state <= 0) {
+				return;
+			}
+			if (mState.compareAndSet(state, state - 1)) {
+				if (state == 1 && !mCached) {
+					recycleIfUnused();
+				}
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Makes sure the image is never reused, before it's handed to code that
+	 * doesn't count its references.
+	 *
+	 * @return True if the image can be used, false if its bitmap was already
+	 *         reused
+	 */
+	public boolean pin() {
+		while (true) {
+			final int state = mState.get();
+			if (state == POOLED) {
+				return false;
+			}
+			if (state == PINNED || mState.compareAndSet(state, PINNED)) {
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Called by the memory cache when it adds or drops the image.
+	 *
+	 * @param cached
+	 *            True if the memory cache holds the image
+	 */
+	public void setCached(final boolean cached) {
+		mCached = cached;
+		if (!cached) {
+			recycleIfUnused();
+		}
+	}
+
+	private void recycleIfUnused() {
+		if (mState.compareAndSet(0, POOLED)) {
+			mBitmapPool.put(mBitmap);
+		}
+	}
+}
@@ -20,6 +20,7 @@ import android.provider.BaseColumns;
 import android.provider.MediaStore;
 import android.provider.MediaStore.Audio.AlbumColumns;
 
+import com.boko.vimusic.cache.ArtworkPrefetcher;
 import com.boko.vimusic.model.Album;
 import com.boko.vimusic.utils.Lists;
 import com.boko.vimusic.utils.PreferenceUtils;
@@ -90,6 +91,8 @@ public class AlbumLoader extends WrappedAsyncTaskLoader<List<Album>> {
 			mCursor.close();
 			mCursor = null;
 		}
+		// Fetch the missing artwork before the list is scrolled
+		ArtworkPrefetcher.getInstance(getContext()).prefetchAlbums(mAlbumsList);
 		return mAlbumsList;
 	}
 
@@ -20,6 +20,7 @@ import android.provider.BaseColumns;
 import android.provider.MediaStore;
 import android.provider.MediaStore.Audio.ArtistColumns;
 
+import com.boko.vimusic.cache.ArtworkPrefetcher;
 import com.boko.vimusic.model.Artist;
 import com.boko.vimusic.utils.Lists;
 import com.boko.vimusic.utils.PreferenceUtils;
@@ -87,6 +88,8 @@ public class ArtistLoader extends WrappedAsyncTaskLoader<List<Artist>> {
 			mCursor.close();
 			mCursor = null;
 		}
+		// Fetch the missing artwork before the list is scrolled
+		ArtworkPrefetcher.getInstance(getContext()).prefetchArtists(mArtistsList);
 		return mArtistsList;
 	}
 
@@ -14,7 +14,7 @@ import com.boko.vimusic.utils.CommonUtils;
 public class LocalSong extends Song {
 	private static final long serialVersionUID = 1L;
 
-	private static final String[] PROJECTION = new String[] {
+	static final String[] PROJECTION = new String[] {
 			"audio._id AS _id", MediaStore.Audio.Media.ARTIST,
 			MediaStore.Audio.Media.ALBUM, MediaStore.Audio.Media.TITLE,
 			MediaStore.Audio.Media.DURATION };
@@ -26,7 +26,7 @@ public class LocalSong extends Song {
 
 	protected void doQuery(final Context context) {
 		synchronized (this) {
-			if (getId() != null && getId().length() > 0 && TextUtils.isDigitsOnly(getId())) {
+			if (hasMediaStoreId()) {
 				if (context != null) {
 					Cursor c = context.getContentResolver().query(
 							MediaStore.Audio.Media.EXTERNAL_CONTENT_URI,
@@ -34,10 +34,7 @@ public class LocalSong extends Song {
 					if (c != null) {
 						if (c.getCount() > 0) {
 							c.moveToNext();
-							mArtistName = CommonUtils.getUnicode(c.getString(1));
-							mAlbumName = CommonUtils.getUnicode(c.getString(2));
-							mName = CommonUtils.getUnicode(c.getString(3));
-							mDuration = (int) (c.getLong(4) / 1000);
+							fillFromCursor(c);
 						}
 						c.close();
 						c = null;
@@ -48,4 +45,42 @@ public class LocalSong extends Song {
 			}
 		}
 	}
+
+	/**
+	 * @return True if the id can be looked up in the MediaStore
+	 */
+	boolean hasMediaStoreId() {
+		return getId() != null && getId().length() > 0
+				&& TextUtils.isDigitsOnly(getId());
+	}
+
+	/**
+	 * Fills in the song from a row of a batch query, see {@link SongHydrator}.
+	 * 
+	 * @param c
+	 *            A cursor over {@link #PROJECTION} positioned on the row of
+	 *            this song, or null if the song wasn't found
+	 */
+	void fill(final Cursor c) {
+		synchronized (this) {
+			if (isQueried()) {
+				return;
+			}
+			if (hasMediaStoreId()) {
+				if (c != null) {
+					fillFromCursor(c);
+				}
+				mLinkPlay = MediaStore.Audio.Media.EXTERNAL_CONTENT_URI + "/"
+						+ getId();
+			}
+			setQueried();
+		}
+	}
+
+	private void fillFromCursor(final Cursor c) {
+		mArtistName = CommonUtils.getUnicode(c.getString(1));
+		mAlbumName = CommonUtils.getUnicode(c.getString(2));
+		mName = CommonUtils.getUnicode(c.getString(3));
+		mDuration = (int) (c.getLong(4) / 1000);
+	}
 }
@@ -6,6 +6,8 @@ import android.content.Context;
 import android.os.Parcel;
 import android.os.Parcelable;
 
+import com.boko.vimusic.provider.SongLinkStore;
+
 public abstract class Song extends Media implements Parcelable, Serializable,
 		Comparable<Song> {
 	private static final long serialVersionUID = 1L;
@@ -38,19 +40,56 @@ public abstract class Song extends Media implements Parcelable, Serializable,
 	/**
 	 * Data query executed or not
 	 */
-	private boolean queried = false;
+	private volatile boolean queried = false;
 
 	public Song(String id) {
 		this.mId = id;
 	}
 
+	/**
+	 * Queries the song data. If another thread is querying the same song, this
+	 * waits for it instead of querying again. Songs with a link lifetime are
+	 * first looked up in the {@link SongLinkStore}.
+	 * 
+	 * @param context
+	 *            The {@link Context} to use
+	 */
 	public void query(final Context context) {
-		doQuery(context);
-		queried = true;
+		synchronized (this) {
+			if (queried) {
+				return;
+			}
+			final long ttl = getLinkLifetime();
+			if (ttl > 0 && context != null) {
+				final SongLinkStore store = SongLinkStore.getInstance(context);
+				if (!store.read(this)) {
+					doQuery(context);
+					store.write(this, ttl);
+				}
+			} else {
+				doQuery(context);
+			}
+			queried = true;
+		}
+	}
+
+	/**
+	 * @return How long the resolved links of this song stay valid in
+	 *         milliseconds, or 0 if they shouldn't be stored
+	 */
+	protected long getLinkLifetime() {
+		return 0;
 	}
 
 	protected abstract void doQuery(final Context context);
 
+	/**
+	 * Marks the data as queried, used when it was filled in by a batch query
+	 */
+	void setQueried() {
+		queried = true;
+	}
+
 	public String getArtistName() {
 		return mArtistName;
 	}
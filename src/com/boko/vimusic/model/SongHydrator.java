@@ -0,0 +1,131 @@
+package com.boko.vimusic.model;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.provider.MediaStore;
+
+/**
+ * Fills in the data of many local songs at once. Instead of running one
+ * MediaStore query per song like {@link Song#query(Context)}, the songs are
+ * looked up in chunks with a single <code>_id IN (...)</code> query each.
+ * Songs from other hosts are left untouched.
+ */
+public final class SongHydrator {
+
+	/**
+	 * Most ids put into a single query, well below SQLite's expression limits
+	 */
+	public static final int CHUNK_SIZE = 200;
+
+	/** This class is never instantiated */
+	private SongHydrator() {
+	}
+
+	/**
+	 * @param song
+	 *            The song to check
+	 * @return True if the song is a local song that hasn't been queried yet
+	 */
+	public static boolean needsHydration(final Song song) {
+		return song instanceof LocalSong && !song.isQueried();
+	}
+
+	/**
+	 * Queries all local songs in the list that haven't been queried yet.
+	 * 
+	 * @param context
+	 *            The {@link Context} to use
+	 * @param songs
+	 *            The songs to fill in, may contain null entries
+	 */
+	public static void hydrate(final Context context, final Song[] songs) {
+		hydrate(context, songs, 0, songs.length);
+	}
+
+	/**
+	 * Queries the local songs between from (inclusive) and to (exclusive) that
+	 * haven't been queried yet.
+	 * 
+	 * @param context
+	 *            The {@link Context} to use
+	 * @param songs
+	 *            The songs to fill in, may contain null entries
+	 * @param from
+	 *            The first index to fill in
+	 * @param to
+	 *            The index after the last one to fill in
+	 */
+	public static void hydrate(final Context context, final Song[] songs,
+			final int from, final int to) {
+		if (context == null) {
+			return;
+		}
+		final HashMap<String, ArrayList<LocalSong>> chunk = new HashMap<String, ArrayList<LocalSong>>();
+		for (int i = Math.max(0, from); i < Math.min(to, songs.length); i++) {
+			final Song song = songs[i];
+			if (!needsHydration(song)) {
+				continue;
+			}
+			final LocalSong local = (LocalSong) song;
+			if (!local.hasMediaStoreId()) {
+				// Nothing to look up, just mark it like a single query would
+				local.fill(null);
+				continue;
+			}
+			ArrayList<LocalSong> same = chunk.get(local.getId());
+			if (same == null) {
+				same = new ArrayList<LocalSong>(1);
+				chunk.put(local.getId(), same);
+			}
+			same.add(local);
+			if (chunk.size() >= CHUNK_SIZE) {
+				query(context, chunk);
+				chunk.clear();
+			}
+		}
+		if (!chunk.isEmpty()) {
+			query(context, chunk);
+		}
+	}
+
+	private static void query(final Context context,
+			final HashMap<String, ArrayList<LocalSong>> chunk) {
+		// The ids are digits only, so they can go into the selection as is
+		final StringBuilder selection = new StringBuilder(
+				MediaStore.Audio.Media._ID + " IN (");
+		boolean first = true;
+		for (final String id : chunk.keySet()) {
+			if (!first) {
+				selection.append(',');
+			}
+			selection.append(id);
+			first = false;
+		}
+		selection.append(')');
+
+		Cursor c = context.getContentResolver().query(
+				MediaStore.Audio.Media.EXTERNAL_CONTENT_URI,
+				LocalSong.PROJECTION, selection.toString(), null, null);
+		if (c != null) {
+			while (c.moveToNext()) {
+				final ArrayList<LocalSong> same = chunk.remove(c.getString(0));
+				if (same != null) {
+					for (final LocalSong song : same) {
+						song.fill(c);
+					}
+				}
+			}
+			c.close();
+			c = null;
+		}
+		// Songs no longer in the MediaStore still get their play link
+		for (final ArrayList<LocalSong> same : chunk.values()) {
+			for (final LocalSong song : same) {
+				song.fill(null);
+			}
+		}
+	}
+}
@@ -0,0 +1,188 @@
+package com.boko.vimusic.provider;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+
+import com.boko.vimusic.api.lastfm.Artist;
+
+/**
+ * Keeps the canonical name and MusicBrainz ID Last.fm corrects each artist name
+ * to. Corrections don't change, so an artist is only ever looked up once.
+ * 
+ */
+public class ArtistCorrectionStore extends SQLiteOpenHelper {
+
+	/* Version constant to increment when the database should be rebuilt */
+	private static final int VERSION = 1;
+
+	/* Name of database file */
+	public static final String DATABASENAME = "corrections.db";
+
+	private static ArtistCorrectionStore sInstance = null;
+
+	/* The corrections read so far, by the name they correct */
+	private final ConcurrentHashMap<String, Artist> mCorrections = new ConcurrentHashMap<String, Artist>();
+
+	/* Number of lookups answered from the store */
+	private final AtomicInteger mHitCount = new AtomicInteger();
+
+	/* Number of lookups that had to go to the network */
+	private final AtomicInteger mMissCount = new AtomicInteger();
+
+	/**
+	 * Constructor of <code>ArtistCorrectionStore</code>
+	 * 
+	 * @param context
+	 *            The {@link Context} to use
+	 */
+	public ArtistCorrectionStore(final Context context) {
+		super(context, DATABASENAME, null, VERSION);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void onCreate(final SQLiteDatabase db) {
+		db.execSQL("CREATE TABLE IF NOT EXISTS " + CorrectionTable.TABLE_NAME
+				+ " (" + CorrectionTable.ARTIST + " TEXT PRIMARY KEY," // Tagged
+				+ CorrectionTable.CORRECTED + " TEXT NOT NULL," // Canonical
+				+ CorrectionTable.MBID + " TEXT);"); // MusicBrainz ID
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void onUpgrade(final SQLiteDatabase db, final int oldVersion,
+			final int newVersion) {
+		// Only a cache, nothing is lost by rebuilding it
+		db.execSQL("DROP TABLE IF EXISTS " + CorrectionTable.TABLE_NAME);
+		onCreate(db);
+	}
+
+	/**
+	 * @param context
+	 *            The {@link Context} to use
+	 * @return A new instance of this class
+	 */
+	public static final synchronized ArtistCorrectionStore getInstance(
+			final Context context) {
+		if (sInstance == null) {
+			sInstance = new ArtistCorrectionStore(
+					context.getApplicationContext());
+		}
+		return sInstance;
+	}
+
+	/**
+	 * @param artistName
+	 *            The artist name as it is tagged
+	 * @return The corrected artist, holding only its name and MusicBrainz ID,
+	 *         or null if the name was never corrected
+	 */
+	public Artist read(final String artistName) {
+		if (artistName == null) {
+			return null;
+		}
+		Artist correction = mCorrections.get(artistName);
+		if (correction == null) {
+			final SQLiteDatabase database = getReadableDatabase();
+			final String[] projection = new String[] {
+					CorrectionTable.CORRECTED, CorrectionTable.MBID };
+			Cursor cursor = database.query(CorrectionTable.TABLE_NAME,
+					projection, CorrectionTable.ARTIST + "=?",
+					new String[] { artistName }, null, null, null, null);
+			if (cursor != null) {
+				if (cursor.moveToFirst()) {
+					correction = new Artist(null, cursor.getString(0), 0, 0);
+					correction.setMbid(cursor.getString(1));
+					mCorrections.put(artistName, correction);
+				}
+				cursor.close();
+				cursor = null;
+			}
+		}
+		if (correction != null) {
+			mHitCount.incrementAndGet();
+		} else {
+			mMissCount.incrementAndGet();
+		}
+		return correction;
+	}
+
+	/**
+	 * Stores the correction of an artist name.
+	 * 
+	 * @param artistName
+	 *            The artist name as it is tagged
+	 * @param correction
+	 *            The artist Last.fm corrected the name to, or an artist with
+	 *            the same name if there was nothing to correct
+	 */
+	public void write(final String artistName, final Artist correction) {
+		if (artistName == null || correction == null
+				|| correction.getName() == null) {
+			return;
+		}
+		final Artist stored = new Artist(null, correction.getName(), 0, 0);
+		stored.setMbid(correction.getMbid());
+		final Artist previous = mCorrections.put(artistName, stored);
+		if (previous != null && previous.getName().equals(stored.getName())
+				&& (stored.getMbid() == null || stored.getMbid().equals(
+						previous.getMbid()))) {
+			// Nothing new to write
+			return;
+		}
+		final SQLiteDatabase database = getWritableDatabase();
+		final ContentValues values = new ContentValues(3);
+		values.put(CorrectionTable.ARTIST, artistName);
+		values.put(CorrectionTable.CORRECTED, stored.getName());
+		values.put(CorrectionTable.MBID, stored.getMbid());
+		database.replace(CorrectionTable.TABLE_NAME, null, values);
+	}
+
+	/**
+	 * @return The number of lookups answered from the store
+	 */
+	public int getHitCount() {
+		return mHitCount.get();
+	}
+
+	/**
+	 * @return The number of lookups that weren't in the store
+	 */
+	public int getMissCount() {
+		return mMissCount.get();
+	}
+
+	/**
+	 * Clear the cache.
+	 */
+	public void deleteDatabase() {
+		mCorrections.clear();
+		final SQLiteDatabase database = getReadableDatabase();
+		database.delete(CorrectionTable.TABLE_NAME, null, null);
+	}
+
+	public interface CorrectionTable {
+
+		/* Table name */
+		public static final String TABLE_NAME = "corrections";
+
+		/* Artist name column */
+		public static final String ARTIST = "artistname";
+
+		/* Corrected artist name column */
+		public static final String CORRECTED = "correctedname";
+
+		/* MusicBrainz ID column */
+		public static final String MBID = "mbid";
+	}
+}
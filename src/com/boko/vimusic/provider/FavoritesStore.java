@@ -1,10 +1,13 @@
 package com.boko.vimusic.provider;
 
+import java.util.Collection;
+
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 
 import com.boko.vimusic.model.HostType;
 
@@ -15,8 +18,8 @@ import com.boko.vimusic.model.HostType;
  */
 public class FavoritesStore extends SQLiteOpenHelper {
 
-	/* Version constant to increment when the database should be rebuilt */
-	private static final int VERSION = 1;
+	/* Version constant to increment when the schema changes */
+	private static final int VERSION = 3;
 
 	/* Name of database file */
 	public static final String DATABASENAME = "favorites.db";
@@ -38,13 +41,9 @@ public class FavoritesStore extends SQLiteOpenHelper {
 	 */
 	@Override
 	public void onCreate(final SQLiteDatabase db) {
-		db.execSQL("CREATE TABLE IF NOT EXISTS " + FavoritesTable.TABLE_NAME
-				+ " (" + FavoritesTable.SID + " TEXT NOT NULL," // Song ID
-				+ FavoritesTable.HOST + " INTEGER DEFAULT 0," // Song Host
-				+ FavoritesTable.NAME + " TEXT NOT NULL," // Song Name
-				+ FavoritesTable.ALBUM + " TEXT NOT NULL," // Song Album
-				+ FavoritesTable.ARTIST + " TEXT NOT NULL," // Song Artist
-				+ FavoritesTable.PLAY_COUNT + " LONG NOT NULL);"); // Song Play count
+		createTable(db, FavoritesTable.TABLE_NAME);
+		createIndexes(db);
+		createFlushTable(db);
 	}
 
 	/**
@@ -53,8 +52,69 @@ public class FavoritesStore extends SQLiteOpenHelper {
 	@Override
 	public void onUpgrade(final SQLiteDatabase db, final int oldVersion,
 			final int newVersion) {
-		db.execSQL("DROP TABLE IF EXISTS " + FavoritesTable.TABLE_NAME);
-		onCreate(db);
+		if (oldVersion < 2) {
+			// v1 had no key, so copy the rows into the keyed table keeping
+			// the highest play count of any duplicates
+			final String old = FavoritesTable.TABLE_NAME + "_v1";
+			db.execSQL("DROP TABLE IF EXISTS " + old);
+			db.execSQL("ALTER TABLE " + FavoritesTable.TABLE_NAME
+					+ " RENAME TO " + old);
+			createTable(db, FavoritesTable.TABLE_NAME);
+			db.execSQL("INSERT OR IGNORE INTO " + FavoritesTable.TABLE_NAME
+					+ " SELECT " + FavoritesTable.SID + ", IFNULL("
+					+ FavoritesTable.HOST + ", 0), " + FavoritesTable.NAME
+					+ ", " + FavoritesTable.ALBUM + ", "
+					+ FavoritesTable.ARTIST + ", MAX("
+					+ FavoritesTable.PLAY_COUNT + ") FROM " + old
+					+ " GROUP BY " + FavoritesTable.SID + ", IFNULL("
+					+ FavoritesTable.HOST + ", 0)");
+			db.execSQL("DROP TABLE " + old);
+			createIndexes(db);
+		}
+		if (oldVersion < 3) {
+			createFlushTable(db);
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void onOpen(final SQLiteDatabase db) {
+		super.onOpen(db);
+		if (!db.isReadOnly()) {
+			// Let the loaders read while the service writes
+			db.enableWriteAheadLogging();
+		}
+	}
+
+	private static void createTable(final SQLiteDatabase db, final String name) {
+		db.execSQL("CREATE TABLE IF NOT EXISTS " + name + " ("
+				+ FavoritesTable.SID + " TEXT NOT NULL," // Song ID
+				+ FavoritesTable.HOST + " INTEGER NOT NULL DEFAULT 0," // Song Host
+				+ FavoritesTable.NAME + " TEXT NOT NULL," // Song Name
+				+ FavoritesTable.ALBUM + " TEXT NOT NULL," // Song Album
+				+ FavoritesTable.ARTIST + " TEXT NOT NULL," // Song Artist
+				+ FavoritesTable.PLAY_COUNT + " LONG NOT NULL," // Song Play count
+				+ "PRIMARY KEY (" + FavoritesTable.SID + ", "
+				+ FavoritesTable.HOST + "));");
+	}
+
+	private static void createFlushTable(final SQLiteDatabase db) {
+		db.execSQL("CREATE TABLE IF NOT EXISTS " + FlushTable.TABLE_NAME + " ("
+				+ FlushTable.ID + " INTEGER PRIMARY KEY," // Always 0
+				+ FlushTable.SEQUENCE + " LONG NOT NULL);"); // Last flush
+	}
+
+	private static void createIndexes(final SQLiteDatabase db) {
+		db.execSQL("CREATE INDEX IF NOT EXISTS " + FavoritesTable.TABLE_NAME
+				+ "_" + FavoritesTable.PLAY_COUNT + " ON "
+				+ FavoritesTable.TABLE_NAME + " (" + FavoritesTable.PLAY_COUNT
+				+ ");");
+		db.execSQL("CREATE INDEX IF NOT EXISTS " + FavoritesTable.TABLE_NAME
+				+ "_" + FavoritesTable.ARTIST + " ON "
+				+ FavoritesTable.TABLE_NAME + " (" + FavoritesTable.ARTIST
+				+ ");");
 	}
 
 	/**
@@ -114,6 +174,85 @@ public class FavoritesStore extends SQLiteOpenHelper {
 		database.endTransaction();
 	}
 
+	/**
+	 * Adds the plays collected by {@link PlayStatsRecorder} in one transaction.
+	 * Songs already in the database get their play count raised, the others
+	 * are inserted. The sequence number of the flush is stored in the same
+	 * transaction, so a log whose plays were added can be told apart after
+	 * the process died.
+	 * 
+	 * @param plays
+	 *            The songs and how often each was played
+	 * @param sequence
+	 *            The sequence number of the flush
+	 */
+	void addPlays(final Collection<PlayStatsRecorder.SongPlay> plays,
+			final long sequence) {
+		if (plays.isEmpty()) {
+			return;
+		}
+		final SQLiteDatabase database = getWritableDatabase();
+		final ContentValues values = new ContentValues(6);
+		final String update = "UPDATE " + FavoritesTable.TABLE_NAME + " SET "
+				+ FavoritesTable.PLAY_COUNT + " = " + FavoritesTable.PLAY_COUNT
+				+ " + ?, " + FavoritesTable.NAME + " = ?, "
+				+ FavoritesTable.ALBUM + " = ?, " + FavoritesTable.ARTIST
+				+ " = ? WHERE " + FavoritesTable.SID + " = ? AND "
+				+ FavoritesTable.HOST + " = ?";
+
+		database.beginTransaction();
+		try {
+			final SQLiteStatement statement = database.compileStatement(update);
+			for (final PlayStatsRecorder.SongPlay play : plays) {
+				statement.bindLong(1, play.mCount);
+				statement.bindString(2, play.mName);
+				statement.bindString(3, play.mAlbum);
+				statement.bindString(4, play.mArtist);
+				statement.bindString(5, play.mId);
+				statement.bindLong(6, play.mHost);
+				if (statement.executeUpdateDelete() == 0) {
+					values.clear();
+					values.put(FavoritesTable.SID, play.mId);
+					values.put(FavoritesTable.HOST, play.mHost);
+					values.put(FavoritesTable.NAME, play.mName);
+					values.put(FavoritesTable.ALBUM, play.mAlbum);
+					values.put(FavoritesTable.ARTIST, play.mArtist);
+					values.put(FavoritesTable.PLAY_COUNT, play.mCount);
+					database.insertOrThrow(FavoritesTable.TABLE_NAME, null,
+							values);
+				}
+			}
+			statement.close();
+			values.clear();
+			values.put(FlushTable.ID, 0);
+			values.put(FlushTable.SEQUENCE, sequence);
+			database.replaceOrThrow(FlushTable.TABLE_NAME, null, values);
+			database.setTransactionSuccessful();
+		} finally {
+			database.endTransaction();
+		}
+	}
+
+	/**
+	 * @return The sequence number of the last flush of
+	 *         {@link PlayStatsRecorder} whose plays were added, or 0
+	 */
+	long getLastFlush() {
+		final SQLiteDatabase database = getReadableDatabase();
+		Cursor cursor = database.query(FlushTable.TABLE_NAME,
+				new String[] { FlushTable.SEQUENCE }, FlushTable.ID + " = 0",
+				null, null, null, null, null);
+		long sequence = 0;
+		if (cursor != null) {
+			if (cursor.moveToFirst()) {
+				sequence = cursor.getLong(0);
+			}
+			cursor.close();
+			cursor = null;
+		}
+		return sequence;
+	}
+
 	/**
 	 * @param item
 	 *            The song Id to remove
@@ -242,4 +381,15 @@ public class FavoritesStore extends SQLiteOpenHelper {
 		public static final String PLAY_COUNT = "playcount";
 	}
 
+	public interface FlushTable {
+		/* Table name */
+		public static final String TABLE_NAME = "playstatsflush";
+
+		/* Row ID column */
+		public static final String ID = "_id";
+
+		/* Sequence number of the last flush column */
+		public static final String SEQUENCE = "sequence";
+	}
+
 }
@@ -0,0 +1,545 @@
+package com.boko.vimusic.provider;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.util.Log;
+
+import com.boko.vimusic.model.HostType;
+import com.boko.vimusic.utils.MusicUtils;
+
+/**
+ * Collects played songs and albums in memory and writes them to
+ * {@link FavoritesStore} and {@link RecentStore} in one transaction each, a
+ * while after the first play or when {@link #flush()} is called. Every play is
+ * also appended to a small log, so plays that weren't written yet are
+ * recovered after the process died.
+ * <p>
+ * Play counts are added up, so a log must never be written twice. Before a
+ * log is written it is marked with a sequence number, which
+ * {@link FavoritesStore} stores in the same transaction as the play counts.
+ * A log found marked with a stored number only has its albums replayed, and
+ * writing an album again changes nothing.
+ *
+ */
+public class PlayStatsRecorder {
+
+	private static final String TAG = "PlayStatsRecorder";
+
+	/* Name of the log of plays not written to the stores yet */
+	private static final String LOG_NAME = "playstats.log";
+
+	/* The log being written to the stores */
+	private static final String FLUSHING_LOG_NAME = "playstats.log.flushing";
+
+	/* A log being rewritten */
+	private static final String TEMP_LOG_NAME = "playstats.log.tmp";
+
+	/* Delay between the first buffered play and the write */
+	private static final long FLUSH_DELAY = 30 * 1000;
+
+	private static final byte RECORD_SONG = 1;
+
+	private static final byte RECORD_ALBUM = 2;
+
+	private static final byte RECORD_FLUSH = 3;
+
+	private static PlayStatsRecorder sInstance = null;
+
+	private final Context mContext;
+
+	private final File mLog;
+
+	private final File mFlushingLog;
+
+	private final File mTempLog;
+
+	private final Handler mHandler;
+
+	/* Buffered plays by host and id */
+	private LinkedHashMap<String, SongPlay> mSongs = new LinkedHashMap<String, SongPlay>();
+
+	/* Buffered albums by host and id */
+	private LinkedHashMap<String, AlbumPlay> mAlbums = new LinkedHashMap<String, AlbumPlay>();
+
+	private DataOutputStream mLogOut;
+
+	private boolean mFlushScheduled = false;
+
+	/* Only one write to the stores runs at a time */
+	private final Object mFlushLock = new Object();
+
+	private final Runnable mFlushRunnable = new Runnable() {
+
+		@Override
+		public void run() {
+			flush();
+		}
+	};
+
+	/**
+	 * Constructor of <code>PlayStatsRecorder</code>
+	 *
+	 * @param context
+	 *            The {@link Context} to use
+	 */
+	public PlayStatsRecorder(final Context context) {
+		mContext = context;
+		mLog = new File(context.getFilesDir(), LOG_NAME);
+		mFlushingLog = new File(context.getFilesDir(), FLUSHING_LOG_NAME);
+		mTempLog = new File(context.getFilesDir(), TEMP_LOG_NAME);
+		final HandlerThread thread = new HandlerThread(TAG,
+				Process.THREAD_PRIORITY_BACKGROUND);
+		thread.start();
+		mHandler = new Handler(thread.getLooper());
+
+		// Pick up the plays a previous process didn't get to write
+		synchronized (this) {
+			if (mFlushingLog.exists()) {
+				// The process may have died after the songs were written
+				final long sequence = readSequence(mFlushingLog);
+				replay(mFlushingLog, sequence == 0
+						|| sequence > FavoritesStore.getInstance(context)
+								.getLastFlush());
+			}
+			replay(mLog, true);
+			if (mFlushingLog.exists()) {
+				// A write was cut short, keep everything in a single log
+				rewriteLog();
+			}
+			if (!mSongs.isEmpty() || !mAlbums.isEmpty()) {
+				mFlushScheduled = true;
+				mHandler.post(mFlushRunnable);
+			}
+		}
+	}
+
+	/**
+	 * @param context
+	 *            The {@link Context} to use
+	 * @return A new instance of this class
+	 */
+	public static final synchronized PlayStatsRecorder getInstance(
+			final Context context) {
+		if (sInstance == null) {
+			sInstance = new PlayStatsRecorder(context.getApplicationContext());
+		}
+		return sInstance;
+	}
+
+	/**
+	 * Records a play of a song.
+	 *
+	 * @param songId
+	 *            The song ID
+	 * @param songHost
+	 *            The song host
+	 * @param songName
+	 *            The song name
+	 * @param albumName
+	 *            The album name
+	 * @param artistName
+	 *            The artist name
+	 */
+	public synchronized void addSong(final String songId,
+			final HostType songHost, final String songName,
+			final String albumName, final String artistName) {
+		if (songId == null || songHost == null || songName == null
+				|| albumName == null || artistName == null) {
+			return;
+		}
+		bufferSong(songId, songHost.getCode(), songName, albumName,
+				artistName, 1);
+		try {
+			final DataOutputStream out = openLog();
+			out.writeByte(RECORD_SONG);
+			out.writeUTF(songId);
+			out.writeInt(songHost.getCode());
+			out.writeUTF(songName);
+			out.writeUTF(albumName);
+			out.writeUTF(artistName);
+			out.flush();
+		} catch (final IOException e) {
+			Log.e(TAG, "addSong - " + e);
+		}
+		scheduleFlush();
+	}
+
+	/**
+	 * Records a play of an album. The song count and release year are looked
+	 * up when the album is written.
+	 *
+	 * @param albumId
+	 *            The album's ID
+	 * @param albumHost
+	 *            The album host
+	 * @param albumName
+	 *            The album name
+	 * @param artistName
+	 *            The artist album name
+	 */
+	public synchronized void addAlbum(final String albumId,
+			final HostType albumHost, final String albumName,
+			final String artistName) {
+		if (albumId == null || albumHost == null || albumName == null
+				|| artistName == null) {
+			return;
+		}
+		final long timePlayed = System.currentTimeMillis();
+		bufferAlbum(albumId, albumHost.getCode(), albumName, artistName,
+				timePlayed);
+		try {
+			final DataOutputStream out = openLog();
+			out.writeByte(RECORD_ALBUM);
+			out.writeUTF(albumId);
+			out.writeInt(albumHost.getCode());
+			out.writeUTF(albumName);
+			out.writeUTF(artistName);
+			out.writeLong(timePlayed);
+			out.flush();
+		} catch (final IOException e) {
+			Log.e(TAG, "addAlbum - " + e);
+		}
+		scheduleFlush();
+	}
+
+	/**
+	 * Writes the buffered plays to the stores now, used when the service
+	 * stops.
+	 */
+	public void flush() {
+		synchronized (mFlushLock) {
+			final ArrayList<SongPlay> songs;
+			final ArrayList<AlbumPlay> albums;
+			synchronized (this) {
+				mHandler.removeCallbacks(mFlushRunnable);
+				mFlushScheduled = false;
+				if (mSongs.isEmpty() && mAlbums.isEmpty()) {
+					return;
+				}
+				songs = new ArrayList<SongPlay>(mSongs.values());
+				albums = new ArrayList<AlbumPlay>(mAlbums.values());
+				mSongs = new LinkedHashMap<String, SongPlay>();
+				mAlbums = new LinkedHashMap<String, AlbumPlay>();
+				// Plays recorded from now on go to a new log
+				closeLog();
+				mLog.renameTo(mFlushingLog);
+			}
+
+			for (final AlbumPlay album : albums) {
+				album.mSongCount = MusicUtils.getSongCountForAlbum(mContext,
+						album.mId);
+				album.mYear = MusicUtils.getReleaseDateForAlbum(mContext,
+						album.mId);
+			}
+			boolean songsWritten = false;
+			boolean albumsWritten = false;
+			try {
+				final FavoritesStore favorites = FavoritesStore
+						.getInstance(mContext);
+				final long sequence = favorites.getLastFlush() + 1;
+				markFlushingLog(sequence);
+				favorites.addPlays(songs, sequence);
+				songsWritten = true;
+				RecentStore.getInstance(mContext).addAlbums(albums);
+				albumsWritten = true;
+			} catch (final IOException e) {
+				Log.e(TAG, "flush - " + e);
+			} catch (final RuntimeException e) {
+				Log.e(TAG, "flush - " + e);
+			}
+			if (songsWritten && albumsWritten) {
+				mFlushingLog.delete();
+				return;
+			}
+			// Put back what wasn't written and try again later
+			synchronized (this) {
+				if (!songsWritten) {
+					for (final SongPlay play : songs) {
+						bufferSong(play.mId, play.mHost, play.mName,
+								play.mAlbum, play.mArtist, play.mCount);
+					}
+				}
+				for (final AlbumPlay play : albums) {
+					bufferAlbum(play.mId, play.mHost, play.mName,
+							play.mArtist, play.mTimePlayed);
+				}
+				rewriteLog();
+				scheduleFlush();
+			}
+		}
+	}
+
+	private void scheduleFlush() {
+		if (!mFlushScheduled) {
+			mFlushScheduled = true;
+			mHandler.postDelayed(mFlushRunnable, FLUSH_DELAY);
+		}
+	}
+
+	private void bufferSong(final String id, final int host, final String name,
+			final String album, final String artist, final int count) {
+		final String key = host + ":" + id;
+		SongPlay play = mSongs.get(key);
+		if (play == null) {
+			play = new SongPlay();
+			play.mId = id;
+			play.mHost = host;
+			mSongs.put(key, play);
+		}
+		play.mName = name;
+		play.mAlbum = album;
+		play.mArtist = artist;
+		play.mCount += count;
+	}
+
+	private void bufferAlbum(final String id, final int host,
+			final String name, final String artist, final long timePlayed) {
+		final String key = host + ":" + id;
+		AlbumPlay play = mAlbums.get(key);
+		if (play == null) {
+			play = new AlbumPlay();
+			play.mId = id;
+			play.mHost = host;
+			mAlbums.put(key, play);
+		}
+		play.mName = name;
+		play.mArtist = artist;
+		play.mTimePlayed = Math.max(play.mTimePlayed, timePlayed);
+	}
+
+	private DataOutputStream openLog() throws IOException {
+		if (mLogOut == null) {
+			mLogOut = new DataOutputStream(new BufferedOutputStream(
+					new FileOutputStream(mLog, true)));
+		}
+		return mLogOut;
+	}
+
+	private void closeLog() {
+		if (mLogOut != null) {
+			try {
+				mLogOut.close();
+			} catch (final IOException ignored) {
+			}
+			mLogOut = null;
+		}
+	}
+
+	/**
+	 * Ends the log being written with the sequence number of the flush.
+	 */
+	private void markFlushingLog(final long sequence) throws IOException {
+		final DataOutputStream out = new DataOutputStream(
+				new FileOutputStream(mFlushingLog, true));
+		try {
+			out.writeByte(RECORD_FLUSH);
+			out.writeLong(sequence);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * @return The sequence number a log was marked with, or 0 if it wasn't
+	 */
+	private static long readSequence(final File log) {
+		long sequence = 0;
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(log)));
+			while (true) {
+				final byte type = in.readByte();
+				if (type == RECORD_SONG) {
+					skipSong(in);
+				} else if (type == RECORD_ALBUM) {
+					skipAlbum(in);
+				} else if (type == RECORD_FLUSH) {
+					sequence = in.readLong();
+				} else {
+					break;
+				}
+			}
+		} catch (final EOFException done) {
+			// End of the log
+		} catch (final IOException e) {
+			Log.e(TAG, "readSequence - " + e);
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (final IOException ignored) {
+				}
+			}
+		}
+		return sequence;
+	}
+
+	private static void skipSong(final DataInputStream in) throws IOException {
+		in.readUTF();
+		in.readInt();
+		in.readUTF();
+		in.readUTF();
+		in.readUTF();
+	}
+
+	private static void skipAlbum(final DataInputStream in) throws IOException {
+		in.readUTF();
+		in.readInt();
+		in.readUTF();
+		in.readUTF();
+		in.readLong();
+	}
+
+	/**
+	 * Replaces the logs with a single one holding the buffered plays.
+	 */
+	private void rewriteLog() {
+		closeLog();
+		DataOutputStream out = null;
+		try {
+			out = new DataOutputStream(new BufferedOutputStream(
+					new FileOutputStream(mTempLog)));
+			for (final SongPlay play : mSongs.values()) {
+				for (int i = 0; i < play.mCount; i++) {
+					out.writeByte(RECORD_SONG);
+					out.writeUTF(play.mId);
+					out.writeInt(play.mHost);
+					out.writeUTF(play.mName);
+					out.writeUTF(play.mAlbum);
+					out.writeUTF(play.mArtist);
+				}
+			}
+			for (final AlbumPlay play : mAlbums.values()) {
+				out.writeByte(RECORD_ALBUM);
+				out.writeUTF(play.mId);
+				out.writeInt(play.mHost);
+				out.writeUTF(play.mName);
+				out.writeUTF(play.mArtist);
+				out.writeLong(play.mTimePlayed);
+			}
+			out.close();
+			out = null;
+			if (mTempLog.renameTo(mLog)) {
+				mFlushingLog.delete();
+			}
+		} catch (final IOException e) {
+			Log.e(TAG, "rewriteLog - " + e);
+		} finally {
+			if (out != null) {
+				try {
+					out.close();
+				} catch (final IOException ignored) {
+				}
+			}
+		}
+	}
+
+	/**
+	 * Reads the plays of a log back into the buffer. A record cut short by
+	 * the process dying is ignored.
+	 * 
+	 * @param log
+	 *            The log to read
+	 * @param songs
+	 *            False to only read the albums, when the songs were written
+	 */
+	private void replay(final File log, final boolean songs) {
+		if (!log.exists()) {
+			return;
+		}
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(log)));
+			while (true) {
+				final byte type = in.readByte();
+				if (type == RECORD_SONG && !songs) {
+					skipSong(in);
+				} else if (type == RECORD_SONG) {
+					final String id = in.readUTF();
+					final int host = in.readInt();
+					final String name = in.readUTF();
+					final String album = in.readUTF();
+					final String artist = in.readUTF();
+					bufferSong(id, host, name, album, artist, 1);
+				} else if (type == RECORD_FLUSH) {
+					in.readLong();
+				} else if (type == RECORD_ALBUM) {
+					final String id = in.readUTF();
+					final int host = in.readInt();
+					final String name = in.readUTF();
+					final String artist = in.readUTF();
+					final long timePlayed = in.readLong();
+					bufferAlbum(id, host, name, artist, timePlayed);
+				} else {
+					Log.e(TAG, "replay - unknown record " + type);
+					break;
+				}
+			}
+		} catch (final EOFException done) {
+			// End of the log
+		} catch (final IOException e) {
+			Log.e(TAG, "replay - " + e);
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (final IOException ignored) {
+				}
+			}
+		}
+	}
+
+	/**
+	 * The buffered plays of a song
+	 */
+	static final class SongPlay {
+
+		String mId;
+
+		int mHost;
+
+		String mName;
+
+		String mAlbum;
+
+		String mArtist;
+
+		int mCount;
+	}
+
+	/**
+	 * The last buffered play of an album
+	 */
+	static final class AlbumPlay {
+
+		String mId;
+
+		int mHost;
+
+		String mName;
+
+		String mArtist;
+
+		Long mSongCount;
+
+		String mYear;
+
+		long mTimePlayed;
+	}
+}
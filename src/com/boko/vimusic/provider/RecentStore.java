@@ -1,10 +1,13 @@
 package com.boko.vimusic.provider;
 
+import java.util.Collection;
+
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 import android.text.TextUtils;
 
 import com.boko.vimusic.model.HostType;
@@ -16,8 +19,8 @@ import com.boko.vimusic.model.HostType;
  */
 public class RecentStore extends SQLiteOpenHelper {
 
-	/* Version constant to increment when the database should be rebuilt */
-	private static final int VERSION = 1;
+	/* Version constant to increment when the schema changes */
+	private static final int VERSION = 2;
 
 	/* Name of database file */
 	public static final String DATABASENAME = "recent.db";
@@ -39,15 +42,8 @@ public class RecentStore extends SQLiteOpenHelper {
 	 */
 	@Override
 	public void onCreate(final SQLiteDatabase db) {
-		db.execSQL("CREATE TABLE IF NOT EXISTS " + RecentTable.TABLE_NAME
-				+ " (" + RecentTable.AID + " TEXT NOT NULL," // Album ID
-				+ RecentTable.HOST + " INTEGER DEFAULT 0," // Album Host
-				+ RecentTable.NAME + " TEXT NOT NULL," // Album Name
-				+ RecentTable.ARTIST + " TEXT NOT NULL," // Album Artist
-				+ RecentTable.SONG_COUNT + " LONG NOT NULL," // Album Song count
-				+ RecentTable.YEAR + " TEXT," // Album Year
-				+ RecentTable.TIME_PLAYED + " LONG NOT NULL);"); // Album Time
-																	// played
+		createTable(db, RecentTable.TABLE_NAME);
+		createIndexes(db);
 	}
 
 	/**
@@ -56,8 +52,60 @@ public class RecentStore extends SQLiteOpenHelper {
 	@Override
 	public void onUpgrade(final SQLiteDatabase db, final int oldVersion,
 			final int newVersion) {
-		db.execSQL("DROP TABLE IF EXISTS " + RecentTable.TABLE_NAME);
-		onCreate(db);
+		if (oldVersion < 2) {
+			// v1 had no key, so copy the rows into the keyed table keeping
+			// the most recent play of any duplicates
+			final String old = RecentTable.TABLE_NAME + "_v1";
+			db.execSQL("DROP TABLE IF EXISTS " + old);
+			db.execSQL("ALTER TABLE " + RecentTable.TABLE_NAME + " RENAME TO "
+					+ old);
+			createTable(db, RecentTable.TABLE_NAME);
+			db.execSQL("INSERT OR IGNORE INTO " + RecentTable.TABLE_NAME
+					+ " SELECT " + RecentTable.AID + ", IFNULL("
+					+ RecentTable.HOST + ", 0), " + RecentTable.NAME + ", "
+					+ RecentTable.ARTIST + ", " + RecentTable.SONG_COUNT + ", "
+					+ RecentTable.YEAR + ", MAX(" + RecentTable.TIME_PLAYED
+					+ ") FROM " + old + " GROUP BY " + RecentTable.AID
+					+ ", IFNULL(" + RecentTable.HOST + ", 0)");
+			db.execSQL("DROP TABLE " + old);
+			createIndexes(db);
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void onOpen(final SQLiteDatabase db) {
+		super.onOpen(db);
+		if (!db.isReadOnly()) {
+			// Let the loaders and widgets read while the service writes
+			db.enableWriteAheadLogging();
+		}
+	}
+
+	private static void createTable(final SQLiteDatabase db, final String name) {
+		db.execSQL("CREATE TABLE IF NOT EXISTS " + name + " ("
+				+ RecentTable.AID + " TEXT NOT NULL," // Album ID
+				+ RecentTable.HOST + " INTEGER NOT NULL DEFAULT 0," // Album Host
+				+ RecentTable.NAME + " TEXT NOT NULL," // Album Name
+				+ RecentTable.ARTIST + " TEXT NOT NULL," // Album Artist
+				+ RecentTable.SONG_COUNT + " LONG NOT NULL," // Album Song count
+				+ RecentTable.YEAR + " TEXT," // Album Year
+				+ RecentTable.TIME_PLAYED + " LONG NOT NULL," // Album Time
+																// played
+				+ "PRIMARY KEY (" + RecentTable.AID + ", " + RecentTable.HOST
+				+ "));");
+	}
+
+	private static void createIndexes(final SQLiteDatabase db) {
+		db.execSQL("CREATE INDEX IF NOT EXISTS " + RecentTable.TABLE_NAME + "_"
+				+ RecentTable.TIME_PLAYED + " ON " + RecentTable.TABLE_NAME
+				+ " (" + RecentTable.TIME_PLAYED + ");");
+		// Serves getMostPlayedAlbumName without a sort
+		db.execSQL("CREATE INDEX IF NOT EXISTS " + RecentTable.TABLE_NAME + "_"
+				+ RecentTable.ARTIST + " ON " + RecentTable.TABLE_NAME + " ("
+				+ RecentTable.ARTIST + ", " + RecentTable.TIME_PLAYED + ");");
 	}
 
 	/**
@@ -118,6 +166,65 @@ public class RecentStore extends SQLiteOpenHelper {
 		database.endTransaction();
 	}
 
+	/**
+	 * Adds the albums collected by {@link PlayStatsRecorder} in one
+	 * transaction. Albums already in the database are updated in place, the
+	 * others are inserted. The play time never goes back, so adding the same
+	 * albums again changes nothing.
+	 * 
+	 * @param plays
+	 *            The albums and when each was last played
+	 */
+	void addAlbums(final Collection<PlayStatsRecorder.AlbumPlay> plays) {
+		if (plays.isEmpty()) {
+			return;
+		}
+		final SQLiteDatabase database = getWritableDatabase();
+		final ContentValues values = new ContentValues(7);
+		final String update = "UPDATE " + RecentTable.TABLE_NAME + " SET "
+				+ RecentTable.NAME + " = ?, " + RecentTable.ARTIST + " = ?, "
+				+ RecentTable.SONG_COUNT + " = ?, " + RecentTable.YEAR
+				+ " = ?, " + RecentTable.TIME_PLAYED + " = MAX("
+				+ RecentTable.TIME_PLAYED + ", ?) WHERE " + RecentTable.AID
+				+ " = ? AND " + RecentTable.HOST + " = ?";
+
+		database.beginTransaction();
+		try {
+			final SQLiteStatement statement = database.compileStatement(update);
+			for (final PlayStatsRecorder.AlbumPlay play : plays) {
+				if (play.mSongCount == null) {
+					// The album is gone from the MediaStore
+					continue;
+				}
+				statement.clearBindings();
+				statement.bindString(1, play.mName);
+				statement.bindString(2, play.mArtist);
+				statement.bindLong(3, play.mSongCount);
+				if (play.mYear != null) {
+					statement.bindString(4, play.mYear);
+				}
+				statement.bindLong(5, play.mTimePlayed);
+				statement.bindString(6, play.mId);
+				statement.bindLong(7, play.mHost);
+				if (statement.executeUpdateDelete() == 0) {
+					values.clear();
+					values.put(RecentTable.AID, play.mId);
+					values.put(RecentTable.HOST, play.mHost);
+					values.put(RecentTable.NAME, play.mName);
+					values.put(RecentTable.ARTIST, play.mArtist);
+					values.put(RecentTable.SONG_COUNT, play.mSongCount);
+					values.put(RecentTable.YEAR, play.mYear);
+					values.put(RecentTable.TIME_PLAYED, play.mTimePlayed);
+					database.insertOrThrow(RecentTable.TABLE_NAME, null, values);
+				}
+			}
+			statement.close();
+			database.setTransactionSuccessful();
+		} finally {
+			database.endTransaction();
+		}
+	}
+
 	/**
 	 * @param item
 	 *            The album Id to remove.
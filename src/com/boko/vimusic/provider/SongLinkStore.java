@@ -0,0 +1,227 @@
+package com.boko.vimusic.provider;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+
+import com.boko.vimusic.model.Song;
+
+/**
+ * Keeps the resolved play and download links of remote songs, along with their
+ * data, so a song that is created again doesn't need to be resolved again
+ * until its links expire.
+ * 
+ */
+public class SongLinkStore extends SQLiteOpenHelper {
+
+	/* Version constant to increment when the database should be rebuilt */
+	private static final int VERSION = 1;
+
+	/* Name of database file */
+	public static final String DATABASENAME = "songlinks.db";
+
+	private static SongLinkStore sInstance = null;
+
+	/* Number of lookups answered from the store */
+	private final AtomicInteger mHitCount = new AtomicInteger();
+
+	/* Number of lookups that had to go to the network */
+	private final AtomicInteger mMissCount = new AtomicInteger();
+
+	/**
+	 * Constructor of <code>SongLinkStore</code>
+	 * 
+	 * @param context
+	 *            The {@link Context} to use
+	 */
+	public SongLinkStore(final Context context) {
+		super(context, DATABASENAME, null, VERSION);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void onCreate(final SQLiteDatabase db) {
+		db.execSQL("CREATE TABLE IF NOT EXISTS " + SongLinkTable.TABLE_NAME
+				+ " (" + SongLinkTable.SID + " TEXT NOT NULL," // Song ID
+				+ SongLinkTable.HOST + " INTEGER NOT NULL," // Song Host
+				+ SongLinkTable.NAME + " TEXT," // Song Name
+				+ SongLinkTable.ARTIST + " TEXT," // Song Artist
+				+ SongLinkTable.ALBUM + " TEXT," // Song Album
+				+ SongLinkTable.DURATION + " INTEGER," // Song Duration
+				+ SongLinkTable.LINK_PLAY + " TEXT NOT NULL," // Play link
+				+ SongLinkTable.LINK_DOWNLOAD + " TEXT," // Download link
+				+ SongLinkTable.EXPIRES + " LONG NOT NULL," // Expiry time
+				+ "PRIMARY KEY (" + SongLinkTable.SID + ", "
+				+ SongLinkTable.HOST + "));");
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void onUpgrade(final SQLiteDatabase db, final int oldVersion,
+			final int newVersion) {
+		// Only a cache, nothing is lost by rebuilding it
+		db.execSQL("DROP TABLE IF EXISTS " + SongLinkTable.TABLE_NAME);
+		onCreate(db);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void onOpen(final SQLiteDatabase db) {
+		super.onOpen(db);
+		if (!db.isReadOnly()) {
+			// Drop the links that can't be used anymore
+			db.delete(SongLinkTable.TABLE_NAME, SongLinkTable.EXPIRES + " < "
+					+ System.currentTimeMillis(), null);
+		}
+	}
+
+	/**
+	 * @param context
+	 *            The {@link Context} to use
+	 * @return A new instance of this class
+	 */
+	public static final synchronized SongLinkStore getInstance(
+			final Context context) {
+		if (sInstance == null) {
+			sInstance = new SongLinkStore(context.getApplicationContext());
+		}
+		return sInstance;
+	}
+
+	/**
+	 * Fills in a song from the store if its links haven't expired yet.
+	 * 
+	 * @param song
+	 *            The song to fill in
+	 * @return True if the song was found, false if it still needs to be
+	 *         resolved
+	 */
+	public boolean read(final Song song) {
+		if (song.getId() == null || song.getHost() == null) {
+			return false;
+		}
+		final SQLiteDatabase database = getReadableDatabase();
+		final String[] projection = new String[] { SongLinkTable.NAME,
+				SongLinkTable.ARTIST, SongLinkTable.ALBUM,
+				SongLinkTable.DURATION, SongLinkTable.LINK_PLAY,
+				SongLinkTable.LINK_DOWNLOAD };
+		final String selection = SongLinkTable.SID + "=? AND "
+				+ SongLinkTable.HOST + "=" + song.getHost().getCode() + " AND "
+				+ SongLinkTable.EXPIRES + ">" + System.currentTimeMillis();
+		Cursor cursor = database.query(SongLinkTable.TABLE_NAME, projection,
+				selection, new String[] { song.getId() }, null, null, null,
+				null);
+		boolean found = false;
+		if (cursor != null) {
+			if (cursor.moveToFirst()) {
+				song.setName(cursor.getString(0));
+				song.setArtistName(cursor.getString(1));
+				song.setAlbumName(cursor.getString(2));
+				song.setDuration(cursor.getInt(3));
+				song.setLinkPlay(cursor.getString(4));
+				song.setLinkDownload(cursor.getString(5));
+				found = true;
+			}
+			cursor.close();
+			cursor = null;
+		}
+		if (found) {
+			mHitCount.incrementAndGet();
+		} else {
+			mMissCount.incrementAndGet();
+		}
+		return found;
+	}
+
+	/**
+	 * Stores the resolved links and data of a song.
+	 * 
+	 * @param song
+	 *            The resolved song
+	 * @param ttl
+	 *            How long the links stay valid, in milliseconds
+	 */
+	public void write(final Song song, final long ttl) {
+		if (song.getId() == null || song.getHost() == null
+				|| song.getLinkPlay() == null) {
+			return;
+		}
+		final SQLiteDatabase database = getWritableDatabase();
+		final ContentValues values = new ContentValues(9);
+		values.put(SongLinkTable.SID, song.getId());
+		values.put(SongLinkTable.HOST, song.getHost().getCode());
+		values.put(SongLinkTable.NAME, song.getName());
+		values.put(SongLinkTable.ARTIST, song.getArtistName());
+		values.put(SongLinkTable.ALBUM, song.getAlbumName());
+		values.put(SongLinkTable.DURATION, song.getDuration());
+		values.put(SongLinkTable.LINK_PLAY, song.getLinkPlay());
+		values.put(SongLinkTable.LINK_DOWNLOAD, song.getLinkDownload());
+		values.put(SongLinkTable.EXPIRES, System.currentTimeMillis() + ttl);
+		database.replace(SongLinkTable.TABLE_NAME, null, values);
+	}
+
+	/**
+	 * @return The number of lookups answered from the store
+	 */
+	public int getHitCount() {
+		return mHitCount.get();
+	}
+
+	/**
+	 * @return The number of lookups that weren't in the store or had expired
+	 */
+	public int getMissCount() {
+		return mMissCount.get();
+	}
+
+	/**
+	 * Clear the cache.
+	 */
+	public void deleteDatabase() {
+		final SQLiteDatabase database = getReadableDatabase();
+		database.delete(SongLinkTable.TABLE_NAME, null, null);
+	}
+
+	public interface SongLinkTable {
+
+		/* Table name */
+		public static final String TABLE_NAME = "songlinks";
+
+		/* Song IDs column */
+		public static final String SID = "songid";
+
+		/* Song Host column */
+		public static final String HOST = "host";
+
+		/* Song name column */
+		public static final String NAME = "songname";
+
+		/* Artist name column */
+		public static final String ARTIST = "artistname";
+
+		/* Album name column */
+		public static final String ALBUM = "albumname";
+
+		/* Song duration column */
+		public static final String DURATION = "duration";
+
+		/* Play link column */
+		public static final String LINK_PLAY = "linkplay";
+
+		/* Download link column */
+		public static final String LINK_DOWNLOAD = "linkdownload";
+
+		/* Expiry time column */
+		public static final String EXPIRES = "expires";
+	}
+}
@@ -14,6 +14,7 @@ package com.boko.vimusic.recycler;
 import android.view.View;
 import android.widget.AbsListView.RecyclerListener;
 
+import com.boko.vimusic.cache.ImageWorker;
 import com.boko.vimusic.ui.MusicHolder;
 
 /**
@@ -34,14 +35,16 @@ public class RecycleHolder implements RecyclerListener {
 			view.setTag(holder);
 		}
 
-		// Release mBackground's reference
+		// Release mBackground's reference, its image isn't needed anymore
 		if (holder.mBackground.get() != null) {
+			ImageWorker.cancelWork(holder.mBackground.get());
 			holder.mBackground.get().setImageDrawable(null);
 			holder.mBackground.get().setImageBitmap(null);
 		}
 
 		// Release mImage's reference
 		if (holder.mImage.get() != null) {
+			ImageWorker.cancelWork(holder.mImage.get());
 			holder.mImage.get().setImageDrawable(null);
 			holder.mImage.get().setImageBitmap(null);
 		}
@@ -19,6 +19,7 @@ package com.boko.vimusic.service;
 import java.io.IOException;
 import java.lang.ref.WeakReference;
 import java.util.Arrays;
+import java.util.LinkedHashSet;
 import java.util.Random;
 
 import android.annotation.SuppressLint;
@@ -67,8 +68,9 @@ import com.boko.vimusic.loaders.SongLoader;
 import com.boko.vimusic.model.HostType;
 import com.boko.vimusic.model.Song;
 import com.boko.vimusic.model.SongFactory;
+import com.boko.vimusic.model.SongHydrator;
 import com.boko.vimusic.provider.FavoritesStore;
-import com.boko.vimusic.provider.RecentStore;
+import com.boko.vimusic.provider.PlayStatsRecorder;
 import com.boko.vimusic.utils.CommonUtils;
 import com.boko.vimusic.utils.MusicUtils;
 
@@ -127,17 +129,42 @@ public class MediaPlaybackService extends Service {
 	private static final int FADEDOWN = 5;
 	private static final int FADEUP = 6;
 	private static final int TRACK_WENT_TO_NEXT = 7;
+	private static final int SAVE_QUEUE = 8;
+	private static final int RESTORE_QUEUE = 9;
+
+	// delay used to batch queue edits into a single write
+	private static final int SAVE_QUEUE_DELAY = 500;
+
+	// events posted within this window are sent out together
+	private static final int NOTIFY_CHANGE_DELAY = 100;
+
+	// number of upcoming tracks filled in along with the one being prepared
+	private static final int HYDRATE_WINDOW = 32;
+
+	// number of remote tracks resolved ahead of the current one
+	private static final int LOOK_AHEAD = 3;
+
+	// how far into the play order to look for remote tracks
+	private static final int LOOK_AHEAD_SCAN = 64;
 
 	private MultiPlayer mPlayer;
 	private String mFileToPlay;
 	private int mShuffleMode = SHUFFLE_NONE;
 	private int mRepeatMode = REPEAT_NONE;
-	private Song[] mPlayList = null;
-	private int[] mPlayOrder = null;
-	private int mPlayListLen = 0;
+	private final PlayQueue mPlayQueue = new PlayQueue();
+	private final Random mRandom = new Random();
 	private int mPlayPos = -1;
 	private int mNextPlayPos = -1;
 	private int mOpenFailedCounter = 0;
+	// Saves the queue across process restarts
+	private QueueStore mQueueStore;
+	// Track and seek position to resume after the queue was restored
+	private Song mRestoredSong = null;
+	private long mRestoredSeek = 0;
+	// Caches remote streams on disk while they play
+	private StreamProxy mStreamProxy;
+	// Resolves the play links of upcoming remote tracks
+	private TrackResolver mTrackResolver;
 	private BroadcastReceiver mUnmountReceiver;
 	private WakeLock mWakeLock;
 	private int mServiceStartId = -1;
@@ -162,14 +189,27 @@ public class MediaPlaybackService extends Service {
 
 	private Handler mDelayedStopHandler;
 	private Handler mMediaplayerHandler;
+	// Thread the changes collected by notifyChange are sent out on
+	private HandlerThread mNotifyThread;
+	// Sends out the changes collected by notifyChange
+	private NotifyHandler mNotifyHandler;
+	// Events waiting to be sent out, in the order they were first posted
+	private final LinkedHashSet<String> mPendingChanges = new LinkedHashSet<String>();
+
+	/**
+	 * The track the pending changes are about, guarded by mPendingChanges
+	 */
+	private TrackInfo mPendingTrack;
+	// Track whose artwork the lockscreen controls show
+	private String mRemoteControlTrack;
 
 	private RemoteControlClient mRemoteControlClient;
 	// Image cache
 	private ImageFetcher mImageFetcher;
 	// Used to build the notification
 	private NotificationHelper mNotificationHelper;
-	// Recently listened database
-	private RecentStore mRecentsCache;
+	// Buffers plays for the favorites and recently listened databases
+	private PlayStatsRecorder mPlayStats;
 	// Favorites database
 	private FavoritesStore mFavoritesCache;
 
@@ -222,7 +262,7 @@ public class MediaPlaybackService extends Service {
 		super.onCreate();
 
 		// Initialize the favorites and recents databases
-		mRecentsCache = RecentStore.getInstance(this);
+		mPlayStats = PlayStatsRecorder.getInstance(this);
 		mFavoritesCache = FavoritesStore.getInstance(this);
 
 		// Initialize the notification helper
@@ -289,9 +329,23 @@ public class MediaPlaybackService extends Service {
 		mDelayedStopHandler = new DelayedStopHandler(this);
 		mMediaplayerHandler = new MediaPlayerHandler(this, thread.getLooper());
 
+		// Broadcasts, lockscreen, database and widget updates run on their own
+		// thread so they never hold up playback
+		mNotifyThread = new HandlerThread("NotifyHandler",
+				android.os.Process.THREAD_PRIORITY_BACKGROUND);
+		mNotifyThread.start();
+		mNotifyHandler = new NotifyHandler(this, mNotifyThread.getLooper());
+
 		mPlayer = new MultiPlayer(this);
 		mPlayer.setHandler(mMediaplayerHandler);
 
+		// Bring back the queue from the last run off the main thread
+		mQueueStore = new QueueStore(this);
+		mStreamProxy = new StreamProxy(this);
+		mStreamProxy.start();
+		mTrackResolver = new TrackResolver(this, mStreamProxy);
+		mMediaplayerHandler.sendEmptyMessage(RESTORE_QUEUE);
+
 		IntentFilter commandFilter = new IntentFilter();
 		commandFilter.addAction(ACTION_APPWIDGET_UPDATE);
 		commandFilter.addAction(ACTION_PLAYER_TOGGLEPAUSE);
@@ -326,6 +380,25 @@ public class MediaPlaybackService extends Service {
 		i.putExtra(AudioEffect.EXTRA_AUDIO_SESSION, getAudioSessionId());
 		i.putExtra(AudioEffect.EXTRA_PACKAGE_NAME, getPackageName());
 		sendBroadcast(i);
+
+		// Save the queue while the player still knows its position
+		mMediaplayerHandler.removeMessages(SAVE_QUEUE);
+		saveQueue();
+		mTrackResolver.shutdown();
+		mStreamProxy.stop();
+		// Let a dispatch that is already running finish before the player and
+		// the play stats go away, and drop the ones still waiting
+		mNotifyHandler.removeCallbacksAndMessages(null);
+		mNotifyThread.quit();
+		try {
+			mNotifyThread.join();
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		// Write the buffered plays out, they'd only be replayed from the log
+		// otherwise
+		mPlayStats.flush();
+
 		mPlayer.release();
 		mPlayer = null;
 
@@ -434,7 +507,7 @@ public class MediaPlaybackService extends Service {
 		// before stopping the service, so that pause/resume isn't slow.
 		// Also delay stopping the service if we're transitioning between
 		// tracks.
-		if (mPlayListLen > 0 || mMediaplayerHandler.hasMessages(TRACK_ENDED)) {
+		if (mPlayQueue.size() > 0 || mMediaplayerHandler.hasMessages(TRACK_ENDED)) {
 			gotoIdleState();
 			return true;
 		}
@@ -486,85 +559,169 @@ public class MediaPlaybackService extends Service {
 		if (DEBUG)
 			Log.d(TAG, "notifyChange: what = " + what);
 
-		Intent i = new Intent(what);
-		i.putExtra("id", getAudioId());
-		i.putExtra("track", getTrackName());
-		i.putExtra("artist", getArtistName());
-		i.putExtra("album", getAlbumName());
-		i.putExtra("playing", isPlaying());
-		i.putExtra("isfavorite", isFavorite());
-		sendStickyBroadcast(i);
+		// Save the queue and position once things settle down
+		mMediaplayerHandler.removeMessages(SAVE_QUEUE);
+		mMediaplayerHandler.sendEmptyMessageDelayed(SAVE_QUEUE,
+				SAVE_QUEUE_DELAY);
 
-		// Update the lockscreen controls
-		updateRemoteControlClient(what);
+		// Resolve the next remote tracks before playback gets there
+		if (what.equals(EVENT_META_CHANGED) || what.equals(EVENT_QUEUE_CHANGED)
+				|| what.equals(EVENT_SHUFFLEMODE_CHANGED)
+				|| what.equals(EVENT_REPEATMODE_CHANGED)) {
+			updateLookAhead();
+		}
+
+		if (what.equals(EVENT_QUEUE_CHANGED) && isPlaying()) {
+			setNextTrack();
+		}
+
+		// Everything else is sent out once for a burst of events. The queue
+		// and the player change on the player thread, so the track and the
+		// play state are read here, under the service lock, rather than on the
+		// notify thread.
+		final TrackInfo track;
+		synchronized (this) {
+			final boolean playerReady = mPlayer != null
+					&& mPlayer.isInitialized();
+			track = new TrackInfo(currentTrack(), getAlbumId(), isPlaying(),
+					isFavorite(), playerReady ? mPlayer.duration() : -1,
+					playerReady ? mPlayer.position() : -1);
+		}
+		synchronized (mPendingChanges) {
+			if (mPendingChanges.isEmpty()) {
+				mNotifyHandler.sendEmptyMessageDelayed(
+						NotifyHandler.DISPATCH_CHANGES, NOTIFY_CHANGE_DELAY);
+			}
+			mPendingChanges.add(what);
+			mPendingTrack = track;
+		}
+	}
 
-		if (what.equals(EVENT_POSITION_CHANGED)) {
+	/**
+	 * Sends out the events collected by {@link #notifyChange(String)}, each
+	 * one once, with the track of the last event. Runs on the notify thread.
+	 */
+	private void dispatchChanges() {
+		final String[] changes;
+		final TrackInfo track;
+		synchronized (mPendingChanges) {
+			changes = mPendingChanges.toArray(new String[mPendingChanges
+					.size()]);
+			mPendingChanges.clear();
+			track = mPendingTrack;
+			mPendingTrack = null;
+		}
+		if (track == null) {
 			return;
-		} else if (what.equals(EVENT_META_CHANGED)) {
+		}
+		boolean metaChanged = false;
+		boolean queueChanged = false;
+		boolean playStateChanged = false;
+		boolean positionChanged = false;
+		for (final String what : changes) {
+			metaChanged |= what.equals(EVENT_META_CHANGED);
+			queueChanged |= what.equals(EVENT_QUEUE_CHANGED);
+			playStateChanged |= what.equals(EVENT_PLAYSTATE_CHANGED);
+			positionChanged |= what.equals(EVENT_POSITION_CHANGED);
+		}
+
+		final String audioId = track.mId;
+		final String trackName = track.mName;
+		final String artistName = track.mArtist;
+		final String albumName = track.mAlbum;
+		final boolean playing = track.mPlaying;
+		final boolean favorite = track.mFavorite;
+		for (final String what : changes) {
+			final Intent i = new Intent(what);
+			i.putExtra("id", audioId);
+			i.putExtra("track", trackName);
+			i.putExtra("artist", artistName);
+			i.putExtra("album", albumName);
+			i.putExtra("playing", playing);
+			i.putExtra("isfavorite", favorite);
+			sendStickyBroadcast(i);
+		}
+
+		// Update the lockscreen controls
+		updateRemoteControlClient(track, metaChanged || queueChanged,
+				metaChanged || queueChanged || playStateChanged
+						|| positionChanged);
+
+		if (metaChanged) {
 			// Increase the play count for favorite songs.
-			if (!mFavoritesCache.isFavoriteSong(getAudioId(), getTrackHost())) {
-				mFavoritesCache.addSong(getAudioId(), getTrackHost(),
-						getTrackName(), getAlbumName(), getArtistName());
-			}
+			mPlayStats.addSong(audioId, track.mHost, trackName, albumName,
+					artistName);
 			// Add the track to the recently played list.
-			mRecentsCache.addAlbum(getAlbumId(), getTrackHost(),
-					getAlbumName(), getArtistName(),
-					MusicUtils.getSongCountForAlbum(this, getAlbumId()),
-					MusicUtils.getReleaseDateForAlbum(this, getAlbumId()));
-		} else if (what.equals(EVENT_QUEUE_CHANGED)) {
-			if (isPlaying()) {
-				setNextTrack();
-			}
+			mPlayStats.addAlbum(track.mAlbumId, track.mHost, albumName,
+					artistName);
 		}
 
-		if (what.equals(EVENT_PLAYSTATE_CHANGED)) {
-			mNotificationHelper.updatePlayState(isPlaying());
+		if (playStateChanged) {
+			mNotificationHelper.updatePlayState(playing);
 		}
 
 		// Share this notification directly with our widgets
-		mAppWidgetSmall.notifyChange(this, what);
-		mAppWidgetLarge.notifyChange(this, what);
-		mAppWidgetLargeAlternate.notifyChange(this, what);
-		mRecentWidgetProvider.notifyChange(this, what);
+		for (final String what : changes) {
+			if (what.equals(EVENT_POSITION_CHANGED)) {
+				continue;
+			}
+			mAppWidgetSmall.notifyChange(this, what);
+			mAppWidgetLarge.notifyChange(this, what);
+			mAppWidgetLargeAlternate.notifyChange(this, what);
+			mRecentWidgetProvider.notifyChange(this, what);
+		}
 	}
 
 	/**
-	 * Updates the lockscreen controls.
+	 * Updates the lockscreen controls. The artwork is only copied again when
+	 * the track changed.
 	 * 
-	 * @param what
-	 *            The broadcast
+	 * @param track
+	 *            The track to show
+	 * @param metadata
+	 *            True to update the track info
+	 * @param state
+	 *            True to update the play state and position
 	 */
-	private void updateRemoteControlClient(final String what) {
-		if (what.equals(EVENT_META_CHANGED) || what.equals(EVENT_QUEUE_CHANGED)) {
+	private void updateRemoteControlClient(final TrackInfo track,
+			final boolean metadata, final boolean state) {
+		if (metadata) {
+			final String key = track.mHost + ":" + track.mId;
+			final boolean trackChanged = !key.equals(mRemoteControlTrack);
 			RemoteControlClient.MetadataEditor ed = mRemoteControlClient
-					.editMetadata(true);
+					.editMetadata(trackChanged);
 			ed.putString(MediaMetadataRetriever.METADATA_KEY_TITLE,
-					getTrackName());
+					track.mName);
 			ed.putString(MediaMetadataRetriever.METADATA_KEY_ARTIST,
-					getArtistName());
+					track.mArtist);
 			ed.putString(MediaMetadataRetriever.METADATA_KEY_ALBUM,
-					getAlbumName());
-			ed.putLong(MediaMetadataRetriever.METADATA_KEY_DURATION, duration());
-			Bitmap b = getAlbumArt();
-			if (b != null) {
-				// RemoteControlClient wants to recycle the bitmaps thrown at
-				// it, so we need
-				// to make sure not to hand out our cache copy
-				Bitmap.Config config = b.getConfig();
-				if (config == null) {
-					config = Bitmap.Config.ARGB_8888;
+					track.mAlbum);
+			ed.putLong(MediaMetadataRetriever.METADATA_KEY_DURATION,
+					track.mDuration);
+			if (trackChanged) {
+				Bitmap b = mImageFetcher.getArtwork(track.mAlbum,
+						track.mAlbumId, track.mArtist);
+				if (b != null) {
+					// RemoteControlClient wants to recycle the bitmaps thrown
+					// at it, so we need
+					// to make sure not to hand out our cache copy
+					Bitmap.Config config = b.getConfig();
+					if (config == null) {
+						config = Bitmap.Config.ARGB_8888;
+					}
+					b = b.copy(config, false);
+					ed.putBitmap(MetadataEditor.BITMAP_KEY_ARTWORK, b);
 				}
-				b = b.copy(config, false);
-				ed.putBitmap(MetadataEditor.BITMAP_KEY_ARTWORK, b);
+				mRemoteControlTrack = key;
 			}
 			ed.apply();
 		}
-		if (what.equals(EVENT_PLAYSTATE_CHANGED) || what.equals(EVENT_POSITION_CHANGED)
-				|| what.equals(EVENT_META_CHANGED) || what.equals(EVENT_QUEUE_CHANGED)) {
-			int playState = isPlaying() ? RemoteControlClient.PLAYSTATE_PLAYING
+		if (state) {
+			int playState = track.mPlaying ? RemoteControlClient.PLAYSTATE_PLAYING
 					: RemoteControlClient.PLAYSTATE_PAUSED;
 			if (CommonUtils.hasJellyBeanMR2()) {
-				mRemoteControlClient.setPlaybackState(playState, position(),
+				mRemoteControlClient.setPlaybackState(playState,
+						track.mPosition,
 						1.0f);
 			} else {
 				mRemoteControlClient.setPlaybackState(playState);
@@ -572,52 +729,14 @@ public class MediaPlaybackService extends Service {
 		}
 	}
 
-	private void ensurePlayListCapacity(final int size) {
-		if (mPlayList == null || size > mPlayList.length) {
-			// reallocate at 2x requested size so we don't
-			// need to grow and copy the array for every
-			// insert
-			Song[] newlist = new Song[size * 2];
-			int len = mPlayList != null ? mPlayList.length : mPlayListLen;
-			for (int i = 0; i < len; i++) {
-				newlist[i] = mPlayList[i];
-			}
-			mPlayList = newlist;
-		}
-		// FIXME: shrink the array when the needed size is much smaller
-		// than the allocated size
-	}
-
 	// insert the list of songs at the specified position in the playlist
 	private void addToPlayList(final Song[] list, int position) {
-		int addlen = list.length;
 		if (position < 0) { // overwrite
-			mPlayListLen = 0;
-			mPlayOrder = new int[0];
+			mPlayQueue.clear();
 			position = 0;
 		}
-		ensurePlayListCapacity(mPlayListLen + addlen);
-		if (position > mPlayListLen) {
-			position = mPlayListLen;
-		}
-
-		// move part of list after insertion point
-		int tailsize = mPlayListLen - position;
-		for (int i = tailsize; i > 0; i--) {
-			mPlayList[position + i] = mPlayList[position + i - addlen];
-		}
-
-		// copy list into playlist
-		for (int i = 0; i < addlen; i++) {
-			mPlayList[position + i] = list[i];
-		}
-		int[] a = generateArray(mPlayListLen, addlen);
-		if (mShuffleMode == SHUFFLE_NORMAL) {
-			shuffleArray(a);
-		}
-		mPlayOrder = concat(mPlayOrder, a);
-		mPlayListLen += addlen;
-		if (mPlayListLen == 0) {
+		mPlayQueue.insert(position, list, mPlayPos);
+		if (mPlayQueue.size() == 0) {
 			notifyChange(EVENT_META_CHANGED);
 		}
 	}
@@ -634,16 +753,16 @@ public class MediaPlaybackService extends Service {
 	 */
 	public void enqueue(final Song[] list, final int action) {
 		synchronized (this) {
-			if (action == NEXT && mPlayPos + 1 < mPlayListLen) {
+			if (action == NEXT && mPlayPos + 1 < mPlayQueue.size()) {
 				addToPlayList(list, mPlayPos + 1);
 				notifyChange(EVENT_QUEUE_CHANGED);
 			} else {
 				// action == LAST || action == NOW || mPlayPos + 1 ==
-				// mPlayListLen
+				// mPlayQueue.size()
 				addToPlayList(list, Integer.MAX_VALUE);
 				notifyChange(EVENT_QUEUE_CHANGED);
 				if (action == NOW) {
-					mPlayPos = mPlayListLen - list.length;
+					mPlayPos = mPlayQueue.size() - list.length;
 					prepareAndPlayCurrent();
 					return;
 				}
@@ -667,11 +786,11 @@ public class MediaPlaybackService extends Service {
 		synchronized (this) {
 			int listlength = list.length;
 			boolean newlist = true;
-			if (mPlayListLen == listlength) {
+			if (mPlayQueue.size() == listlength) {
 				// possible fast path: list might be the same
 				newlist = false;
 				for (int i = 0; i < listlength; i++) {
-					if (list[i] != mPlayList[i]) {
+					if (list[i] != mPlayQueue.get(i)) {
 						newlist = true;
 						break;
 					}
@@ -684,8 +803,11 @@ public class MediaPlaybackService extends Service {
 			if (position >= 0) {
 				mPlayPos = position;
 			} else {
-				Random rand = new Random();
-				mPlayPos = rand.nextInt(mPlayListLen);
+				mPlayPos = mRandom.nextInt(mPlayQueue.size());
+			}
+			if (newlist) {
+				// Start the shuffled order at the chosen track
+				mPlayQueue.setFirst(mPlayPos);
 			}
 
 			prepareAndPlayCurrent();
@@ -700,29 +822,24 @@ public class MediaPlaybackService extends Service {
 	 */
 	public void moveQueueItem(int index1, int index2) {
 		synchronized (this) {
-			if (index1 >= mPlayListLen) {
-				index1 = mPlayListLen - 1;
+			final int size = mPlayQueue.size();
+			if (index1 >= size) {
+				index1 = size - 1;
 			}
-			if (index2 >= mPlayListLen) {
-				index2 = mPlayListLen - 1;
+			if (index2 >= size) {
+				index2 = size - 1;
 			}
+			if (index1 < 0 || index2 < 0) {
+				return;
+			}
+			mPlayQueue.move(index1, index2);
 			if (index1 < index2) {
-				Song tmp = mPlayList[index1];
-				for (int i = index1; i < index2; i++) {
-					mPlayList[i] = mPlayList[i + 1];
-				}
-				mPlayList[index2] = tmp;
 				if (mPlayPos == index1) {
 					mPlayPos = index2;
 				} else if (mPlayPos >= index1 && mPlayPos <= index2) {
 					mPlayPos--;
 				}
 			} else if (index2 < index1) {
-				Song tmp = mPlayList[index1];
-				for (int i = index1; i > index2; i--) {
-					mPlayList[i] = mPlayList[i - 1];
-				}
-				mPlayList[index2] = tmp;
 				if (mPlayPos == index1) {
 					mPlayPos = index2;
 				} else if (mPlayPos >= index2 && mPlayPos <= index1) {
@@ -740,18 +857,13 @@ public class MediaPlaybackService extends Service {
 	 */
 	public Song[] getQueue() {
 		synchronized (this) {
-			int len = mPlayListLen;
-			Song[] list = new Song[len];
-			for (int i = 0; i < len; i++) {
-				list[i] = mPlayList[i];
-			}
-			return list;
+			return mPlayQueue.toArray();
 		}
 	}
 
 	private void setNextTrack() {
 		mNextPlayPos = getNextPosition(false);
-		if (mPlayList != null && mNextPlayPos >= 0) {
+		if (mNextPlayPos >= 0) {
 			prepareNext();
 		} else {
 			mPlayer.setNextDataSource(null);
@@ -798,7 +910,10 @@ public class MediaPlaybackService extends Service {
 			}
 
 			updateNotification();
-		} else if (mPlayListLen <= 0) {
+		} else if (mPlayPos >= 0 && mPlayPos < mPlayQueue.size()) {
+			// The queue was restored but nothing has been opened yet
+			prepareAndPlayCurrent();
+		} else if (mPlayQueue.size() <= 0) {
 			// This is mostly so that if you press 'play' on a bluetooth headset
 			// without every having played anything before, it will still play
 			// something.
@@ -884,9 +999,9 @@ public class MediaPlaybackService extends Service {
 		synchronized (this) {
 			int pos = getPreShuffledPos();
 			if (pos > 0) {
-				mPlayPos = mPlayOrder[pos - 1];
+				mPlayPos = mPlayQueue.getOrder(pos - 1);
 			} else {
-				mPlayPos = mPlayOrder[mPlayListLen - 1];
+				mPlayPos = mPlayQueue.getOrder(mPlayQueue.size() - 1);
 			}
 			stop(false);
 			prepareAndPlayCurrent();
@@ -906,24 +1021,24 @@ public class MediaPlaybackService extends Service {
 			return mPlayPos;
 		} else {
 			int pos = getPreShuffledPos();
-			if (pos >= mPlayListLen - 1) {
+			if (pos >= mPlayQueue.size() - 1) {
 				// we're at the end of the list
 				if (mRepeatMode == REPEAT_NONE && !force) {
 					// all done
 					return -1;
 				} else if (mRepeatMode == REPEAT_ALL || force) {
-					return mPlayOrder[0];
+					return mPlayQueue.getOrder(0);
 				}
 				return -1;
 			} else {
-				return mPlayOrder[pos + 1];
+				return mPlayQueue.getOrder(pos + 1);
 			}
 		}
 	}
 
 	public void gotoNext(boolean force) {
 		synchronized (this) {
-			if (mPlayListLen <= 0) {
+			if (mPlayQueue.size() <= 0) {
 				if (DEBUG)
 					Log.d(TAG, "No play queue");
 				gotoIdleState();
@@ -993,8 +1108,10 @@ public class MediaPlaybackService extends Service {
 				return 0;
 			if (first < 0)
 				first = 0;
-			if (last >= mPlayListLen)
-				last = mPlayListLen - 1;
+			if (last >= mPlayQueue.size())
+				last = mPlayQueue.size() - 1;
+			if (last < first)
+				return 0;
 
 			boolean gotonext = false;
 			if (first <= mPlayPos && mPlayPos <= last) {
@@ -1003,21 +1120,15 @@ public class MediaPlaybackService extends Service {
 			} else if (mPlayPos > last) {
 				mPlayPos -= (last - first + 1);
 			}
-			int num = mPlayListLen - last - 1;
-			for (int i = 0; i < num; i++) {
-				mPlayList[first + i] = mPlayList[last + 1 + i];
-			}
-			mPlayListLen -= last - first + 1;
-
-			mPlayOrder = removeArray(first, last);
+			mPlayQueue.remove(first, last);
 
 			if (gotonext) {
-				if (mPlayListLen == 0) {
+				if (mPlayQueue.size() == 0) {
 					stop(true);
 					mPlayPos = -1;
 					notifyChange(EVENT_META_CHANGED);
 				} else {
-					if (mPlayPos >= mPlayListLen) {
+					if (mPlayPos >= mPlayQueue.size()) {
 						mPlayPos = 0;
 					}
 					stop(false);
@@ -1038,8 +1149,8 @@ public class MediaPlaybackService extends Service {
 	public int removeTrack(final Song song) {
 		int numremoved = 0;
 		synchronized (this) {
-			for (int i = 0; i < mPlayListLen; i++) {
-				if (mPlayList[i].equals(song)) {
+			for (int i = 0; i < mPlayQueue.size(); i++) {
+				if (mPlayQueue.get(i).equals(song)) {
 					numremoved += removeTracksInternal(i, i);
 					i--;
 				}
@@ -1053,13 +1164,11 @@ public class MediaPlaybackService extends Service {
 
 	public void setShuffleMode(int shufflemode) {
 		synchronized (this) {
-			if (mShuffleMode == shufflemode && mPlayListLen > 0) {
+			if (mShuffleMode == shufflemode && mPlayQueue.size() > 0) {
 				return;
 			}
-			mPlayOrder = generateArray(0, mPlayListLen);
-			if (shufflemode == SHUFFLE_NORMAL) {
-				shuffleArray(mPlayOrder);
-			}
+			mPlayQueue.setShuffled(shufflemode == SHUFFLE_NORMAL, mPlayPos,
+					mRandom.nextLong());
 			mShuffleMode = shufflemode;
 			notifyChange(EVENT_SHUFFLEMODE_CHANGED);
 		}
@@ -1094,15 +1203,26 @@ public class MediaPlaybackService extends Service {
 	 * currently playing.
 	 */
 	public String getAudioId() {
-		if (mPlayPos >= 0) {
-			return mPlayList[mPlayPos].getId();
+		synchronized (this) {
+			final Song song = currentTrack();
+			return song != null ? song.getId() : null;
 		}
-		return null;
 	}
 
 	public HostType getTrackHost() {
-		if (mPlayPos >= 0) {
-			return mPlayList[mPlayPos].getHost();
+		synchronized (this) {
+			final Song song = currentTrack();
+			return song != null ? song.getHost() : null;
+		}
+	}
+
+	/**
+	 * @return The track at the play position, or null if there is none. Must
+	 *         hold the service lock.
+	 */
+	private Song currentTrack() {
+		if (mPlayPos >= 0 && mPlayPos < mPlayQueue.size()) {
+			return mPlayQueue.get(mPlayPos);
 		}
 		return null;
 	}
@@ -1131,10 +1251,10 @@ public class MediaPlaybackService extends Service {
 	}
 
 	public String getArtistName() {
-		if (mPlayPos >= 0) {
-			return mPlayList[mPlayPos].mArtistName;
+		synchronized (this) {
+			final Song song = currentTrack();
+			return song != null ? song.mArtistName : null;
 		}
-		return null;
 	}
 
 	public String getArtistId() {
@@ -1142,10 +1262,10 @@ public class MediaPlaybackService extends Service {
 	}
 
 	public String getAlbumName() {
-		if (mPlayPos >= 0) {
-			return mPlayList[mPlayPos].mAlbumName;
+		synchronized (this) {
+			final Song song = currentTrack();
+			return song != null ? song.mAlbumName : null;
 		}
-		return null;
 	}
 
 	public String getAlbumId() {
@@ -1157,10 +1277,10 @@ public class MediaPlaybackService extends Service {
 	}
 
 	public String getTrackName() {
-		if (mPlayPos >= 0) {
-			return mPlayList[mPlayPos].getName();
+		synchronized (this) {
+			final Song song = currentTrack();
+			return song != null ? song.getName() : null;
 		}
-		return null;
 	}
 
 	/**
@@ -1303,6 +1423,71 @@ public class MediaPlaybackService extends Service {
 		}
 	}
 
+	/**
+	 * The track an event was about, read when the event was posted.
+	 */
+	private static final class TrackInfo {
+		private final String mId;
+		private final HostType mHost;
+		private final String mName;
+		private final String mArtist;
+		private final String mAlbum;
+		private final String mAlbumId;
+		private final boolean mPlaying;
+		private final boolean mFavorite;
+		private final long mDuration;
+		private final long mPosition;
+
+		public TrackInfo(final Song song, final String albumId,
+				final boolean playing, final boolean favorite,
+				final long duration, final long position) {
+			mId = song != null ? song.getId() : null;
+			mHost = song != null ? song.getHost() : null;
+			mName = song != null ? song.getName() : null;
+			mArtist = song != null ? song.mArtistName : null;
+			mAlbum = song != null ? song.mAlbumName : null;
+			mAlbumId = albumId;
+			mPlaying = playing;
+			mFavorite = favorite;
+			mDuration = duration;
+			mPosition = position;
+		}
+	}
+
+	/**
+	 * Sends out the changes collected by notifyChange on the notify thread.
+	 */
+	private static final class NotifyHandler extends Handler {
+		private static final int DISPATCH_CHANGES = 1;
+
+		private final WeakReference<MediaPlaybackService> mService;
+
+		/**
+		 * Constructor of <code>NotifyHandler</code>
+		 * 
+		 * @param service
+		 *            The service to use.
+		 * @param looper
+		 *            The thread to run on.
+		 */
+		public NotifyHandler(final MediaPlaybackService service,
+				final Looper looper) {
+			super(looper);
+			mService = new WeakReference<MediaPlaybackService>(service);
+		}
+
+		@Override
+		public void handleMessage(final Message msg) {
+			final MediaPlaybackService service = mService.get();
+			if (service == null) {
+				return;
+			}
+			if (msg.what == DISPATCH_CHANGES) {
+				service.dispatchChanges();
+			}
+		}
+	}
+
 	private static final class MediaPlayerHandler extends Handler {
 		private final WeakReference<MediaPlaybackService> mService;
 		private float mCurrentVolume = 1.0f;
@@ -1374,6 +1559,12 @@ public class MediaPlaybackService extends Service {
 					service.gotoNext(false);
 				}
 				break;
+			case SAVE_QUEUE:
+				service.saveQueue();
+				break;
+			case RESTORE_QUEUE:
+				service.restoreQueue();
+				break;
 			case RELEASE_WAKELOCK:
 				service.mWakeLock.release();
 				break;
@@ -1884,33 +2075,34 @@ public class MediaPlaybackService extends Service {
 	}
 
 	private void prepareNext() {
-		if (mPlayList == null || mNextPlayPos < 0) {
+		if (mNextPlayPos < 0 || mNextPlayPos >= mPlayQueue.size()) {
 			return;
 		}
 		cancelRunningTask();
-		Song song = mPlayList[mNextPlayPos];
+		Song song = mPlayQueue.get(mNextPlayPos);
 		if (!song.isQueried()) {
 			songTask = new QuerySongTask() {
 				@Override
 				protected void onPostExecute(Song song) {
 					if (song != null) {
-						mPlayer.setNextDataSource(song.getLinkPlay());
+						mPlayer.setNextDataSource(mStreamProxy.getUrl(song));
 					}
 				}
 			};
-			songTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR, song);
+			songTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR,
+					getHydrationWindow(mNextPlayPos));
 		} else {
-			mPlayer.setNextDataSource(song.getLinkPlay());
+			mPlayer.setNextDataSource(mStreamProxy.getUrl(song));
 		}
 	}
 
 	private void prepareAndPlayCurrent() {
-		if (mPlayList == null || mPlayPos < 0) {
+		if (mPlayPos < 0 || mPlayPos >= mPlayQueue.size()) {
 			return;
 		}
 		stop(false);
 		cancelRunningTask();
-		Song song = mPlayList[mPlayPos];
+		Song song = mPlayQueue.get(mPlayPos);
 		if (!song.isQueried()) {
 			songTask = new QuerySongTask() {
 				@Override
@@ -1918,15 +2110,16 @@ public class MediaPlaybackService extends Service {
 					if (song != null) {
 						notifyChange(EVENT_META_CHANGED);
 						updateNotification();
-						playFile(song.getLinkPlay());
+						playFile(mStreamProxy.getUrl(song));
 					}
 				}
 			};
-			songTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR, song);
+			songTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR,
+					getHydrationWindow(mPlayPos));
 		} else {
 			notifyChange(EVENT_META_CHANGED);
 			updateNotification();
-			playFile(song.getLinkPlay());
+			playFile(mStreamProxy.getUrl(song));
 		}
 	}
 
@@ -1938,7 +2131,7 @@ public class MediaPlaybackService extends Service {
 	 */
 	public void playFile(final String path) {
 		Log.d(TAG, "Play file path = " + path);
-		if (mPlayList == null || mPlayPos < 0) {
+		if (mPlayQueue.size() == 0 || mPlayPos < 0) {
 			ContentResolver resolver = getContentResolver();
 			Uri uri;
 			String where;
@@ -1960,11 +2153,9 @@ public class MediaPlaybackService extends Service {
 				if (c != null) {
 					if (c.getCount() > 0) {
 						c.moveToNext();
-						ensurePlayListCapacity(1);
-						mPlayListLen = 1;
-						mPlayOrder = new int[] { 0 };
-						mPlayList[0] = SongFactory.newSong(HostType.LOCAL,
-								c.getString(0));
+						mPlayQueue.clear();
+						mPlayQueue.insert(0, new Song[] { SongFactory.newSong(
+								HostType.LOCAL, c.getString(0)) }, -1);
 						mPlayPos = 0;
 					}
 					c.close();
@@ -1979,6 +2170,14 @@ public class MediaPlaybackService extends Service {
 			@Override
 			public void onPrepared(MediaPlayer mp) {
 				mOpenFailedCounter = 0;
+				if (mRestoredSong != null) {
+					// Resume the restored track where it was left
+					if (mPlayPos >= 0 && mPlayPos < mPlayQueue.size()
+							&& mPlayQueue.get(mPlayPos) == mRestoredSong) {
+						mPlayer.seek(mRestoredSeek);
+					}
+					mRestoredSong = null;
+				}
 				play();
 				setNextTrack();
 				notifyChange(EVENT_META_CHANGED);
@@ -1990,7 +2189,7 @@ public class MediaPlaybackService extends Service {
 			public boolean onError(MediaPlayer mp, int what, int extra) {
 				// if we get here then opening the file failed. We're
 				// either going to create a new one next, or stop trying
-				if (mOpenFailedCounter < 10 && mPlayListLen > 1) {
+				if (mOpenFailedCounter < 10 && mPlayQueue.size() > 1) {
 					mOpenFailedCounter++;
 					Log.w(TAG,
 							"Failed to open file for playback. Try count: "
@@ -2006,6 +2205,62 @@ public class MediaPlaybackService extends Service {
 		mPlayer.setDataSource(mFileToPlay);
 	}
 
+	/**
+	 * @param position
+	 *            The queue index of the track about to be prepared
+	 * @return The track followed by the next few tracks in play order
+	 */
+	private Song[] getHydrationWindow(final int position) {
+		final int size = mPlayQueue.size();
+		final int start = mPlayQueue.getOrderPosition(position);
+		if (start < 0) {
+			return new Song[0];
+		}
+		final Song[] window = new Song[Math.min(HYDRATE_WINDOW, size - start)];
+		for (int i = 0; i < window.length; i++) {
+			window[i] = mPlayQueue.get(mPlayQueue.getOrder(start + i));
+		}
+		return window;
+	}
+
+	/**
+	 * Hands the next few remote tracks in play order to the
+	 * {@link TrackResolver}, dropping the ones no longer coming up.
+	 */
+	private void updateLookAhead() {
+		final Song[] window;
+		synchronized (this) {
+			final int size = mPlayQueue.size();
+			final int start = mPlayQueue.getOrderPosition(mPlayPos);
+			final Song[] found = new Song[LOOK_AHEAD];
+			int count = 0;
+			if (start >= 0) {
+				final int scan = Math.min(LOOK_AHEAD_SCAN, size - 1);
+				for (int i = 1; i <= scan && count < LOOK_AHEAD; i++) {
+					int position = start + i;
+					if (position >= size) {
+						if (mRepeatMode != REPEAT_ALL) {
+							break;
+						}
+						position -= size;
+					}
+					final Song song = mPlayQueue.get(mPlayQueue
+							.getOrder(position));
+					if (song.getHost() != HostType.LOCAL) {
+						found[count++] = song;
+					}
+				}
+			}
+			window = new Song[count];
+			System.arraycopy(found, 0, window, 0, count);
+		}
+		mTrackResolver.resolve(window);
+	}
+
+	/**
+	 * Queries the first track and fills in the local tracks after it in one
+	 * batch, so they are ready when playback gets there.
+	 */
 	private class QuerySongTask extends AsyncTask<Song, Void, Song> {
 
 		@Override
@@ -2013,7 +2268,10 @@ public class MediaPlaybackService extends Service {
 			if (params == null || params.length == 0 || params[0] == null) {
 				return null;
 			}
-			params[0].query(getApplicationContext());
+			SongHydrator.hydrate(getApplicationContext(), params);
+			if (!params[0].isQueried()) {
+				params[0].query(getApplicationContext());
+			}
 			return params[0];
 		}
 	}
@@ -2026,64 +2284,56 @@ public class MediaPlaybackService extends Service {
 		songTask = null;
 	}
 
-	private void shuffleArray(int[] a) {
-		int n = a.length;
-		Random random = new Random();
-		random.nextInt();
-		for (int i = 0; i < n; i++) {
-			int change = i + random.nextInt(n - i);
-			int helper = a[i];
-			a[i] = a[change];
-			a[change] = helper;
-		}
-	}
-
-	private int[] generateArray(int offset, int len) {
-		int[] a = new int[len];
-		for (int i = 0; i < len; i++) {
-			a[i] = i + offset;
+	/**
+	 * Restores the queue saved by the last run, unless something has been
+	 * queued in the meantime. Only the tracks around the current one are
+	 * queried.
+	 */
+	private void restoreQueue() {
+		Song current = null;
+		Song[] window = null;
+		synchronized (this) {
+			if (mPlayQueue.size() == 0 && mQueueStore.restore(mPlayQueue)) {
+				mShuffleMode = mPlayQueue.isShuffled() ? SHUFFLE_NORMAL
+						: SHUFFLE_NONE;
+				final int pos = mQueueStore.getPosition();
+				if (pos >= 0 && pos < mPlayQueue.size()) {
+					mPlayPos = pos;
+					current = mPlayQueue.get(pos);
+					mRestoredSong = current;
+					mRestoredSeek = mQueueStore.getSeek();
+					window = getHydrationWindow(pos);
+				}
+			}
+			// From now on every edit goes to the store
+			mPlayQueue.setJournal(mQueueStore);
 		}
-		return a;
-	}
-
-	private int getPreShuffledPos() {
-		for (int i = 0; i < mPlayOrder.length; i++) {
-			if (mPlayPos == mPlayOrder[i]) {
-				return i;
+		if (current != null) {
+			SongHydrator.hydrate(getApplicationContext(), window);
+			if (!current.isQueried()) {
+				current.query(getApplicationContext());
 			}
+			notifyChange(EVENT_QUEUE_CHANGED);
 		}
-		return -1;
 	}
 
-	static int[] concat(int[]... arrays) {
-		int lengh = 0;
-		for (int[] array : arrays) {
-			lengh += array.length;
-		}
-		int[] result = new int[lengh];
-		int pos = 0;
-		for (int[] array : arrays) {
-			for (int element : array) {
-				result[pos] = element;
-				pos++;
+	/**
+	 * Writes the queue edits and the current position to the store.
+	 */
+	private void saveQueue() {
+		synchronized (this) {
+			long seek = 0;
+			if (mRestoredSong != null) {
+				seek = mRestoredSeek;
+			} else if (mPlayer != null && mPlayer.isInitialized()) {
+				seek = mPlayer.position();
 			}
+			mQueueStore.save(mPlayQueue, mPlayPos, seek);
 		}
-		return result;
 	}
 
-	private int[] removeArray(int first, int last) {
-		int[] a = new int[mPlayOrder.length - last + first - 1];
-		int index = 0;
-		for (int i = 0; i < mPlayOrder.length; i++) {
-			if (mPlayOrder[i] > last) {
-				a[index] = mPlayOrder[i] - last + first - 1;
-				index++;
-			} else if (mPlayOrder[i] < first) {
-				a[index] = mPlayOrder[i];
-				index++;
-			}
-		}
-		return a;
+	private int getPreShuffledPos() {
+		return mPlayQueue.getOrderPosition(mPlayPos);
 	}
 
 	public void shuffleAll() {
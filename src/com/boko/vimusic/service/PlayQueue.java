@@ -0,0 +1,352 @@
+package com.boko.vimusic.service;
+
+import java.util.Arrays;
+
+import com.boko.vimusic.model.Song;
+
+/**
+ * The play queue used by {@link MediaPlaybackService}. Tracks are kept in a gap
+ * buffer so that inserting, removing and moving tracks near the last edit
+ * point only shifts the tracks between the old and the new edit point instead
+ * of the whole tail of the queue. While shuffling, the play order is kept in
+ * a {@link ShuffleOrder} that follows every edit. The order is over queue
+ * indices, so while shuffling an insert, a removal or a move costs time
+ * linear in the queue size on top of the gap buffer edit.
+ * <p>
+ * Every edit is reported to an optional {@link Journal}, replaying the same
+ * calls on an empty queue gives back the same queue and play order.
+ */
+final class PlayQueue {
+
+	/**
+	 * Receives every edit made to a {@link PlayQueue}, after it was applied.
+	 */
+	interface Journal {
+
+		void onInsert(int index, Song[] list, int current);
+
+		void onRemove(int first, int last);
+
+		void onMove(int from, int to);
+
+		void onClear();
+
+		void onShuffle(boolean shuffled, int current, long seed);
+
+		void onSetFirst(int index);
+	}
+
+	/**
+	 * Smallest capacity the buffers are ever shrunk to
+	 */
+	private static final int MIN_CAPACITY = 16;
+
+	/**
+	 * The tracks, with a gap of unused slots between mGapStart and mGapEnd
+	 */
+	private Song[] mItems = new Song[MIN_CAPACITY];
+
+	private int mGapStart = 0;
+
+	private int mGapEnd = MIN_CAPACITY;
+
+	/**
+	 * Only used while shuffling, otherwise the play order is the queue order
+	 */
+	private ShuffleOrder mOrder = null;
+
+	private Journal mJournal = null;
+
+	/**
+	 * @param journal
+	 *            The {@link Journal} to report edits to, or null
+	 */
+	public void setJournal(final Journal journal) {
+		mJournal = journal;
+	}
+
+	/**
+	 * @return The number of tracks in the queue
+	 */
+	public int size() {
+		return mItems.length - (mGapEnd - mGapStart);
+	}
+
+	/**
+	 * @param index
+	 *            The queue index of the track
+	 * @return The track at the given queue index
+	 */
+	public Song get(final int index) {
+		if (index < 0 || index >= size()) {
+			throw new IndexOutOfBoundsException("index=" + index + ", size="
+					+ size());
+		}
+		return index < mGapStart ? mItems[index] : mItems[index + mGapEnd
+				- mGapStart];
+	}
+
+	/**
+	 * @return A copy of the tracks in queue order
+	 */
+	public Song[] toArray() {
+		final Song[] list = new Song[size()];
+		System.arraycopy(mItems, 0, list, 0, mGapStart);
+		System.arraycopy(mItems, mGapEnd, list, mGapStart, mItems.length
+				- mGapEnd);
+		return list;
+	}
+
+	/**
+	 * Inserts tracks into the queue. While shuffling, the new tracks are
+	 * shuffled into the part of the play order after the current track.
+	 *
+	 * @param index
+	 *            The queue index to insert at, clamped to the queue size
+	 * @param list
+	 *            The tracks to insert
+	 * @param current
+	 *            The queue index of the current track, or -1
+	 */
+	public void insert(int index, final Song[] list, final int current) {
+		final int size = size();
+		final int count = list.length;
+		if (index < 0) {
+			index = 0;
+		} else if (index > size) {
+			index = size;
+		}
+		ensureGap(count);
+		moveGap(index);
+		System.arraycopy(list, 0, mItems, mGapStart, count);
+		mGapStart += count;
+
+		if (mOrder != null) {
+			final int played = current >= 0 && current < size ? mOrder
+					.positionOf(current) : -1;
+			mOrder.insert(index, count, played);
+		}
+		if (mJournal != null) {
+			mJournal.onInsert(index, list, current);
+		}
+	}
+
+	/**
+	 * Removes the tracks between first and last, both inclusive.
+	 *
+	 * @param first
+	 *            The first queue index to remove
+	 * @param last
+	 *            The last queue index to remove
+	 */
+	public void remove(final int first, final int last) {
+		moveGap(last + 1);
+		Arrays.fill(mItems, first, mGapStart, null);
+		mGapStart = first;
+
+		if (mOrder != null) {
+			mOrder.remove(first, last);
+		}
+		shrink();
+		if (mJournal != null) {
+			mJournal.onRemove(first, last);
+		}
+	}
+
+	/**
+	 * Moves the track at one queue index to another. The play order keeps
+	 * pointing at the same tracks.
+	 *
+	 * @param from
+	 *            The current queue index of the track
+	 * @param to
+	 *            The new queue index of the track
+	 */
+	public void move(final int from, final int to) {
+		if (from == to) {
+			return;
+		}
+		final Song song = get(from);
+		moveGap(from + 1);
+		mItems[--mGapStart] = null;
+		moveGap(to);
+		mItems[mGapStart++] = song;
+
+		if (mOrder != null) {
+			mOrder.move(from, to);
+		}
+		if (mJournal != null) {
+			mJournal.onMove(from, to);
+		}
+	}
+
+	/**
+	 * Removes all tracks and releases the buffers.
+	 */
+	public void clear() {
+		mItems = new Song[MIN_CAPACITY];
+		mGapStart = 0;
+		mGapEnd = MIN_CAPACITY;
+		if (mOrder != null) {
+			mOrder.clear();
+		}
+		if (mJournal != null) {
+			mJournal.onClear();
+		}
+	}
+
+	/**
+	 * Turns shuffling on or off. Turning it on shuffles the whole queue, with
+	 * the current track first.
+	 *
+	 * @param shuffled
+	 *            True to shuffle the play order
+	 * @param current
+	 *            The queue index of the current track, or -1
+	 * @param seed
+	 *            The seed to generate the play order from
+	 */
+	public void setShuffled(final boolean shuffled, final int current,
+			final long seed) {
+		if (shuffled) {
+			mOrder = new ShuffleOrder(seed);
+			mOrder.shuffle(size(), seed);
+			mOrder.setFirst(current);
+		} else {
+			mOrder = null;
+		}
+		if (mJournal != null) {
+			mJournal.onShuffle(shuffled, current, seed);
+		}
+	}
+
+	/**
+	 * Replaces the queue with saved tracks and play order, without reporting
+	 * it to the {@link Journal}.
+	 *
+	 * @param list
+	 *            The tracks in queue order
+	 * @param order
+	 *            The queue index at each order position, or null when not
+	 *            shuffling
+	 * @param seed
+	 *            The seed the play order was generated from
+	 * @param state
+	 *            The saved state of the play order's random number generator
+	 */
+	public void restore(final Song[] list, final int[] order, final long seed,
+			final long state) {
+		final int capacity = Math.max(MIN_CAPACITY, list.length * 2);
+		mItems = new Song[capacity];
+		System.arraycopy(list, 0, mItems, 0, list.length);
+		mGapStart = list.length;
+		mGapEnd = capacity;
+		if (order != null) {
+			mOrder = new ShuffleOrder(seed);
+			mOrder.restore(order, list.length, seed, state);
+		} else {
+			mOrder = null;
+		}
+	}
+
+	/**
+	 * @return True if the play order is shuffled
+	 */
+	public boolean isShuffled() {
+		return mOrder != null;
+	}
+
+	/**
+	 * @return The seed of the shuffled play order, or 0 when not shuffling
+	 */
+	public long getShuffleSeed() {
+		return mOrder != null ? mOrder.getSeed() : 0;
+	}
+
+	/**
+	 * @return The state of the shuffled play order's random number generator,
+	 *         or 0 when not shuffling
+	 */
+	public long getShuffleState() {
+		return mOrder != null ? mOrder.getState() : 0;
+	}
+
+	/**
+	 * Moves a track to the front of the shuffled play order.
+	 *
+	 * @param index
+	 *            The queue index of the track to play first
+	 */
+	public void setFirst(final int index) {
+		if (mOrder != null) {
+			mOrder.setFirst(index);
+			if (mJournal != null) {
+				mJournal.onSetFirst(index);
+			}
+		}
+	}
+
+	/**
+	 * @param position
+	 *            A position in the play order
+	 * @return The queue index of the track at that order position
+	 */
+	public int getOrder(final int position) {
+		return mOrder != null ? mOrder.get(position) : position;
+	}
+
+	/**
+	 * @param index
+	 *            A queue index
+	 * @return The order position of the track at that queue index, or -1
+	 */
+	public int getOrderPosition(final int index) {
+		if (index < 0 || index >= size()) {
+			return -1;
+		}
+		return mOrder != null ? mOrder.positionOf(index) : index;
+	}
+
+	private void moveGap(final int index) {
+		if (index < mGapStart) {
+			final int count = mGapStart - index;
+			System.arraycopy(mItems, index, mItems, mGapEnd - count, count);
+			Arrays.fill(mItems, index, Math.min(mGapStart, mGapEnd - count),
+					null);
+			mGapStart -= count;
+			mGapEnd -= count;
+		} else if (index > mGapStart) {
+			final int count = index - mGapStart;
+			System.arraycopy(mItems, mGapEnd, mItems, mGapStart, count);
+			Arrays.fill(mItems, Math.max(mGapEnd, mGapStart + count), mGapEnd
+					+ count, null);
+			mGapStart += count;
+			mGapEnd += count;
+		}
+	}
+
+	private void ensureGap(final int count) {
+		if (mGapEnd - mGapStart >= count) {
+			return;
+		}
+		// grow to 2x the needed size so we don't need to grow and copy the
+		// buffer for every insert
+		resize(Math.max(MIN_CAPACITY, (size() + count) * 2));
+	}
+
+	private void shrink() {
+		final int size = size();
+		if (mItems.length > MIN_CAPACITY && size < mItems.length / 4) {
+			resize(Math.max(MIN_CAPACITY, size * 2));
+		}
+	}
+
+	private void resize(final int capacity) {
+		final int tail = mItems.length - mGapEnd;
+		final Song[] items = new Song[capacity];
+		System.arraycopy(mItems, 0, items, 0, mGapStart);
+		System.arraycopy(mItems, mGapEnd, items, capacity - tail, tail);
+		mItems = items;
+		mGapEnd = capacity - tail;
+	}
+}
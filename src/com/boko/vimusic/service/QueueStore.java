@@ -0,0 +1,525 @@
+package com.boko.vimusic.service;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+
+import android.content.Context;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.boko.vimusic.model.HostType;
+import com.boko.vimusic.model.Song;
+import com.boko.vimusic.model.SongFactory;
+
+/**
+ * Saves the play queue of {@link MediaPlaybackService} to a compact binary
+ * file, so it survives the process being killed.
+ * <p>
+ * The file starts with a snapshot of the whole queue (host code and id of
+ * every track, the shuffled play order and the position), followed by a
+ * journal of the edits made since. Edits are buffered as they happen and
+ * appended in one write by {@link #save(PlayQueue, int, long)}. Once the
+ * journal grows too long the file is rewritten as a single snapshot. All
+ * numbers are written as varints, so a track usually takes 4-6 bytes.
+ * <p>
+ * Restoring replays the file into an empty {@link PlayQueue} with a single
+ * read and without querying any track.
+ */
+final class QueueStore implements PlayQueue.Journal {
+
+	private static final String TAG = QueueStore.class.getSimpleName();
+
+	/* Name of the queue file */
+	private static final String FILENAME = "queue.bin";
+
+	/* "VMQ1" */
+	private static final int MAGIC = 0x564D5131;
+
+	private static final int RECORD_SNAPSHOT = 1;
+
+	private static final int RECORD_INSERT = 2;
+
+	private static final int RECORD_REMOVE = 3;
+
+	private static final int RECORD_MOVE = 4;
+
+	private static final int RECORD_SHUFFLE = 5;
+
+	private static final int RECORD_FIRST = 6;
+
+	private static final int RECORD_POSITION = 7;
+
+	/* Rewrite the file as a snapshot once the journal holds this many records */
+	private static final int MAX_JOURNAL_RECORDS = 1024;
+
+	private final File mFile;
+
+	/* Records not written to the file yet */
+	private final Output mPending = new Output(256);
+
+	private int mJournalRecords = 0;
+
+	/* True if the file doesn't match the queue and needs a new snapshot */
+	private boolean mNeedsSnapshot = true;
+
+	private int mPosition = -1;
+
+	private long mSeek = 0;
+
+	/**
+	 * Constructor of <code>QueueStore</code>
+	 *
+	 * @param context
+	 *            The {@link Context} to use
+	 */
+	public QueueStore(final Context context) {
+		mFile = new File(context.getFilesDir(), FILENAME);
+	}
+
+	/**
+	 * @return The queue position restored or last saved
+	 */
+	public int getPosition() {
+		return mPosition;
+	}
+
+	/**
+	 * @return The seek position in milliseconds restored or last saved
+	 */
+	public long getSeek() {
+		return mSeek;
+	}
+
+	/**
+	 * Replays the saved queue into an empty {@link PlayQueue}. The queue must
+	 * not have a {@link PlayQueue.Journal} set yet.
+	 *
+	 * @param queue
+	 *            The queue to restore into
+	 * @return True if a queue was restored, false otherwise
+	 */
+	public synchronized boolean restore(final PlayQueue queue) {
+		if (!mFile.exists()) {
+			return false;
+		}
+		final byte[] data;
+		try {
+			data = readFile(mFile);
+		} catch (final IOException e) {
+			Log.e(TAG, "restore - " + e);
+			return false;
+		}
+		final Input in = new Input(data);
+		int records = 0;
+		try {
+			if (in.readInt() != MAGIC) {
+				return false;
+			}
+			while (in.available()) {
+				readRecord(in, queue);
+				records++;
+			}
+		} catch (final EOFException e) {
+			// The last record was cut short, keep everything before it
+			Log.w(TAG, "restore - truncated after " + records + " records");
+			mJournalRecords = records;
+			return records > 0;
+		} catch (final RuntimeException e) {
+			Log.e(TAG, "restore - " + e);
+			queue.clear();
+			mPosition = -1;
+			mSeek = 0;
+			return false;
+		}
+		mJournalRecords = records;
+		mNeedsSnapshot = false;
+		return records > 0;
+	}
+
+	/**
+	 * Writes the edits made since the last call and the current position. The
+	 * caller must hold the lock guarding the queue.
+	 *
+	 * @param queue
+	 *            The queue being saved
+	 * @param position
+	 *            The current queue position
+	 * @param seek
+	 *            The current seek position in milliseconds
+	 */
+	public synchronized void save(final PlayQueue queue, final int position,
+			final long seek) {
+		if (position != mPosition || seek != mSeek) {
+			writePosition(mPending, position, seek);
+			mJournalRecords++;
+		}
+		try {
+			if (mNeedsSnapshot || mJournalRecords > MAX_JOURNAL_RECORDS) {
+				writeSnapshot(queue, position, seek);
+			} else if (mPending.size() > 0) {
+				final FileOutputStream out = new FileOutputStream(mFile, true);
+				try {
+					mPending.writeTo(out);
+				} finally {
+					out.close();
+				}
+			}
+		} catch (final IOException e) {
+			Log.e(TAG, "save - " + e);
+			mNeedsSnapshot = true;
+		}
+		mPending.reset();
+		mPosition = position;
+		mSeek = seek;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public synchronized void onInsert(final int index, final Song[] list,
+			final int current) {
+		mPending.write(RECORD_INSERT);
+		mPending.writeVarint(index);
+		mPending.writeVarint(current + 1);
+		mPending.writeVarint(list.length);
+		for (final Song song : list) {
+			mPending.writeSong(song);
+		}
+		mJournalRecords++;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public synchronized void onRemove(final int first, final int last) {
+		mPending.write(RECORD_REMOVE);
+		mPending.writeVarint(first);
+		mPending.writeVarint(last);
+		mJournalRecords++;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public synchronized void onMove(final int from, final int to) {
+		mPending.write(RECORD_MOVE);
+		mPending.writeVarint(from);
+		mPending.writeVarint(to);
+		mJournalRecords++;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public synchronized void onClear() {
+		// Everything before is obsolete, start over with a snapshot
+		mPending.reset();
+		mNeedsSnapshot = true;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public synchronized void onShuffle(final boolean shuffled,
+			final int current, final long seed) {
+		mPending.write(RECORD_SHUFFLE);
+		mPending.write(shuffled ? 1 : 0);
+		mPending.writeVarint(current + 1);
+		mPending.writeLong(seed);
+		mJournalRecords++;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public synchronized void onSetFirst(final int index) {
+		mPending.write(RECORD_FIRST);
+		mPending.writeVarint(index);
+		mJournalRecords++;
+	}
+
+	private void writeSnapshot(final PlayQueue queue, final int position,
+			final long seek) throws IOException {
+		final int size = queue.size();
+		final Output out = new Output(size * 8 + 64);
+		out.writeInt(MAGIC);
+		out.write(RECORD_SNAPSHOT);
+		out.writeVarint(size);
+		for (int i = 0; i < size; i++) {
+			out.writeSong(queue.get(i));
+		}
+		if (queue.isShuffled()) {
+			out.write(1);
+			out.writeLong(queue.getShuffleSeed());
+			out.writeLong(queue.getShuffleState());
+			for (int i = 0; i < size; i++) {
+				out.writeVarint(queue.getOrder(i));
+			}
+		} else {
+			out.write(0);
+		}
+		writePosition(out, position, seek);
+
+		// Write to a temporary file first so a crash never leaves a broken
+		// snapshot behind
+		final File temp = new File(mFile.getPath() + ".tmp");
+		final FileOutputStream stream = new FileOutputStream(temp);
+		try {
+			out.writeTo(stream);
+			stream.getFD().sync();
+		} finally {
+			stream.close();
+		}
+		if (!temp.renameTo(mFile)) {
+			throw new IOException("Unable to replace " + mFile);
+		}
+		mJournalRecords = 0;
+		mNeedsSnapshot = false;
+	}
+
+	private static void writePosition(final Output out, final int position,
+			final long seek) {
+		out.write(RECORD_POSITION);
+		out.writeVarint(position + 1);
+		out.writeVarLong(Math.max(0, seek));
+	}
+
+	private void readRecord(final Input in, final PlayQueue queue)
+			throws EOFException {
+		final int type = in.readByte();
+		switch (type) {
+		case RECORD_SNAPSHOT: {
+			final Song[] list = readSongs(in);
+			int[] order = null;
+			long seed = 0;
+			long state = 0;
+			if (in.readByte() != 0) {
+				seed = in.readLong();
+				state = in.readLong();
+				order = new int[list.length];
+				for (int i = 0; i < list.length; i++) {
+					order[i] = in.readVarint();
+				}
+			}
+			queue.restore(list, order, seed, state);
+			break;
+		}
+		case RECORD_INSERT: {
+			final int index = in.readVarint();
+			final int current = in.readVarint() - 1;
+			queue.insert(index, readSongs(in), current);
+			break;
+		}
+		case RECORD_REMOVE: {
+			final int first = in.readVarint();
+			final int last = in.readVarint();
+			queue.remove(first, last);
+			break;
+		}
+		case RECORD_MOVE: {
+			final int from = in.readVarint();
+			final int to = in.readVarint();
+			queue.move(from, to);
+			break;
+		}
+		case RECORD_SHUFFLE: {
+			final boolean shuffled = in.readByte() != 0;
+			final int current = in.readVarint() - 1;
+			final long seed = in.readLong();
+			queue.setShuffled(shuffled, current, seed);
+			break;
+		}
+		case RECORD_FIRST:
+			queue.setFirst(in.readVarint());
+			break;
+		case RECORD_POSITION: {
+			// A torn record must not pair the new track with the old seek
+			final int position = in.readVarint() - 1;
+			final long seek = in.readVarLong();
+			mPosition = position;
+			mSeek = seek;
+			break;
+		}
+		default:
+			throw new IllegalStateException("Unknown record " + type);
+		}
+	}
+
+	private static Song[] readSongs(final Input in) throws EOFException {
+		final Song[] list = new Song[in.readVarint()];
+		for (int i = 0; i < list.length; i++) {
+			list[i] = in.readSong();
+		}
+		return list;
+	}
+
+	private static byte[] readFile(final File file) throws IOException {
+		final byte[] data = new byte[(int) file.length()];
+		final FileInputStream in = new FileInputStream(file);
+		try {
+			int read = 0;
+			while (read < data.length) {
+				final int count = in.read(data, read, data.length - read);
+				if (count < 0) {
+					throw new EOFException();
+				}
+				read += count;
+			}
+		} finally {
+			in.close();
+		}
+		return data;
+	}
+
+	/**
+	 * Tells if an id can be stored as a number without changing it.
+	 */
+	private static boolean isNumericId(final String id) {
+		return id.length() > 0 && id.length() <= 18
+				&& TextUtils.isDigitsOnly(id)
+				&& (id.length() == 1 || id.charAt(0) != '0');
+	}
+
+	/**
+	 * A byte buffer with varint helpers.
+	 */
+	private static final class Output extends ByteArrayOutputStream {
+
+		public Output(final int size) {
+			super(size);
+		}
+
+		public void writeVarint(int value) {
+			while ((value & ~0x7F) != 0) {
+				write((value & 0x7F) | 0x80);
+				value >>>= 7;
+			}
+			write(value);
+		}
+
+		public void writeVarLong(long value) {
+			while ((value & ~0x7FL) != 0) {
+				write((int) (value & 0x7F) | 0x80);
+				value >>>= 7;
+			}
+			write((int) value);
+		}
+
+		public void writeInt(final int value) {
+			write(value >>> 24);
+			write(value >>> 16);
+			write(value >>> 8);
+			write(value);
+		}
+
+		public void writeLong(final long value) {
+			writeInt((int) (value >>> 32));
+			writeInt((int) value);
+		}
+
+		/**
+		 * Writes the host code and the id of a song. Numeric ids are written
+		 * as a number, any other id as UTF-8.
+		 */
+		public void writeSong(final Song song) {
+			writeVarint(song.getHost().getCode());
+			final String id = song.getId() != null ? song.getId() : "";
+			if (isNumericId(id)) {
+				writeVarLong(Long.parseLong(id) << 1);
+			} else {
+				try {
+					final byte[] bytes = id.getBytes("UTF-8");
+					writeVarLong(((long) bytes.length << 1) | 1);
+					write(bytes, 0, bytes.length);
+				} catch (final UnsupportedEncodingException e) {
+					throw new AssertionError(e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Reads what {@link Output} wrote.
+	 */
+	private static final class Input {
+
+		private final byte[] mData;
+
+		private int mPos = 0;
+
+		public Input(final byte[] data) {
+			mData = data;
+		}
+
+		public boolean available() {
+			return mPos < mData.length;
+		}
+
+		public int readByte() throws EOFException {
+			if (mPos >= mData.length) {
+				throw new EOFException();
+			}
+			return mData[mPos++] & 0xFF;
+		}
+
+		public int readVarint() throws EOFException {
+			return (int) readVarLong();
+		}
+
+		public long readVarLong() throws EOFException {
+			long value = 0;
+			for (int shift = 0; shift < 64; shift += 7) {
+				final int b = readByte();
+				value |= (long) (b & 0x7F) << shift;
+				if ((b & 0x80) == 0) {
+					return value;
+				}
+			}
+			throw new IllegalStateException("Malformed varint");
+		}
+
+		public int readInt() throws EOFException {
+			return readByte() << 24 | readByte() << 16 | readByte() << 8
+					| readByte();
+		}
+
+		public long readLong() throws EOFException {
+			return (long) readInt() << 32 | (readInt() & 0xFFFFFFFFL);
+		}
+
+		public Song readSong() throws EOFException {
+			final HostType host = HostType.getHost(readVarint());
+			if (host == null) {
+				throw new IllegalStateException("Unknown host");
+			}
+			final long header = readVarLong();
+			final String id;
+			if ((header & 1) == 0) {
+				id = String.valueOf(header >>> 1);
+			} else {
+				final int length = (int) (header >>> 1);
+				if (length < 0 || mPos + length > mData.length) {
+					throw new EOFException();
+				}
+				try {
+					id = new String(mData, mPos, length, "UTF-8");
+				} catch (final UnsupportedEncodingException e) {
+					throw new AssertionError(e);
+				}
+				mPos += length;
+			}
+			return SongFactory.newSong(host, id);
+		}
+	}
+}
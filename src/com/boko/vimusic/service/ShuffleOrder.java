@@ -0,0 +1,283 @@
+package com.boko.vimusic.service;
+
+import java.util.Arrays;
+
+/**
+ * A shuffled play order over the queue indices of a {@link PlayQueue}. Both
+ * the forward (order position to queue index) and the inverse (queue index to
+ * order position) permutation are kept, so stepping through the order and
+ * finding the current order position are constant time.
+ * <p>
+ * The order is generated from a seed, so the same seed over the same queue
+ * always gives the same order. Tracks added later are shuffled into the part
+ * of the order that hasn't been played yet, the played part is never touched.
+ * The random numbers come from a SplitMix64 generator whose whole state is a
+ * single long, so a saved order can be restored and keep evolving exactly as
+ * it would have.
+ * <p>
+ * The permutation is over queue indices, not stable track handles. An insert
+ * or a move renumbers every index after the edit point, and a removal
+ * compacts both arrays, so each edit is linear in the size of the queue.
+ * Only stepping through the order and looking up a position are constant
+ * time.
+ */
+final class ShuffleOrder {
+
+	private static final int MIN_CAPACITY = 16;
+
+	private int[] mForward = new int[MIN_CAPACITY];
+
+	private int[] mInverse = new int[MIN_CAPACITY];
+
+	private int mSize = 0;
+
+	private long mSeed;
+
+	private long mState;
+
+	/**
+	 * Constructor of <code>ShuffleOrder</code>
+	 *
+	 * @param seed
+	 *            The seed the order is generated from
+	 */
+	public ShuffleOrder(final long seed) {
+		mSeed = seed;
+		mState = seed;
+	}
+
+	/**
+	 * @return The seed the current order was generated from
+	 */
+	public long getSeed() {
+		return mSeed;
+	}
+
+	/**
+	 * @return The current state of the random number generator
+	 */
+	public long getState() {
+		return mState;
+	}
+
+	/**
+	 * @return The number of entries in the order
+	 */
+	public int size() {
+		return mSize;
+	}
+
+	/**
+	 * @param position
+	 *            A position in the play order
+	 * @return The queue index at that order position
+	 */
+	public int get(final int position) {
+		return mForward[position];
+	}
+
+	/**
+	 * @param index
+	 *            A queue index
+	 * @return The order position of that queue index
+	 */
+	public int positionOf(final int index) {
+		return mInverse[index];
+	}
+
+	/**
+	 * Shuffles a queue of the given size from scratch.
+	 *
+	 * @param size
+	 *            The size of the queue
+	 * @param seed
+	 *            The seed to generate the order from
+	 */
+	public void shuffle(final int size, final long seed) {
+		mSeed = seed;
+		mState = seed;
+		mSize = 0;
+		ensureCapacity(size);
+		mSize = size;
+		for (int i = 0; i < size; i++) {
+			mForward[i] = i;
+		}
+		shuffleTail(0);
+	}
+
+	/**
+	 * Restores a saved order.
+	 *
+	 * @param forward
+	 *            The queue index at each order position
+	 * @param size
+	 *            The number of entries used in forward
+	 * @param seed
+	 *            The seed the order was generated from
+	 * @param state
+	 *            The saved state of the random number generator
+	 */
+	public void restore(final int[] forward, final int size, final long seed,
+			final long state) {
+		mSize = 0;
+		ensureCapacity(size);
+		System.arraycopy(forward, 0, mForward, 0, size);
+		mSize = size;
+		for (int i = 0; i < size; i++) {
+			mInverse[mForward[i]] = i;
+		}
+		mSeed = seed;
+		mState = state;
+	}
+
+	/**
+	 * Moves a queue index to the front of the order, so playback that starts
+	 * there goes through the whole order.
+	 *
+	 * @param index
+	 *            The queue index to play first
+	 */
+	public void setFirst(final int index) {
+		if (index < 0 || index >= mSize) {
+			return;
+		}
+		swap(0, mInverse[index]);
+	}
+
+	/**
+	 * Makes room for tracks inserted into the queue and shuffles them into
+	 * the part of the order after the given position.
+	 *
+	 * @param index
+	 *            The queue index the tracks were inserted at
+	 * @param count
+	 *            The number of tracks inserted
+	 * @param played
+	 *            The last order position that has already been played, or -1
+	 */
+	public void insert(final int index, final int count, final int played) {
+		ensureCapacity(mSize + count);
+		// Shift the queue indices after the insertion point
+		for (int i = mSize - 1; i >= index; i--) {
+			final int position = mInverse[i];
+			mForward[position] = i + count;
+			mInverse[i + count] = position;
+		}
+		// Append the new indices and swap each of them to a random unplayed
+		// position
+		final int from = Math.max(0, played + 1);
+		for (int i = 0; i < count; i++) {
+			final int position = mSize++;
+			mForward[position] = index + i;
+			mInverse[index + i] = position;
+			swap(position, from + nextInt(position - from + 1));
+		}
+	}
+
+	/**
+	 * Drops the queue indices between first and last, both inclusive.
+	 *
+	 * @param first
+	 *            The first queue index removed
+	 * @param last
+	 *            The last queue index removed
+	 */
+	public void remove(final int first, final int last) {
+		final int count = last - first + 1;
+		int n = 0;
+		for (int i = 0; i < mSize; i++) {
+			final int item = mForward[i];
+			if (item < first) {
+				mForward[n] = item;
+				mInverse[item] = n++;
+			} else if (item > last) {
+				mForward[n] = item - count;
+				mInverse[item - count] = n++;
+			}
+		}
+		mSize = n;
+		if (mForward.length > MIN_CAPACITY && mSize < mForward.length / 4) {
+			final int capacity = Math.max(MIN_CAPACITY, mSize * 2);
+			mForward = Arrays.copyOf(mForward, capacity);
+			mInverse = Arrays.copyOf(mInverse, capacity);
+		}
+	}
+
+	/**
+	 * Follows a track moved inside the queue, so the order keeps pointing at
+	 * the same tracks.
+	 *
+	 * @param from
+	 *            The old queue index of the track
+	 * @param to
+	 *            The new queue index of the track
+	 */
+	public void move(final int from, final int to) {
+		final int position = mInverse[from];
+		if (from < to) {
+			for (int i = from; i < to; i++) {
+				final int p = mInverse[i + 1];
+				mForward[p] = i;
+				mInverse[i] = p;
+			}
+		} else {
+			for (int i = from; i > to; i--) {
+				final int p = mInverse[i - 1];
+				mForward[p] = i;
+				mInverse[i] = p;
+			}
+		}
+		mForward[position] = to;
+		mInverse[to] = position;
+	}
+
+	/**
+	 * Empties the order and releases its buffers.
+	 */
+	public void clear() {
+		mForward = new int[MIN_CAPACITY];
+		mInverse = new int[MIN_CAPACITY];
+		mSize = 0;
+	}
+
+	private void shuffleTail(final int from) {
+		for (int i = mSize - 1; i > from; i--) {
+			final int change = from + nextInt(i - from + 1);
+			final int helper = mForward[i];
+			mForward[i] = mForward[change];
+			mForward[change] = helper;
+		}
+		for (int i = from; i < mSize; i++) {
+			mInverse[mForward[i]] = i;
+		}
+	}
+
+	/**
+	 * @return A random number between 0 (inclusive) and bound (exclusive)
+	 */
+	private int nextInt(final int bound) {
+		mState += 0x9E3779B97F4A7C15L;
+		long z = mState;
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		z = z ^ (z >>> 31);
+		return (int) (((z >>> 32) * bound) >>> 32);
+	}
+
+	private void swap(final int a, final int b) {
+		final int itemA = mForward[a];
+		final int itemB = mForward[b];
+		mForward[a] = itemB;
+		mForward[b] = itemA;
+		mInverse[itemB] = a;
+		mInverse[itemA] = b;
+	}
+
+	private void ensureCapacity(final int size) {
+		if (mForward.length < size) {
+			final int capacity = Math.max(MIN_CAPACITY, size * 2);
+			mForward = Arrays.copyOf(mForward, capacity);
+			mInverse = Arrays.copyOf(mInverse, capacity);
+		}
+	}
+}
@@ -0,0 +1,850 @@
+package com.boko.vimusic.service;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.boko.vimusic.cache.ImageCache;
+import com.boko.vimusic.model.HostType;
+import com.boko.vimusic.model.Song;
+
+/**
+ * A loopback HTTP server that sits between the media player and remote
+ * streams. Everything read from the remote host is also written to a cache
+ * file, so a track that is played again, or seeked back into, is served from
+ * disk. Range requests are supported for seeking.
+ * <p>
+ * Each track is cached as the part read so far from its start. A request
+ * inside that part is served from disk, and the rest of the track is then
+ * fetched and appended to the file. A request past the cached part goes
+ * straight to the remote host. The cache is bounded, the least recently used
+ * tracks are deleted first.
+ * <p>
+ * A writer whose player hung up keeps filling the cache file until another
+ * track is requested, the proxy is stopped, or a new connection for the same
+ * track takes over from it.
+ */
+final class StreamProxy implements Runnable {
+
+	private static final String TAG = "StreamProxy";
+
+	/**
+	 * Size the audio cache is trimmed to
+	 */
+	private static final long MAX_CACHE_SIZE = 100 * 1024 * 1024;
+
+	/**
+	 * Number of bytes fetched ahead for the start of an upcoming track
+	 */
+	private static final int PREFETCH_SIZE = 256 * 1024;
+
+	private static final int BUFFER_SIZE = 16 * 1024;
+
+	private static final int TIMEOUT = 15 * 1000;
+
+	/**
+	 * How long a new connection waits for a writer without a client to stop
+	 */
+	private static final int TAKE_OVER_TIMEOUT = 2 * 1000;
+
+	/**
+	 * Number of remote URLs remembered
+	 */
+	private static final int MAX_URLS = 32;
+
+	private static final String DATA_SUFFIX = ".dat";
+
+	private static final String LENGTH_SUFFIX = ".len";
+
+	private final File mDirectory;
+
+	/**
+	 * Remote URL of the cache keys handed out last, least recently used first
+	 */
+	private final LinkedHashMap<String, String> mUrls = new LinkedHashMap<String, String>(
+			MAX_URLS, 0.75f, true) {
+
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(
+				final Map.Entry<String, String> eldest) {
+			return size() > MAX_URLS;
+		}
+	};
+
+	/**
+	 * Cache entries in use
+	 */
+	private final HashMap<String, Entry> mEntries = new HashMap<String, Entry>();
+
+	private final ExecutorService mClients;
+
+	private ServerSocket mServer;
+
+	private Thread mThread;
+
+	/**
+	 * Constructor of <code>StreamProxy</code>
+	 *
+	 * @param context
+	 *            The {@link Context} to use
+	 */
+	public StreamProxy(final Context context) {
+		mDirectory = ImageCache.getDiskCacheDir(context, "audio");
+		mClients = Executors.newCachedThreadPool(new ThreadFactory() {
+
+			@Override
+			public Thread newThread(final Runnable r) {
+				final Thread thread = new Thread(r, TAG);
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Starts listening on a free loopback port. If that fails, remote tracks
+	 * are simply played without the proxy.
+	 */
+	public synchronized void start() {
+		if (mServer != null) {
+			return;
+		}
+		try {
+			if (!mDirectory.exists()) {
+				mDirectory.mkdirs();
+			}
+			mServer = new ServerSocket(0, 8, InetAddress.getByName("127.0.0.1"));
+			mThread = new Thread(this, TAG);
+			mThread.setDaemon(true);
+			mThread.start();
+		} catch (final IOException e) {
+			Log.e(TAG, "start - " + e);
+			mServer = null;
+		}
+	}
+
+	/**
+	 * Stops the server and drops the running transfers. What was cached so far
+	 * is kept.
+	 */
+	public synchronized void stop() {
+		if (mServer != null) {
+			closeQuietly(mServer);
+			mServer = null;
+		}
+		cancelAllBut(null);
+		mClients.shutdownNow();
+	}
+
+	/**
+	 * @param song
+	 *            A resolved song
+	 * @return The URL to hand to the media player for the song, the proxy URL
+	 *         for remote songs and the play link for everything else
+	 */
+	public String getUrl(final Song song) {
+		final String link = song.getLinkPlay();
+		if (!isCacheable(song)) {
+			return link;
+		}
+		final int port;
+		synchronized (this) {
+			if (mServer == null) {
+				return link;
+			}
+			port = mServer.getLocalPort();
+		}
+		final String key = keyFor(song);
+		synchronized (mUrls) {
+			mUrls.put(key, link);
+		}
+		cancelAllBut(key);
+		return "http://127.0.0.1:" + port + "/" + key;
+	}
+
+	/**
+	 * Stops the writers that no player reads from anymore, except the one of
+	 * the given track.
+	 * 
+	 * @param key
+	 *            The cache key to keep, or null to stop them all
+	 */
+	private void cancelAllBut(final String key) {
+		synchronized (mEntries) {
+			for (final Entry entry : mEntries.values()) {
+				if (!entry.mKey.equals(key)) {
+					entry.cancel();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Fetches the start of a song into the cache, so it can start playing
+	 * right away. Blocks until done, call it off the main thread.
+	 *
+	 * @param song
+	 *            A resolved song
+	 */
+	public void prefetch(final Song song) {
+		if (!isCacheable(song)) {
+			return;
+		}
+		final Entry entry = acquire(keyFor(song));
+		try {
+			if (!entry.tryLockWriter()) {
+				// Already being fetched by a player
+				return;
+			}
+			// Nobody listens to a prefetch, a player can take over at any time
+			entry.detach();
+			try {
+				final long cached = entry.mData.length();
+				if (entry.isComplete() || cached >= PREFETCH_SIZE) {
+					return;
+				}
+				final Remote remote = Remote.open(song.getLinkPlay(), cached);
+				try {
+					if (!entry.setLength(remote.mLength)) {
+						return;
+					}
+					final OutputStream file = new FileOutputStream(entry.mData,
+							true);
+					try {
+						copy(remote.mIn, file, null, PREFETCH_SIZE - cached,
+								entry);
+					} finally {
+						closeQuietly(file);
+					}
+				} finally {
+					remote.close();
+				}
+			} finally {
+				entry.unlockWriter();
+			}
+		} catch (final IOException e) {
+			Log.e(TAG, "prefetch - " + e);
+		} finally {
+			release(entry);
+		}
+		trim();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void run() {
+		while (true) {
+			final ServerSocket server;
+			synchronized (this) {
+				server = mServer;
+			}
+			if (server == null) {
+				return;
+			}
+			try {
+				final Socket client = server.accept();
+				mClients.execute(new Runnable() {
+
+					@Override
+					public void run() {
+						try {
+							serve(client);
+						} catch (final IOException e) {
+							// The player closes the connection when it
+							// seeks or stops, nothing to report
+							if (MediaPlaybackService.DEBUG) {
+								Log.d(TAG, "serve - " + e);
+							}
+						} finally {
+							closeQuietly(client);
+						}
+					}
+				});
+			} catch (final Exception e) {
+				// Closed by stop(), or the pool was shut down
+				return;
+			}
+		}
+	}
+
+	private void serve(final Socket client) throws IOException {
+		client.setSoTimeout(TIMEOUT);
+		final BufferedReader reader = new BufferedReader(new InputStreamReader(
+				client.getInputStream()), 1024);
+		final String request = reader.readLine();
+		if (request == null) {
+			return;
+		}
+		final String[] parts = request.split(" ");
+		if (parts.length < 2 || !parts[1].startsWith("/")) {
+			return;
+		}
+		final String key = parts[1].substring(1);
+		if (!isKey(key)) {
+			return;
+		}
+		long start = 0;
+		boolean ranged = false;
+		String line;
+		while ((line = reader.readLine()) != null && line.length() > 0) {
+			if (line.regionMatches(true, 0, "Range:", 0, 6)) {
+				final String value = line.substring(6).trim();
+				if (value.startsWith("bytes=")) {
+					final int dash = value.indexOf('-');
+					try {
+						start = Long.parseLong(value.substring(6, dash).trim());
+						ranged = true;
+					} catch (final RuntimeException e) {
+						start = 0;
+					}
+				}
+			}
+		}
+		final String url;
+		synchronized (mUrls) {
+			url = mUrls.get(key);
+		}
+
+		final OutputStream out = client.getOutputStream();
+		final Entry entry = acquire(key);
+		try {
+			entry.touch();
+			if (entry.isComplete()) {
+				final long length = entry.mData.length();
+				if (start >= length) {
+					writeNotSatisfiable(out, length);
+					return;
+				}
+				writeHeaders(out, start, length, ranged, null);
+				copyFile(entry.mData, start, length, out);
+				return;
+			}
+			if (url == null) {
+				out.write("HTTP/1.1 404 Not Found\r\nConnection: close\r\n\r\n"
+						.getBytes());
+				return;
+			}
+
+			// Only one connection appends to a cache file at a time. A writer
+			// whose player hung up is taken over, so a seek doesn't start a
+			// second download next to it. The other connections go to the
+			// remote host for the part that isn't cached.
+			final boolean writer = entry.takeOverWriter(TAKE_OVER_TIMEOUT);
+			try {
+				final long cached = entry.mData.length();
+				final long from = start <= cached ? cached : start;
+				Remote remote = Remote.open(url, from);
+				if (ranged && start > 0 && remote.mLength <= 0) {
+					// Without the length there is no valid Content-Range, so
+					// the range is ignored and the track is served from 0
+					start = 0;
+					ranged = false;
+					if (from > cached) {
+						remote.close();
+						remote = Remote.open(url, cached);
+					}
+				}
+				final boolean tee = writer && start <= cached;
+				try {
+					final long length = remote.mLength;
+					if (tee && !entry.setLength(length)) {
+						// The cached data belongs to an older version of
+						// the track and was dropped, the player will retry
+						throw new IOException("Track changed on the host");
+					}
+					writeHeaders(out, start, length, ranged, remote.mType);
+					if (start < cached) {
+						copyFile(entry.mData, start, cached, out);
+					}
+					if (tee) {
+						final OutputStream file = new FileOutputStream(
+								entry.mData, true);
+						try {
+							copy(remote.mIn, file, out, Long.MAX_VALUE, entry);
+						} finally {
+							closeQuietly(file);
+						}
+					} else {
+						copy(remote.mIn, null, out, Long.MAX_VALUE, null);
+					}
+				} finally {
+					remote.close();
+				}
+			} finally {
+				if (writer) {
+					entry.unlockWriter();
+				}
+			}
+		} finally {
+			release(entry);
+			trim();
+		}
+	}
+
+	private static void writeHeaders(final OutputStream out, final long start,
+			final long length, final boolean ranged, final String type)
+			throws IOException {
+		final StringBuilder headers = new StringBuilder();
+		if (ranged && length > 0) {
+			headers.append("HTTP/1.1 206 Partial Content\r\n");
+			headers.append("Content-Range: bytes ").append(start).append('-')
+					.append(length - 1).append('/').append(length)
+					.append("\r\n");
+		} else {
+			headers.append("HTTP/1.1 200 OK\r\n");
+		}
+		if (length > 0) {
+			headers.append("Content-Length: ").append(length - start)
+					.append("\r\n");
+		}
+		headers.append("Content-Type: ")
+				.append(type != null ? type : "audio/mpeg").append("\r\n");
+		headers.append("Accept-Ranges: bytes\r\n");
+		headers.append("Connection: close\r\n\r\n");
+		out.write(headers.toString().getBytes());
+	}
+
+	private static void writeNotSatisfiable(final OutputStream out,
+			final long length) throws IOException {
+		out.write(("HTTP/1.1 416 Requested Range Not Satisfiable\r\n"
+				+ "Content-Range: bytes */" + length + "\r\n"
+				+ "Connection: close\r\n\r\n").getBytes());
+	}
+
+	private static void copyFile(final File file, final long from,
+			final long to, final OutputStream out) throws IOException {
+		final InputStream in = new FileInputStream(file);
+		try {
+			long skip = from;
+			while (skip > 0) {
+				final long skipped = in.skip(skip);
+				if (skipped <= 0) {
+					throw new IOException("Cache file is shorter than expected");
+				}
+				skip -= skipped;
+			}
+			copy(in, null, out, to - from, null);
+		} finally {
+			closeQuietly(in);
+		}
+	}
+
+	/**
+	 * Copies up to max bytes from in to the file and the client. The file
+	 * keeps being written when the client goes away, so a stopped transfer
+	 * doesn't leave a hole, until the entry being written is cancelled.
+	 */
+	private static void copy(final InputStream in, final OutputStream file,
+			OutputStream client, final long max, final Entry entry)
+			throws IOException {
+		final byte[] buffer = new byte[BUFFER_SIZE];
+		long left = max;
+		IOException clientError = null;
+		while (left > 0) {
+			if (client == null && entry != null && entry.isCancelled()) {
+				break;
+			}
+			final int read = in.read(buffer, 0,
+					(int) Math.min(buffer.length, left));
+			if (read < 0) {
+				break;
+			}
+			if (file != null) {
+				file.write(buffer, 0, read);
+			}
+			if (client != null) {
+				try {
+					client.write(buffer, 0, read);
+				} catch (final IOException e) {
+					clientError = e;
+					client = null;
+					if (file == null) {
+						break;
+					}
+					if (entry != null) {
+						entry.detach();
+					}
+				}
+			}
+			left -= read;
+		}
+		if (clientError != null) {
+			throw clientError;
+		}
+	}
+
+	/**
+	 * Deletes the least recently used tracks until the cache fits its size.
+	 */
+	private void trim() {
+		final File[] files = mDirectory.listFiles();
+		if (files == null) {
+			return;
+		}
+		long size = 0;
+		for (final File file : files) {
+			size += file.length();
+		}
+		if (size <= MAX_CACHE_SIZE) {
+			return;
+		}
+		Arrays.sort(files, new Comparator<File>() {
+
+			@Override
+			public int compare(final File lhs, final File rhs) {
+				final long l = lhs.lastModified();
+				final long r = rhs.lastModified();
+				return l < r ? -1 : (l == r ? 0 : 1);
+			}
+		});
+		synchronized (mEntries) {
+			for (final File file : files) {
+				if (size <= MAX_CACHE_SIZE) {
+					break;
+				}
+				final String name = file.getName();
+				if (!name.endsWith(DATA_SUFFIX)) {
+					continue;
+				}
+				final String key = name.substring(0, name.length()
+						- DATA_SUFFIX.length());
+				if (mEntries.containsKey(key)) {
+					// Being played or fetched
+					continue;
+				}
+				final File length = new File(mDirectory, key + LENGTH_SUFFIX);
+				size -= file.length() + length.length();
+				file.delete();
+				length.delete();
+				synchronized (mUrls) {
+					mUrls.remove(key);
+				}
+			}
+		}
+	}
+
+	private Entry acquire(final String key) {
+		synchronized (mEntries) {
+			Entry entry = mEntries.get(key);
+			if (entry == null) {
+				entry = new Entry(mDirectory, key);
+				mEntries.put(key, entry);
+			}
+			entry.mUsers++;
+			return entry;
+		}
+	}
+
+	private void release(final Entry entry) {
+		synchronized (mEntries) {
+			if (--entry.mUsers == 0) {
+				mEntries.remove(entry.mKey);
+			}
+		}
+	}
+
+	private static boolean isCacheable(final Song song) {
+		final String link = song.getLinkPlay();
+		return song.getHost() != HostType.LOCAL && link != null
+				&& link.startsWith("http");
+	}
+
+	/**
+	 * @return The cache key of a song, the same for every link it resolves to
+	 */
+	private static String keyFor(final Song song) {
+		return ImageCache.hashKeyForDisk(song.getHost().getCode() + ":"
+				+ song.getId());
+	}
+
+	/**
+	 * @return True if the request path is a key handed out by
+	 *         {@link #keyFor(Song)}, so it can't point outside the cache
+	 */
+	private static boolean isKey(final String key) {
+		if (key.length() == 0) {
+			return false;
+		}
+		for (int i = 0; i < key.length(); i++) {
+			if (Character.digit(key.charAt(i), 16) < 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static void closeQuietly(final Closeable closeable) {
+		try {
+			closeable.close();
+		} catch (final IOException ignored) {
+		}
+	}
+
+	private static void closeQuietly(final ServerSocket socket) {
+		try {
+			socket.close();
+		} catch (final IOException ignored) {
+		}
+	}
+
+	private static void closeQuietly(final Socket socket) {
+		try {
+			socket.close();
+		} catch (final IOException ignored) {
+		}
+	}
+
+	/**
+	 * A cached track: the data read so far from its start and, once known,
+	 * its full length.
+	 */
+	private static final class Entry {
+
+		private final String mKey;
+
+		private final File mData;
+
+		private final File mLengthFile;
+
+		private long mLength = -1;
+
+		private boolean mWriting = false;
+
+		/**
+		 * True once the writer has no client left to serve
+		 */
+		private boolean mDetached = false;
+
+		/**
+		 * Set to stop a writer that has no client left
+		 */
+		private volatile boolean mCancelled = false;
+
+		/**
+		 * Number of connections using the entry, guarded by mEntries
+		 */
+		private int mUsers = 0;
+
+		public Entry(final File directory, final String key) {
+			mKey = key;
+			mData = new File(directory, key + DATA_SUFFIX);
+			mLengthFile = new File(directory, key + LENGTH_SUFFIX);
+			if (mLengthFile.exists()) {
+				DataInputStream in = null;
+				try {
+					in = new DataInputStream(new FileInputStream(mLengthFile));
+					mLength = in.readLong();
+				} catch (final IOException e) {
+					mLength = -1;
+				} finally {
+					if (in != null) {
+						closeQuietly(in);
+					}
+				}
+			}
+		}
+
+		public synchronized boolean tryLockWriter() {
+			if (mWriting) {
+				return false;
+			}
+			mWriting = true;
+			mDetached = false;
+			mCancelled = false;
+			return true;
+		}
+
+		/**
+		 * Locks the writer, stopping the current one first if its client is
+		 * gone. A writer that still serves a client is left alone.
+		 * 
+		 * @param timeout
+		 *            How long to wait for the current writer, in milliseconds
+		 * @return True if the caller is now the writer
+		 */
+		public synchronized boolean takeOverWriter(final long timeout) {
+			if (mWriting && mDetached) {
+				mCancelled = true;
+				final long end = System.currentTimeMillis() + timeout;
+				long left = timeout;
+				while (mWriting && left > 0) {
+					try {
+						wait(left);
+					} catch (final InterruptedException e) {
+						Thread.currentThread().interrupt();
+						break;
+					}
+					left = end - System.currentTimeMillis();
+				}
+			}
+			return tryLockWriter();
+		}
+
+		public synchronized void unlockWriter() {
+			mWriting = false;
+			mDetached = false;
+			notifyAll();
+		}
+
+		/**
+		 * Marks the writer as having no client, from now on it can be
+		 * cancelled.
+		 */
+		public synchronized void detach() {
+			mDetached = true;
+		}
+
+		public void cancel() {
+			mCancelled = true;
+		}
+
+		public boolean isCancelled() {
+			return mCancelled;
+		}
+
+		public synchronized boolean isComplete() {
+			return mLength > 0 && mData.length() >= mLength;
+		}
+
+		/**
+		 * Records the full length of the track. The cache file of a track
+		 * whose length changed is started over.
+		 * 
+		 * @return False if the cached data was dropped
+		 */
+		public synchronized boolean setLength(final long length) {
+			if (length <= 0 || length == mLength) {
+				return true;
+			}
+			final boolean changed = mLength > 0;
+			if (changed) {
+				mData.delete();
+			}
+			mLength = length;
+			DataOutputStream out = null;
+			try {
+				out = new DataOutputStream(new FileOutputStream(mLengthFile));
+				out.writeLong(length);
+			} catch (final IOException e) {
+				Log.e(TAG, "setLength - " + e);
+			} finally {
+				if (out != null) {
+					closeQuietly(out);
+				}
+			}
+			return !changed;
+		}
+
+		public void touch() {
+			mData.setLastModified(System.currentTimeMillis());
+		}
+	}
+
+	/**
+	 * An open connection to the remote host, positioned at a byte offset.
+	 */
+	private static final class Remote {
+
+		private final HttpURLConnection mConnection;
+
+		private final InputStream mIn;
+
+		/**
+		 * Full length of the track, or -1 if the host didn't tell
+		 */
+		private final long mLength;
+
+		private final String mType;
+
+		private Remote(final HttpURLConnection connection,
+				final InputStream in, final long length, final String type) {
+			mConnection = connection;
+			mIn = in;
+			mLength = length;
+			mType = type;
+		}
+
+		public static Remote open(final String url, final long from)
+				throws IOException {
+			final HttpURLConnection connection = (HttpURLConnection) new URL(
+					url).openConnection();
+			connection.setConnectTimeout(TIMEOUT);
+			connection.setReadTimeout(TIMEOUT);
+			if (from > 0) {
+				connection.setRequestProperty("Range", "bytes=" + from + "-");
+			}
+			final int code = connection.getResponseCode();
+			if (code != HttpURLConnection.HTTP_OK
+					&& code != HttpURLConnection.HTTP_PARTIAL) {
+				connection.disconnect();
+				throw new IOException("Unexpected response " + code);
+			}
+			final InputStream in = connection.getInputStream();
+			long length = -1;
+			if (code == HttpURLConnection.HTTP_PARTIAL) {
+				final String range = connection.getHeaderField("Content-Range");
+				final int slash = range != null ? range.lastIndexOf('/') : -1;
+				if (slash >= 0) {
+					try {
+						length = Long.parseLong(range.substring(slash + 1)
+								.trim());
+					} catch (final NumberFormatException ignored) {
+					}
+				}
+			} else {
+				final String header = connection
+						.getHeaderField("Content-Length");
+				if (header != null) {
+					try {
+						length = Long.parseLong(header.trim());
+					} catch (final NumberFormatException ignored) {
+					}
+				}
+				// The host ignored the range, skip to the offset ourselves
+				long skip = from;
+				while (skip > 0) {
+					final long skipped = in.skip(skip);
+					if (skipped <= 0) {
+						connection.disconnect();
+						throw new IOException("Stream ended before " + from);
+					}
+					skip -= skipped;
+				}
+			}
+			return new Remote(connection, in, length, connection.getContentType());
+		}
+
+		public void close() {
+			closeQuietly(mIn);
+			mConnection.disconnect();
+		}
+	}
+}
@@ -0,0 +1,139 @@
+package com.boko.vimusic.service;
+
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import android.content.Context;
+import android.os.Process;
+
+import com.boko.vimusic.model.Song;
+
+/**
+ * Resolves remote tracks ahead of time, so the play link is known before
+ * playback reaches them, and fetches the start of each into the
+ * {@link StreamProxy} cache. Only the tracks of the latest look-ahead window are
+ * kept, tracks that dropped out of it are cancelled if they haven't started
+ * yet.
+ * <p>
+ * A track that is still being resolved when it is needed is not resolved a
+ * second time, {@link Song#query(Context)} waits for the running query.
+ */
+final class TrackResolver {
+
+	/**
+	 * Most tracks resolved at the same time
+	 */
+	private static final int POOL_SIZE = 2;
+
+	/**
+	 * Idle workers are stopped after this many seconds
+	 */
+	private static final int KEEP_ALIVE = 30;
+
+	private final Context mContext;
+
+	private final StreamProxy mProxy;
+
+	private final ThreadPoolExecutor mExecutor;
+
+	/**
+	 * The tracks of the current window that haven't finished yet
+	 */
+	private final Map<Song, Future<?>> mPending = new IdentityHashMap<Song, Future<?>>();
+
+	/**
+	 * Constructor of <code>TrackResolver</code>
+	 * 
+	 * @param context
+	 *            The {@link Context} to use
+	 * @param proxy
+	 *            The {@link StreamProxy} to fetch the start of each track into
+	 */
+	public TrackResolver(final Context context, final StreamProxy proxy) {
+		mContext = context.getApplicationContext();
+		mProxy = proxy;
+		mExecutor = new ThreadPoolExecutor(POOL_SIZE, POOL_SIZE, KEEP_ALIVE,
+				TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+				new ThreadFactory() {
+
+					@Override
+					public Thread newThread(final Runnable r) {
+						final Thread thread = new Thread(r, "TrackResolver") {
+
+							@Override
+							public void run() {
+								Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+								super.run();
+							}
+						};
+						return thread;
+					}
+				});
+		mExecutor.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * Replaces the look-ahead window. Tracks already queued or running for
+	 * the old window are kept if they are still in the new one.
+	 * 
+	 * @param songs
+	 *            The tracks to resolve, in the order they will be played
+	 */
+	public synchronized void resolve(final Song[] songs) {
+		if (mExecutor.isShutdown()) {
+			return;
+		}
+		final Map<Song, Future<?>> window = new IdentityHashMap<Song, Future<?>>();
+		for (final Song song : songs) {
+			final Future<?> future = mPending.remove(song);
+			if (future != null && !future.isDone()) {
+				window.put(song, future);
+			}
+		}
+		cancelPending();
+		for (final Song song : songs) {
+			if (window.containsKey(song)) {
+				continue;
+			}
+			window.put(song, mExecutor.submit(new Runnable() {
+
+				@Override
+				public void run() {
+					if (!song.isQueried()) {
+						song.query(mContext);
+					}
+					mProxy.prefetch(song);
+					done(song);
+				}
+			}));
+		}
+		mPending.putAll(window);
+	}
+
+	/**
+	 * Cancels the pending tracks and stops the workers.
+	 */
+	public synchronized void shutdown() {
+		cancelPending();
+		mExecutor.shutdownNow();
+	}
+
+	private synchronized void done(final Song song) {
+		mPending.remove(song);
+	}
+
+	private void cancelPending() {
+		final Iterator<Future<?>> it = mPending.values().iterator();
+		while (it.hasNext()) {
+			// Running queries are left to finish, their result is still good
+			it.next().cancel(false);
+			it.remove();
+		}
+	}
+}
@@ -19,8 +19,10 @@ import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager.NameNotFoundException;
 import android.os.Bundle;
 import android.preference.Preference;
+import android.preference.Preference.OnPreferenceChangeListener;
 import android.preference.Preference.OnPreferenceClickListener;
 import android.preference.PreferenceActivity;
+import android.text.format.Formatter;
 import android.view.MenuItem;
 
 import com.boko.vimusic.R;
@@ -70,6 +72,8 @@ public class SettingsActivity extends PreferenceActivity {
 
 		// Interface settings
 		initInterface();
+		// Sets the cache size
+		updateCacheSize();
 		// Removes the cache entries
 		deleteCache();
 		// About
@@ -160,6 +164,33 @@ public class SettingsActivity extends PreferenceActivity {
 				});
 	}
 
+	/**
+	 * Applies the image cache size the user picks, and shows how much of it is
+	 * used.
+	 */
+	private void updateCacheSize() {
+		final Preference cacheSize = findPreference(PreferenceUtils.CACHE_SIZE);
+		cacheSize.setSummary(getString(R.string.settings_cache_size_summary,
+				Formatter.formatFileSize(this, mImageCache.getDiskCacheSize()),
+				Formatter.formatFileSize(this,
+						mImageCache.getDiskCacheMaxSize()),
+				mImageCache.getDiskCacheEvictionCount()));
+		cacheSize
+				.setOnPreferenceChangeListener(new OnPreferenceChangeListener() {
+					@Override
+					public boolean onPreferenceChange(
+							final Preference preference, final Object newValue) {
+						try {
+							mImageCache.setDiskCacheSize(Integer
+									.parseInt((String) newValue));
+						} catch (final NumberFormatException e) {
+							return false;
+						}
+						return true;
+					}
+				});
+	}
+
 	/**
 	 * Removes all of the cache entries.
 	 */
@@ -99,6 +99,8 @@ public class QueueFragment extends Fragment implements OnItemClickListener, Drop
 		super.onCreate(savedInstanceState);
 		// Create the adpater
 		mAdapter = new SongAdapter(getActivity(), R.layout.edit_track_list_item);
+		// The queue only carries ids, so fill in the rows as they are shown
+		mAdapter.setHydrateOnDemand(true);
 	}
 
 	/**
@@ -63,8 +63,11 @@ public class ZingSongLoader extends WrappedAsyncTaskLoader<List<Song>> {
 	 */
 	@Override
 	public List<Song> loadInBackground() {
-		final Result rs = Caller.getInstance().call(
+		final Result rs = Caller.getInstance(getContext()).call(
 				SEARCH_URL + "radioactive");
+		if (rs == null || rs.getResultRaw() == null) {
+			return mSongList;
+		}
 		String raw = rs.getResultRaw();
 		JSONObject obj;
 		try {
@@ -78,6 +78,9 @@ public final class PreferenceUtils {
 	// Key used to set the overall theme color
 	public static final String DEFAULT_THEME_COLOR = "default_theme_color";
 
+	// Key used to set the size of the image disk cache
+	public static final String CACHE_SIZE = "cache_size";
+
 	private static PreferenceUtils sInstance;
 
 	private final SharedPreferences mPreferences;
@@ -188,6 +191,18 @@ public final class PreferenceUtils {
 		return mPreferences.getBoolean(DOWNLOAD_MISSING_ARTIST_IMAGES, true);
 	}
 
+	/**
+	 * @return The size of the image disk cache in MB picked by the user, 0 if
+	 *         it should be sized automatically.
+	 */
+	public final int getCacheSize() {
+		try {
+			return Integer.parseInt(mPreferences.getString(CACHE_SIZE, "0"));
+		} catch (final NumberFormatException e) {
+			return 0;
+		}
+	}
+
 	/**
 	 * Saves the sort order for a list.
 	 * 